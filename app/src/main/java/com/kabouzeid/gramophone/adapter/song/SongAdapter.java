@@ -30,6 +30,7 @@ import com.kabouzeid.gramophone.util.NavigationUtil;
 import com.simplecityapps.recyclerview_fastscroll.views.FastScrollRecyclerView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
@@ -39,13 +40,13 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
     public static final String TAG = AlbumSongAdapter.class.getSimpleName();
 
     protected final AppCompatActivity activity;
-    protected ArrayList<Song> dataSet;
+    protected List<Song> dataSet;
 
     protected int itemLayoutRes;
 
     protected boolean usePalette = false;
 
-    public SongAdapter(AppCompatActivity activity, ArrayList<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
+    public SongAdapter(AppCompatActivity activity, List<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
         super(activity, cabHolder, R.menu.menu_media_selection);
         this.activity = activity;
         this.dataSet = dataSet;
@@ -54,7 +55,7 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
         setHasStableIds(true);
     }
 
-    public void swapDataSet(ArrayList<Song> dataSet) {
+    public void swapDataSet(List<Song> dataSet) {
         this.dataSet = dataSet;
         notifyDataSetChanged();
     }
@@ -64,7 +65,7 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
         notifyDataSetChanged();
     }
 
-    public ArrayList<Song> getDataSet() {
+    public List<Song> getDataSet() {
         return dataSet;
     }
 
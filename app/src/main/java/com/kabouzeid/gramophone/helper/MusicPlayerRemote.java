@@ -18,6 +18,7 @@ import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.service.MusicService;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.WeakHashMap;
 
@@ -164,7 +165,7 @@ public class MusicPlayerRemote {
     /**
      * Async
      */
-    public static void openQueue(final ArrayList<Song> queue, final int startPosition, final boolean startPlaying) {
+    public static void openQueue(final List<Song> queue, final int startPosition, final boolean startPlaying) {
         if (!tryToHandleOpenPlayingQueue(queue, startPosition, startPlaying) && musicService != null) {
             musicService.openQueue(queue, startPosition, startPlaying);
         }
@@ -173,19 +174,18 @@ public class MusicPlayerRemote {
     /**
      * Async
      */
-    public static void openAndShuffleQueue(final ArrayList<Song> queue, boolean startPlaying) {
+    public static void openAndShuffleQueue(final List<Song> queue, boolean startPlaying) {
         int startPosition = 0;
         if (!queue.isEmpty()) {
             startPosition = new Random().nextInt(queue.size());
         }
 
         if (!tryToHandleOpenPlayingQueue(queue, startPosition, startPlaying) && musicService != null) {
-            openQueue(queue, startPosition, startPlaying);
-            setShuffleMode(MusicService.SHUFFLE_MODE_SHUFFLE);
+            musicService.openAndShuffleQueue(queue, startPosition, startPlaying);
         }
     }
 
-    private static boolean tryToHandleOpenPlayingQueue(final ArrayList<Song> queue, final int startPosition, final boolean startPlaying) {
+    private static boolean tryToHandleOpenPlayingQueue(final List<Song> queue, final int startPosition, final boolean startPlaying) {
         if (getPlayingQueue() == queue) {
             if (startPlaying) {
                 playSongAt(startPosition);
@@ -211,7 +211,7 @@ public class MusicPlayerRemote {
         return -1;
     }
 
-    public static ArrayList<Song> getPlayingQueue() {
+    public static List<Song> getPlayingQueue() {
         if (musicService != null) {
             return musicService.getPlayingQueue();
         }
@@ -343,6 +343,14 @@ public class MusicPlayerRemote {
         return false;
     }
 
+    public static boolean removeFromQueue(@NonNull List<Song> songs) {
+        if (musicService != null) {
+            musicService.removeSongs(songs);
+            return true;
+        }
+        return false;
+    }
+
     public static boolean removeFromQueue(int position) {
         if (musicService != null && position >= 0 && position < getPlayingQueue().size()) {
             musicService.removeSong(position);
@@ -6,87 +6,133 @@ import android.os.Bundle;
 import android.provider.MediaStore;
 import androidx.annotation.NonNull;
 
-import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.loader.MusicLibrary;
+import com.kabouzeid.gramophone.loader.SearchIndex;
+import com.kabouzeid.gramophone.loader.SongTable;
 import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
+ * Resolves the songs of a voice search or a play from search intent.
+ * <p/>
+ * The names of the extras and the query are looked up in the {@link SearchIndex} of the library, ignoring case,
+ * diacritics and punctuation. Every song that matches one of them is scored in a single pass by the best
+ * combination of fields it matches, e.g. artist and title before title only.
+ *
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class SearchQueryHelper {
-    private static final String TITLE_SELECTION = "lower(" + MediaStore.Audio.AudioColumns.TITLE + ") = ?";
-    private static final String ALBUM_SELECTION = "lower(" + MediaStore.Audio.AudioColumns.ALBUM + ") = ?";
-    private static final String ARTIST_SELECTION = "lower(" + MediaStore.Audio.AudioColumns.ARTIST + ") = ?";
-    private static final String AND = " AND ";
+    private static final int TITLE = 1;
+    private static final int ALBUM = 1 << 1;
+    private static final int ARTIST = 1 << 2;
+    private static final int QUERY_TITLE = 1 << 3;
+    private static final int QUERY_ALBUM = 1 << 4;
+    private static final int QUERY_ARTIST = 1 << 5;
+    // the field of the index for each of the bits above
+    private static final int[] FIELDS = {SearchIndex.FIELD_TITLE, SearchIndex.FIELD_ALBUM, SearchIndex.FIELD_ARTIST,
+            SearchIndex.FIELD_TITLE, SearchIndex.FIELD_ALBUM, SearchIndex.FIELD_ARTIST};
+    // the combinations of matching fields, best first
+    private static final int[] COMBINATIONS = {
+            ARTIST | ALBUM | TITLE,
+            ARTIST | TITLE,
+            ALBUM | TITLE,
+            ARTIST,
+            ALBUM,
+            TITLE,
+            QUERY_ARTIST,
+            QUERY_ALBUM,
+            QUERY_TITLE,
+    };
+    // of the typo tolerant title search, used if no field matches exactly
+    private static final float FUZZY_CONFIDENCE = 0.05f;
 
     @NonNull
     public static ArrayList<Song> getSongs(@NonNull final Context context, @NonNull final Bundle extras) {
+        return resolve(context, extras).songs;
+    }
+
+    @NonNull
+    public static Resolution resolve(@NonNull final Context context, @NonNull final Bundle extras) {
         final String query = extras.getString(SearchManager.QUERY, null);
         final String artistName = extras.getString(MediaStore.EXTRA_MEDIA_ARTIST, null);
         final String albumName = extras.getString(MediaStore.EXTRA_MEDIA_ALBUM, null);
         final String titleName = extras.getString(MediaStore.EXTRA_MEDIA_TITLE, null);
-
-        ArrayList<Song> songs = new ArrayList<>();
-
-        if (artistName != null && albumName != null && titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION + AND + ALBUM_SELECTION + AND + TITLE_SELECTION, new String[]{artistName.toLowerCase(), albumName.toLowerCase(), titleName.toLowerCase()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
+        // by bit
+        final String[] names = {titleName, albumName, artistName, query, query, query};
+
+        final MusicLibrary library = MusicLibrary.getInstance(context);
+        final SearchIndex searchIndex = library.getSearchIndex();
+        final SongTable songs = searchIndex.getSongs();
+
+        // the matching fields per row, set for the rows of all matching names
+        final int[] matchedFields = new int[songs.size()];
+        int[] matchedRows = new int[16];
+        int matchedRowCount = 0;
+        for (int bit = 0; bit < names.length; bit++) {
+            if (names[bit] == null) continue;
+            final int field = FIELDS[bit];
+            for (int string : searchIndex.findEqual(field, names[bit])) {
+                for (int i = 0; i < searchIndex.getRowCount(field, string); i++) {
+                    final int row = searchIndex.getRow(field, string, i);
+                    if (matchedFields[row] == 0) {
+                        if (matchedRowCount == matchedRows.length) {
+                            matchedRows = Arrays.copyOf(matchedRows, matchedRowCount * 2);
+                        }
+                        matchedRows[matchedRowCount++] = row;
+                    }
+                    matchedFields[row] |= 1 << bit;
+                }
+            }
         }
 
-        if (artistName != null && titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION + AND + TITLE_SELECTION, new String[]{artistName.toLowerCase(), titleName.toLowerCase()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (albumName != null && titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ALBUM_SELECTION + AND + TITLE_SELECTION, new String[]{albumName.toLowerCase(), titleName.toLowerCase()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
+        // the songs satisfying the best combination any song satisfies
+        int bestCombination = COMBINATIONS.length;
+        final int[] bestSongIds = new int[matchedRowCount];
+        int bestSongCount = 0;
+        for (int i = 0; i < matchedRowCount; i++) {
+            final int row = matchedRows[i];
+            // songs only satisfying a worse combination than the best so far are skipped
+            final int lastCombination = Math.min(bestCombination, COMBINATIONS.length - 1);
+            for (int combination = 0; combination <= lastCombination; combination++) {
+                if ((matchedFields[row] & COMBINATIONS[combination]) == COMBINATIONS[combination]) {
+                    if (combination < bestCombination) {
+                        bestCombination = combination;
+                        bestSongCount = 0;
+                    }
+                    bestSongIds[bestSongCount++] = songs.ids[row];
+                    break;
+                }
+            }
         }
 
-        if (artistName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION, new String[]{artistName.toLowerCase()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
+        final String sortOrder = PreferenceUtil.getInstance(context).getSongSortOrder();
+        if (bestSongCount > 0) {
+            return new Resolution(library.getSongs(Arrays.copyOf(bestSongIds, bestSongCount), sortOrder),
+                    1f - (float) bestCombination / COMBINATIONS.length);
         }
-
-        if (albumName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ALBUM_SELECTION, new String[]{albumName.toLowerCase()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, TITLE_SELECTION, new String[]{titleName.toLowerCase()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-
-        songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION, new String[]{query.toLowerCase()}));
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ALBUM_SELECTION, new String[]{query.toLowerCase()}));
-        if (!songs.isEmpty()) {
-            return songs;
+        if (query != null) {
+            // tolerates typos, e.g. in the transcription of a voice search
+            final ArrayList<Song> titleMatches = library.getSongsOfTitles(searchIndex, searchIndex.search(query).titles);
+            return new Resolution(titleMatches, titleMatches.isEmpty() ? 0f : FUZZY_CONFIDENCE);
         }
+        return new Resolution(new ArrayList<Song>(), 0f);
+    }
 
-        songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, TITLE_SELECTION, new String[]{query.toLowerCase()}));
-        if (!songs.isEmpty()) {
-            return songs;
+    /**
+     * The songs a search resolved to.
+     */
+    public static class Resolution {
+        @NonNull
+        public final ArrayList<Song> songs;
+        // from 1 if all given names matched exactly down to 0 if nothing matched
+        public final float confidence;
+
+        Resolution(@NonNull ArrayList<Song> songs, float confidence) {
+            this.songs = songs;
+            this.confidence = confidence;
         }
-
-        return SongLoader.getSongs(context, query);
     }
 }
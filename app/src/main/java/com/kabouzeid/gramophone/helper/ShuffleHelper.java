@@ -2,24 +2,238 @@ package com.kabouzeid.gramophone.helper;
 
 import androidx.annotation.NonNull;
 
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.loader.SongTable;
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
 import com.kabouzeid.gramophone.model.Song;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class ShuffleHelper {
+    // how far a song of the smart shuffle may move from its evenly spaced slot, as a fraction of the spacing
+    private static final float JITTER = 0.2f;
 
     public static void makeShuffleList(@NonNull List<Song> listToShuffle, final int current) {
+        makeShuffleList(listToShuffle, current, new Random());
+    }
+
+    public static void makeShuffleList(@NonNull List<Song> listToShuffle, final int current, @NonNull Random random) {
         if (listToShuffle.isEmpty()) return;
+        if (listToShuffle instanceof SongIdList) {
+            // neither copies nor moves the songs, only the positions that are played or shown get shuffled
+            ((SongIdList) listToShuffle).shuffle(current, random.nextLong());
+            return;
+        }
         if (current >= 0) {
             Song song = listToShuffle.remove(current);
-            Collections.shuffle(listToShuffle);
+            Collections.shuffle(listToShuffle, random);
             listToShuffle.add(0, song);
         } else {
-            Collections.shuffle(listToShuffle);
+            Collections.shuffle(listToShuffle, random);
+        }
+    }
+
+    /**
+     * Like {@link #getSmartShuffleOrder(int[], int[], int, Random)}, but looks up the artists and albums of the songs
+     * in the library. Only reads the ids, so it can run on a worker thread with a copy of the ids of the queue.
+     *
+     * @param songs the library to look up the artists and albums in, songs that are not in it count as one artist
+     * @return the positions of the ids in shuffled order
+     */
+    @NonNull
+    public static int[] getSmartShuffleOrder(@NonNull int[] songIds, final int first, @NonNull SongTable songs, @NonNull Random random) {
+        final int[] artistIds = new int[songIds.length];
+        final int[] albumIds = new int[songIds.length];
+        for (int i = 0; i < songIds.length; i++) {
+            final int row = songs.indexOfId(songIds[i]);
+            artistIds[i] = row < 0 ? -1 : songs.artistIds[row];
+            albumIds[i] = row < 0 ? -1 : songs.albumIds[row];
+        }
+        return getSmartShuffleOrder(artistIds, albumIds, first, random);
+    }
+
+    /**
+     * A shuffle that spaces out the songs of the same artist and album, by interleaving them instead of retrying
+     * random orders until they look spread.
+     * <p/>
+     * The songs of an artist with k songs get the slots (offset + i) / k, the offset is random per artist and each
+     * slot moves by a random fraction of up to {@link #JITTER} / 2 of the spacing, so artists with as many songs don't
+     * alternate in a fixed pattern. Sorting all songs by their slot spreads every artist evenly. Before that, the
+     * same is done with the albums of each artist to order the songs of the artist, so its albums alternate as well.
+     * Grouping is linear, sorting the slots takes O(n log n).
+     *
+     * @param first the position of the song that comes first, e.g. the current one, or -1
+     * @return the positions in shuffled order
+     */
+    @NonNull
+    public static int[] getSmartShuffleOrder(@NonNull int[] artistIds, @NonNull int[] albumIds, final int first, @NonNull Random random) {
+        final int size = artistIds.length;
+        if (first >= size) {
+            throw new IndexOutOfBoundsException("First position " + first + " of " + size);
+        }
+        final int[] artists = new int[size];
+        final int artistCount = toGroups(artistIds, artists);
+        final int[] albums = new int[size];
+        final int albumCount = toGroups(albumIds, albums);
+
+        // the positions grouped by artist, and by album within each artist
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        order = sortByGroup(order, albums, albumCount);
+        order = sortByGroup(order, artists, artistCount);
+
+        final long[] slots = new long[size];
+        for (int from = 0, to; from < size; from = to) {
+            to = endOfGroup(order, artists, from, size);
+            interleave(order, from, to, albums, true, first, random, slots);
+        }
+        // the songs of each artist stay in the order that spreads their albums
+        interleave(order, 0, size, artists, false, first, random, slots);
+        return order;
+    }
+
+    /**
+     * Spreads the groups of the positions from {@code from} to {@code to} (exclusive) evenly over that range.
+     *
+     * @param shuffleGroups whether to shuffle the positions of each group first, or to keep their order
+     */
+    private static void interleave(@NonNull int[] order, final int from, final int to, @NonNull int[] groups, final boolean shuffleGroups,
+                                   final int first, @NonNull Random random, @NonNull long[] slots) {
+        for (int start = from, end; start < to; start = end) {
+            end = endOfGroup(order, groups, start, to);
+            boolean hasFirst = false;
+            for (int i = start; i < end && first >= 0; i++) {
+                if (order[i] == first) {
+                    order[i] = order[start];
+                    order[start] = first;
+                    hasFirst = true;
+                    break;
+                }
+            }
+            if (shuffleGroups) {
+                shuffle(order, hasFirst ? start + 1 : start, end, random);
+            }
+            final int count = end - start;
+            // the group of the first song starts right away, so its next song is as far from it as possible
+            final float offset = hasFirst ? 0 : random.nextFloat();
+            for (int i = 0; i < count; i++) {
+                // slots are between 0.9 and 2.1, so the order of their float bits is their numerical order
+                final float slot = hasFirst && i == 0 ? 0
+                        : 1 + (offset + i + (random.nextFloat() - 0.5f) * JITTER) / count;
+                slots[start + i] = (long) Float.floatToIntBits(slot) << 32 | order[start + i];
+            }
+        }
+        Arrays.sort(slots, from, to);
+        for (int i = from; i < to; i++) {
+            order[i] = (int) slots[i];
+        }
+    }
+
+    /**
+     * Numbers the distinct ids in the order they first appear.
+     *
+     * @return the number of distinct ids
+     */
+    private static int toGroups(@NonNull int[] ids, @NonNull int[] groups) {
+        final IntIntHashMap groupOfId = new IntIntHashMap();
+        for (int i = 0; i < ids.length; i++) {
+            int group = groupOfId.get(ids[i], -1);
+            if (group < 0) {
+                group = groupOfId.size();
+                groupOfId.put(ids[i], group);
+            }
+            groups[i] = group;
+        }
+        return groupOfId.size();
+    }
+
+    /**
+     * Stable counting sort of the positions by their group.
+     */
+    @NonNull
+    private static int[] sortByGroup(@NonNull int[] order, @NonNull int[] groups, final int groupCount) {
+        final int[] starts = new int[groupCount + 1];
+        for (int position : order) {
+            starts[groups[position] + 1]++;
+        }
+        for (int group = 0; group < groupCount; group++) {
+            starts[group + 1] += starts[group];
+        }
+        final int[] sorted = new int[order.length];
+        for (int position : order) {
+            sorted[starts[groups[position]]++] = position;
+        }
+        return sorted;
+    }
+
+    private static int endOfGroup(@NonNull int[] order, @NonNull int[] groups, final int start, final int to) {
+        final int group = groups[order[start]];
+        int end = start + 1;
+        while (end < to && groups[order[end]] == group) {
+            end++;
+        }
+        return end;
+    }
+
+    private static void shuffle(@NonNull int[] values, final int from, final int to, @NonNull Random random) {
+        for (int i = to - 1; i > from; i--) {
+            final int j = from + random.nextInt(i - from + 1);
+            final int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    /**
+     * @param groupIds e.g. the artist ids of the songs in the order they are played
+     * @return how many songs follow a song of the same group
+     */
+    public static int countAdjacentRepeats(@NonNull int[] groupIds) {
+        int repeats = 0;
+        for (int i = 1; i < groupIds.length; i++) {
+            if (groupIds[i] == groupIds[i - 1]) {
+                repeats++;
+            }
+        }
+        return repeats;
+    }
+
+    /**
+     * Measures how clumped the songs of each group are: a group of k songs in a list of n is spread evenly if there
+     * are n / k songs between two of its songs. A random order has about 40% of the gaps shorter than half of that,
+     * like the gaps between random arrivals, a perfectly spread order none.
+     *
+     * @param groupIds e.g. the artist ids of the songs in the order they are played
+     * @return the fraction of the gaps between consecutive songs of the same group that are shorter than half of
+     * the even spacing of the group, or 0 if no group has more than one song
+     */
+    public static double getClumpedFraction(@NonNull int[] groupIds) {
+        final IntIntHashMap counts = new IntIntHashMap();
+        for (int groupId : groupIds) {
+            counts.increment(groupId, 1);
+        }
+        final IntIntHashMap lastPositions = new IntIntHashMap(counts.size());
+        int gaps = 0;
+        int clumped = 0;
+        for (int i = 0; i < groupIds.length; i++) {
+            final int last = lastPositions.get(groupIds[i], -1);
+            if (last >= 0) {
+                gaps++;
+                // gap < n / k / 2
+                if (2L * (i - last) * counts.get(groupIds[i], 1) < groupIds.length) {
+                    clumped++;
+                }
+            }
+            lastPositions.put(groupIds[i], i);
         }
+        return gaps == 0 ? 0 : (double) clumped / gaps;
     }
 }
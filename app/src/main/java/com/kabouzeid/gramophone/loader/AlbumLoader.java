@@ -5,6 +5,7 @@ import android.provider.MediaStore.Audio.AudioColumns;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
@@ -15,20 +16,21 @@ import java.util.ArrayList;
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class AlbumLoader {
-
     public static String getSongLoaderSortOrder(Context context) {
         return PreferenceUtil.getInstance(context).getAlbumSortOrder() + ", " + PreferenceUtil.getInstance(context).getAlbumSongSortOrder();
     }
 
     @NonNull
     public static ArrayList<Album> getAllAlbums(@NonNull final Context context) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                null,
-                null,
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoAlbums(songs);
+        return MusicLibrary.getInstance(context).getAlbums(getSongLoaderSortOrder(context));
+    }
+
+    /**
+     * @return all albums from the library snapshot or null if there is no snapshot or the library is already up to date
+     */
+    @Nullable
+    public static ArrayList<Album> getAllAlbumsFromSnapshot(@NonNull final Context context) {
+        return MusicLibrary.getInstance(context).getAlbumsFromSnapshot(getSongLoaderSortOrder(context));
     }
 
     @NonNull
@@ -52,20 +54,22 @@ public class AlbumLoader {
     public static ArrayList<Album> splitIntoAlbums(@Nullable final ArrayList<Song> songs) {
         ArrayList<Album> albums = new ArrayList<>();
         if (songs != null) {
+            // album id -> index in albums, keeps the order in which the albums first appear in songs
+            IntIntHashMap albumIndices = new IntIntHashMap();
             for (Song song : songs) {
-                getOrCreateAlbum(albums, song.albumId).songs.add(song);
+                getOrCreateAlbum(albums, albumIndices, song.albumId).songs.add(song);
             }
         }
         return albums;
     }
 
-    private static Album getOrCreateAlbum(ArrayList<Album> albums, int albumId) {
-        for (Album album : albums) {
-            if (!album.songs.isEmpty() && album.songs.get(0).albumId == albumId) {
-                return album;
-            }
+    private static Album getOrCreateAlbum(ArrayList<Album> albums, IntIntHashMap albumIndices, int albumId) {
+        int index = albumIndices.get(albumId, -1);
+        if (index >= 0) {
+            return albums.get(index);
         }
         Album album = new Album();
+        albumIndices.put(albumId, albums.size());
         albums.add(album);
         return album;
     }
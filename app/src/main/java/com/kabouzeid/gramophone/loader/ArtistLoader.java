@@ -5,6 +5,7 @@ import android.provider.MediaStore.Audio.AudioColumns;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.model.Artist;
 import com.kabouzeid.gramophone.model.Song;
@@ -22,13 +23,15 @@ public class ArtistLoader {
 
     @NonNull
     public static ArrayList<Artist> getAllArtists(@NonNull final Context context) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                null,
-                null,
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoArtists(AlbumLoader.splitIntoAlbums(songs));
+        return MusicLibrary.getInstance(context).getArtists(getSongLoaderSortOrder(context));
+    }
+
+    /**
+     * @return all artists from the library snapshot or null if there is no snapshot or the library is already up to date
+     */
+    @Nullable
+    public static ArrayList<Artist> getAllArtistsFromSnapshot(@NonNull final Context context) {
+        return MusicLibrary.getInstance(context).getArtistsFromSnapshot(getSongLoaderSortOrder(context));
     }
 
     @NonNull
@@ -57,21 +60,23 @@ public class ArtistLoader {
     public static ArrayList<Artist> splitIntoArtists(@Nullable final ArrayList<Album> albums) {
         ArrayList<Artist> artists = new ArrayList<>();
         if (albums != null) {
+            // artist id -> index in artists, keeps the order in which the artists first appear in albums
+            IntIntHashMap artistIndices = new IntIntHashMap();
             for (Album album : albums) {
-                getOrCreateArtist(artists, album.getArtistId()).albums.add(album);
+                getOrCreateArtist(artists, artistIndices, album.getArtistId()).albums.add(album);
             }
         }
         return artists;
     }
 
-    private static Artist getOrCreateArtist(ArrayList<Artist> artists, int artistId) {
-        for (Artist artist : artists) {
-            if (!artist.albums.isEmpty() && !artist.albums.get(0).songs.isEmpty() && artist.albums.get(0).songs.get(0).artistId == artistId) {
-                return artist;
-            }
+    private static Artist getOrCreateArtist(ArrayList<Artist> artists, IntIntHashMap artistIndices, int artistId) {
+        int index = artistIndices.get(artistId, -1);
+        if (index >= 0) {
+            return artists.get(index);
         }
-        Artist album = new Artist();
-        artists.add(album);
-        return album;
+        Artist artist = new Artist();
+        artistIndices.put(artistId, artists.size());
+        artists.add(artist);
+        return artist;
     }
 }
@@ -0,0 +1,109 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * The songs that were added, removed or changed between two states of the {@link MusicLibrary},
+ * plus the albums and artists these songs belong (or belonged) to.
+ * <p/>
+ * All id arrays are sorted. A change set merged from several syncs may list an id in more than one category.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LibraryChangeSet {
+    public static final LibraryChangeSet EMPTY = new LibraryChangeSet(new int[0], new int[0], new int[0], new int[0], new int[0]);
+
+    @NonNull
+    public final int[] addedSongIds;
+    @NonNull
+    public final int[] removedSongIds;
+    @NonNull
+    public final int[] changedSongIds;
+    @NonNull
+    public final int[] albumIds;
+    @NonNull
+    public final int[] artistIds;
+
+    LibraryChangeSet(@NonNull int[] addedSongIds, @NonNull int[] removedSongIds, @NonNull int[] changedSongIds, @NonNull int[] albumIds, @NonNull int[] artistIds) {
+        this.addedSongIds = sortedUnique(addedSongIds);
+        this.removedSongIds = sortedUnique(removedSongIds);
+        this.changedSongIds = sortedUnique(changedSongIds);
+        this.albumIds = sortedUnique(albumIds);
+        this.artistIds = sortedUnique(artistIds);
+    }
+
+    public boolean isEmpty() {
+        return addedSongIds.length == 0 && removedSongIds.length == 0 && changedSongIds.length == 0;
+    }
+
+    public int size() {
+        return addedSongIds.length + removedSongIds.length + changedSongIds.length;
+    }
+
+    public boolean affectsSong(int songId) {
+        return Arrays.binarySearch(addedSongIds, songId) >= 0
+                || Arrays.binarySearch(removedSongIds, songId) >= 0
+                || Arrays.binarySearch(changedSongIds, songId) >= 0;
+    }
+
+    /**
+     * @return the sorted ids of all added, removed and changed songs
+     */
+    @NonNull
+    public int[] getSongIds() {
+        return sortedUnique(concat(concat(addedSongIds, removedSongIds), changedSongIds));
+    }
+
+    public boolean affectsAlbum(int albumId) {
+        return Arrays.binarySearch(albumIds, albumId) >= 0;
+    }
+
+    public boolean affectsArtist(int artistId) {
+        return Arrays.binarySearch(artistIds, artistId) >= 0;
+    }
+
+    @NonNull
+    public LibraryChangeSet merge(@NonNull LibraryChangeSet other) {
+        if (other.isEmpty()) return this;
+        if (isEmpty()) return other;
+        return new LibraryChangeSet(
+                concat(addedSongIds, other.addedSongIds),
+                concat(removedSongIds, other.removedSongIds),
+                concat(changedSongIds, other.changedSongIds),
+                concat(albumIds, other.albumIds),
+                concat(artistIds, other.artistIds));
+    }
+
+    @NonNull
+    private static int[] concat(@NonNull int[] a, @NonNull int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @NonNull
+    private static int[] sortedUnique(@NonNull int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryChangeSet{" +
+                "added=" + addedSongIds.length +
+                ", removed=" + removedSongIds.length +
+                ", changed=" + changedSongIds.length +
+                ", albums=" + albumIds.length +
+                ", artists=" + artistIds.length +
+                '}';
+    }
+}
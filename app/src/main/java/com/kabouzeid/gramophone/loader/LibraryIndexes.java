@@ -0,0 +1,246 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * The secondary indexes of the library: genres, years, decades, composers and album artists, each
+ * mapping to the ids of the songs of the {@link MusicLibrary}. Browsing by one of them only needs a
+ * lookup in memory instead of a MediaStore query.
+ * <p/>
+ * Years and decades are derived from the songs, the other indexes need one additional query for
+ * composers and album artists and one query per genre. After a sync only the changed songs are queried again.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LibraryIndexes {
+    // public as AudioColumns.ALBUM_ARTIST since API 30, but the column exists on all supported versions
+    private static final String ALBUM_ARTIST = "album_artist";
+    private static final String EXTERNAL_VOLUME = "external";
+    // stays well below SQLite's limit of 999 host parameters
+    private static final int MAX_IDS_PER_QUERY = 500;
+    // genres can only be queried song by song, for more songs querying all genres again is faster
+    private static final int MAX_SONGS_FOR_GENRE_QUERIES = 64;
+
+    @NonNull
+    public final SongIndex genres;
+    // keys are the years, e.g. "1999"
+    @NonNull
+    public final SongIndex years;
+    // keys are the first years of the decades, e.g. "1990"
+    @NonNull
+    public final SongIndex decades;
+    @NonNull
+    public final SongIndex composers;
+    // falls back to the artist for songs without album artist
+    @NonNull
+    public final SongIndex albumArtists;
+
+    private LibraryIndexes(@NonNull SongIndex genres, @NonNull SongIndex years, @NonNull SongIndex decades,
+                           @NonNull SongIndex composers, @NonNull SongIndex albumArtists) {
+        this.genres = genres;
+        this.years = years;
+        this.decades = decades;
+        this.composers = composers;
+        this.albumArtists = albumArtists;
+    }
+
+    /**
+     * @param songs the songs of the library, ordered by id
+     * @return the indexes of all songs, or null if the MediaStore could not be queried
+     */
+    @Nullable
+    @WorkerThread
+    static LibraryIndexes build(@NonNull Context context, @NonNull SongTable songs) {
+        SongIndex.Builder years = new SongIndex.Builder(SongIndex.NUMBER_DESCENDING_ORDER);
+        SongIndex.Builder decades = new SongIndex.Builder(SongIndex.NUMBER_DESCENDING_ORDER);
+        for (int row = 0; row < songs.size(); row++) {
+            addYear(songs, row, years, decades);
+        }
+
+        SongIndex.Builder composers = new SongIndex.Builder(SongIndex.TEXT_ORDER);
+        SongIndex.Builder albumArtists = new SongIndex.Builder(SongIndex.TEXT_ORDER);
+        if (!addCredits(makeCreditsCursor(context, null, null), songs, composers, albumArtists)) {
+            return null;
+        }
+
+        SongIndex.Builder genres = new SongIndex.Builder(SongIndex.TEXT_ORDER);
+        if (!addAllGenres(context, songs, genres)) {
+            return null;
+        }
+
+        return new LibraryIndexes(genres.build(), years.build(), decades.build(), composers.build(), albumArtists.build());
+    }
+
+    /**
+     * @param songs   the songs of the library after the changes, ordered by id
+     * @param changes the changes since the state these indexes were built for
+     * @return the updated indexes, or null if the MediaStore could not be queried
+     */
+    @Nullable
+    @WorkerThread
+    LibraryIndexes update(@NonNull Context context, @NonNull SongTable songs, @NonNull LibraryChangeSet changes) {
+        final int[] affected = changes.getSongIds();
+        // the rows of the affected songs that still exist, their entries are added again
+        final int[] rows = new int[affected.length];
+        int rowCount = 0;
+        for (int songId : affected) {
+            int row = songs.indexOfId(songId);
+            if (row >= 0) {
+                rows[rowCount++] = row;
+            }
+        }
+
+        SongIndex.Builder years = this.years.buildUpon(affected);
+        SongIndex.Builder decades = this.decades.buildUpon(affected);
+        for (int i = 0; i < rowCount; i++) {
+            addYear(songs, rows[i], years, decades);
+        }
+
+        SongIndex.Builder composers = this.composers.buildUpon(affected);
+        SongIndex.Builder albumArtists = this.albumArtists.buildUpon(affected);
+        for (int start = 0; start < rowCount; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(rowCount, start + MAX_IDS_PER_QUERY);
+            final StringBuilder selection = new StringBuilder(BaseColumns._ID + " IN (");
+            final String[] selectionValues = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionValues[i - start] = String.valueOf(songs.ids[rows[i]]);
+            }
+            selection.append(")");
+            if (!addCredits(makeCreditsCursor(context, selection.toString(), selectionValues), songs, composers, albumArtists)) {
+                return null;
+            }
+        }
+
+        SongIndex.Builder genres;
+        if (rowCount > MAX_SONGS_FOR_GENRE_QUERIES) {
+            genres = new SongIndex.Builder(SongIndex.TEXT_ORDER);
+            if (!addAllGenres(context, songs, genres)) {
+                return null;
+            }
+        } else {
+            genres = this.genres.buildUpon(affected);
+            for (int i = 0; i < rowCount; i++) {
+                final int songId = songs.ids[rows[i]];
+                final Cursor cursor = query(context, MediaStore.Audio.Genres.getContentUriForAudioId(EXTERNAL_VOLUME, songId),
+                        new String[]{MediaStore.Audio.Genres.NAME}, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                if (cursor.moveToFirst()) {
+                    do {
+                        genres.add(cursor.getString(0), songId);
+                    } while (cursor.moveToNext());
+                }
+                cursor.close();
+            }
+        }
+
+        return new LibraryIndexes(genres.build(), years.build(), decades.build(), composers.build(), albumArtists.build());
+    }
+
+    private static void addYear(@NonNull SongTable songs, int row, @NonNull SongIndex.Builder years, @NonNull SongIndex.Builder decades) {
+        final int year = songs.years[row];
+        if (year > 0) {
+            years.add(String.valueOf(year), songs.ids[row]);
+            decades.add(String.valueOf(year / 10 * 10), songs.ids[row]);
+        }
+    }
+
+    private static boolean addCredits(@Nullable Cursor cursor, @NonNull SongTable songs, @NonNull SongIndex.Builder composers, @NonNull SongIndex.Builder albumArtists) {
+        if (cursor == null) {
+            return false;
+        }
+        if (cursor.moveToFirst()) {
+            do {
+                final int songId = cursor.getInt(0);
+                final int row = songs.indexOfId(songId);
+                if (row < 0) {
+                    // added after the songs were synced, the next sync adds it
+                    continue;
+                }
+                composers.add(cursor.getString(1), songId);
+                final String albumArtist = cursor.getString(2);
+                albumArtists.add(albumArtist == null || albumArtist.trim().isEmpty() ? songs.getArtistName(row) : albumArtist, songId);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return true;
+    }
+
+    private static boolean addAllGenres(@NonNull Context context, @NonNull SongTable songs, @NonNull SongIndex.Builder genres) {
+        final Cursor cursor = query(context, MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                new String[]{BaseColumns._ID, MediaStore.Audio.Genres.NAME}, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        final long[] genreIds = new long[cursor.getCount()];
+        final String[] names = new String[cursor.getCount()];
+        if (cursor.moveToFirst()) {
+            do {
+                genreIds[cursor.getPosition()] = cursor.getLong(0);
+                names[cursor.getPosition()] = cursor.getString(1);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+
+        for (int i = 0; i < genreIds.length; i++) {
+            final Cursor members = query(context, MediaStore.Audio.Genres.Members.getContentUri(EXTERNAL_VOLUME, genreIds[i]),
+                    new String[]{MediaStore.Audio.Genres.Members.AUDIO_ID}, null, null);
+            if (members == null) {
+                return false;
+            }
+            if (members.moveToFirst()) {
+                do {
+                    final int songId = members.getInt(0);
+                    // the members include songs that are no music, e.g. ringtones
+                    if (songs.indexOfId(songId) >= 0) {
+                        genres.add(names[i], songId);
+                    }
+                } while (members.moveToNext());
+            }
+            members.close();
+        }
+        return true;
+    }
+
+    @Nullable
+    private static Cursor makeCreditsCursor(@NonNull Context context, @Nullable String selection, @Nullable String[] selectionValues) {
+        return query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{
+                        BaseColumns._ID,// 0
+                        AudioColumns.COMPOSER,// 1
+                        ALBUM_ARTIST,// 2
+                },
+                selection == null ? SongLoader.BASE_SELECTION : SongLoader.BASE_SELECTION + " AND " + selection,
+                selectionValues);
+    }
+
+    @Nullable
+    private static Cursor query(@NonNull Context context, @NonNull Uri uri, @NonNull String[] projection, @Nullable String selection, @Nullable String[] selectionValues) {
+        try {
+            return context.getContentResolver().query(uri, projection, selection, selectionValues, null);
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryIndexes{" +
+                "genres=" + genres.size() +
+                ", years=" + years.size() +
+                ", decades=" + decades.size() +
+                ", composers=" + composers.size() +
+                ", albumArtists=" + albumArtists.size() +
+                '}';
+    }
+}
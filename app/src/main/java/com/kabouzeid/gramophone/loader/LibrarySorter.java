@@ -0,0 +1,418 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Sorts the songs of the library in memory by the same sort orders that are used as
+ * SQL <code>ORDER BY</code> clauses for MediaStore queries (see {@link com.kabouzeid.gramophone.helper.SortOrder}).
+ * <p/>
+ * The strings are only compared once: every title, album and artist name gets a rank by its collation key
+ * ({@link MediaStore.Audio#keyFor(String)}, which follows the rules of the current locale) and by its plain
+ * value. The ranks are kept for the lifetime of the sorter, so it should live as long as its song table.
+ * A sort is then a sequence of primitive <code>long[]</code> sorts, one per column of the sort order.
+ * <p/>
+ * Ties are broken by the row in the given song table, which should be ordered by {@link BaseColumns#_ID}
+ * to match the row order SQLite falls back to.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LibrarySorter {
+    // album and artist aggregates the album and artist sort orders refer to
+    private static final String ALBUM_NUMBER_OF_SONGS = MediaStore.Audio.Albums.NUMBER_OF_SONGS;
+    private static final String ALBUM_FIRST_YEAR = MediaStore.Audio.Albums.FIRST_YEAR;
+    private static final String ARTIST_NUMBER_OF_TRACKS = MediaStore.Audio.Artists.NUMBER_OF_TRACKS;
+    private static final String ARTIST_NUMBER_OF_ALBUMS = MediaStore.Audio.Artists.NUMBER_OF_ALBUMS;
+
+    // the rank of strings that are null or not used by a sortable column
+    private static final int NULL_RANK = -1;
+    // the bits of a packed sort entry holding the position, the key goes above them
+    private static final int POSITION_BITS = 31;
+    private static final long MAX_PACKED_KEY = (1L << (63 - POSITION_BITS)) - 1;
+
+    private final SongTable songs;
+
+    // the rank of each pooled string by its collation key, computed on first use for the locale they were computed for
+    @Nullable
+    private int[] collationRanks;
+    @Nullable
+    private Locale collationLocale;
+    // the rank of each pooled string by its plain value, computed on first use
+    @Nullable
+    private int[] valueRanks;
+
+    /**
+     * @param songs the songs to sort, ordered by id
+     */
+    public LibrarySorter(@NonNull SongTable songs) {
+        this.songs = songs;
+    }
+
+    /**
+     * @return the locale the collation keys were computed for, or null if they were not computed yet
+     */
+    @Nullable
+    public synchronized Locale getCollationLocale() {
+        return collationLocale;
+    }
+
+    /**
+     * @param sortOrder a comma separated list of columns, each optionally followed by ASC or DESC
+     * @return the positions of the songs in sorted order
+     */
+    @NonNull
+    public synchronized int[] sort(@NonNull String sortOrder) {
+        final ArrayList<Term> terms = new ArrayList<>();
+        for (String clause : sortOrder.split(",")) {
+            Term term = parseTerm(clause.trim());
+            if (term != null) {
+                terms.add(term);
+            }
+        }
+
+        final int count = songs.size();
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        // least significant column first, each pass keeps the order of the previous pass for equal keys,
+        // and the first pass starts from the rows, so equal songs stay in id order
+        final long[] packed = new long[count];
+        for (int t = terms.size() - 1; t >= 0; t--) {
+            final long[] keys = terms.get(t).keys();
+            for (int position = 0; position < count; position++) {
+                packed[position] = keys[order[position]] << POSITION_BITS | position;
+            }
+            Arrays.sort(packed);
+            final int[] previous = order;
+            order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = previous[(int) (packed[i] & ((1L << POSITION_BITS) - 1))];
+            }
+        }
+        return order;
+    }
+
+    @NonNull
+    private int[] getCollationRanks() {
+        final Locale locale = Locale.getDefault();
+        if (collationRanks == null || !locale.equals(collationLocale)) {
+            final String[] keys = new String[songs.strings.length];
+            final boolean[] sortable = getSortableStrings();
+            for (int i = 0; i < keys.length; i++) {
+                if (sortable[i]) {
+                    keys[i] = MediaStore.Audio.keyFor(songs.strings[i]);
+                }
+            }
+            collationRanks = rank(keys);
+            collationLocale = locale;
+        }
+        return collationRanks;
+    }
+
+    @NonNull
+    private int[] getValueRanks() {
+        if (valueRanks == null) {
+            final String[] values = new String[songs.strings.length];
+            final boolean[] sortable = getSortableStrings();
+            for (int i = 0; i < values.length; i++) {
+                if (sortable[i]) {
+                    values[i] = songs.strings[i];
+                }
+            }
+            valueRanks = rank(values);
+        }
+        return valueRanks;
+    }
+
+    /**
+     * @return which pooled strings are used by the titles, album names or artist names, the paths don't need ranks
+     */
+    @NonNull
+    private boolean[] getSortableStrings() {
+        final boolean[] sortable = new boolean[songs.strings.length];
+        for (int row = 0; row < songs.size(); row++) {
+            if (songs.titles[row] != SongTable.NULL_STRING) sortable[songs.titles[row]] = true;
+            if (songs.albumNames[row] != SongTable.NULL_STRING) sortable[songs.albumNames[row]] = true;
+            if (songs.artistNames[row] != SongTable.NULL_STRING) sortable[songs.artistNames[row]] = true;
+        }
+        return sortable;
+    }
+
+    /**
+     * @return the rank of each string, equal strings share a rank and null strings get {@link #NULL_RANK}
+     */
+    @NonNull
+    private static int[] rank(@NonNull final String[] strings) {
+        int nonNull = 0;
+        for (String string : strings) {
+            if (string != null) nonNull++;
+        }
+        final Integer[] indices = new Integer[nonNull];
+        for (int i = 0, j = 0; i < strings.length; i++) {
+            if (strings[i] != null) indices[j++] = i;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return strings[a].compareTo(strings[b]);
+            }
+        });
+
+        final int[] ranks = new int[strings.length];
+        Arrays.fill(ranks, NULL_RANK);
+        int rank = 0;
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0 && !strings[indices[i]].equals(strings[indices[i - 1]])) {
+                rank++;
+            }
+            ranks[indices[i]] = rank;
+        }
+        return ranks;
+    }
+
+    private Term parseTerm(@NonNull String clause) {
+        if (clause.isEmpty()) return null;
+        String[] parts = clause.split("\\s+");
+        boolean descending = parts.length > 1 && parts[1].equalsIgnoreCase("DESC");
+        String column = parts[0];
+        switch (column) {
+            case BaseColumns._ID:
+                return new Term(descending) {
+                    @Override
+                    long key(int row) {
+                        return songs.ids[row];
+                    }
+                };
+            case AudioColumns.TITLE_KEY:
+                return new StringTerm(descending, true) {
+                    @Override
+                    int[] column() {
+                        return songs.titles;
+                    }
+                };
+            case AudioColumns.TITLE:
+                return new StringTerm(descending, false) {
+                    @Override
+                    int[] column() {
+                        return songs.titles;
+                    }
+                };
+            case AudioColumns.ALBUM_KEY:
+                return new StringTerm(descending, true) {
+                    @Override
+                    int[] column() {
+                        return songs.albumNames;
+                    }
+                };
+            case AudioColumns.ALBUM:
+                return new StringTerm(descending, false) {
+                    @Override
+                    int[] column() {
+                        return songs.albumNames;
+                    }
+                };
+            case AudioColumns.ARTIST_KEY:
+                return new StringTerm(descending, true) {
+                    @Override
+                    int[] column() {
+                        return songs.artistNames;
+                    }
+                };
+            case AudioColumns.ARTIST:
+                return new StringTerm(descending, false) {
+                    @Override
+                    int[] column() {
+                        return songs.artistNames;
+                    }
+                };
+            case AudioColumns.TRACK:
+                return new Term(descending) {
+                    @Override
+                    long key(int row) {
+                        return songs.trackNumbers[row];
+                    }
+                };
+            case AudioColumns.YEAR:
+                return new Term(descending) {
+                    @Override
+                    long key(int row) {
+                        return songs.years[row];
+                    }
+                };
+            case AudioColumns.DURATION:
+                return new Term(descending) {
+                    @Override
+                    long key(int row) {
+                        return songs.durations[row];
+                    }
+                };
+            case AudioColumns.DATE_MODIFIED:
+                return new Term(descending) {
+                    @Override
+                    long key(int row) {
+                        return songs.datesModified[row];
+                    }
+                };
+            case AudioColumns.DATE_ADDED:
+                return new Term(descending) {
+                    @Override
+                    long key(int row) {
+                        return songs.datesAdded[row];
+                    }
+                };
+            case ALBUM_NUMBER_OF_SONGS:
+                return new AggregateTerm(descending, false) {
+                    @Override
+                    int combine(int aggregate, int row, boolean first) {
+                        return aggregate + 1;
+                    }
+                };
+            case ALBUM_FIRST_YEAR:
+                return new AggregateTerm(descending, false) {
+                    @Override
+                    int combine(int aggregate, int row, boolean first) {
+                        return first ? songs.years[row] : Math.min(aggregate, songs.years[row]);
+                    }
+                };
+            case ARTIST_NUMBER_OF_TRACKS:
+                return new AggregateTerm(descending, true) {
+                    @Override
+                    int combine(int aggregate, int row, boolean first) {
+                        return aggregate + 1;
+                    }
+                };
+            case ARTIST_NUMBER_OF_ALBUMS:
+                return new ArtistAlbumCountTerm(descending);
+            default:
+                // unknown columns can't influence the order
+                return null;
+        }
+    }
+
+    private abstract class Term {
+        final boolean descending;
+
+        Term(boolean descending) {
+            this.descending = descending;
+        }
+
+        abstract long key(int row);
+
+        /**
+         * @return the sort key of every row, small enough to be packed with a position and already inverted if descending
+         */
+        @NonNull
+        long[] keys() {
+            final int count = songs.size();
+            final long[] keys = new long[count];
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int row = 0; row < count; row++) {
+                keys[row] = key(row);
+                min = Math.min(min, keys[row]);
+                max = Math.max(max, keys[row]);
+            }
+            if (count == 0) return keys;
+
+            if (max - min >= 0 && max - min <= MAX_PACKED_KEY) {
+                for (int row = 0; row < count; row++) {
+                    keys[row] = descending ? max - keys[row] : keys[row] - min;
+                }
+            } else {
+                // too far apart (e.g. bogus durations), replace the keys by their rank among the distinct keys
+                final long[] distinct = keys.clone();
+                Arrays.sort(distinct);
+                int distinctCount = 0;
+                for (int i = 0; i < count; i++) {
+                    if (i == 0 || distinct[i] != distinct[i - 1]) {
+                        distinct[distinctCount++] = distinct[i];
+                    }
+                }
+                for (int row = 0; row < count; row++) {
+                    int rank = Arrays.binarySearch(distinct, 0, distinctCount, keys[row]);
+                    keys[row] = descending ? distinctCount - 1 - rank : rank;
+                }
+            }
+            return keys;
+        }
+    }
+
+    private abstract class StringTerm extends Term {
+        private final int[] column;
+        private final int[] ranks;
+
+        /**
+         * @param key whether to compare the MediaStore sort keys instead of the plain values
+         */
+        StringTerm(boolean descending, boolean key) {
+            super(descending);
+            column = column();
+            ranks = key ? getCollationRanks() : getValueRanks();
+        }
+
+        abstract int[] column();
+
+        @Override
+        long key(int row) {
+            // SQLite sorts NULL first, NULL_RANK is below all ranks
+            return column[row] == SongTable.NULL_STRING ? NULL_RANK : ranks[column[row]];
+        }
+    }
+
+    private abstract class AggregateTerm extends Term {
+        private final IntIntHashMap aggregates = new IntIntHashMap();
+        private final boolean byArtist;
+
+        AggregateTerm(boolean descending, boolean byArtist) {
+            super(descending);
+            this.byArtist = byArtist;
+            for (int row = 0; row < songs.size(); row++) {
+                int groupId = groupId(row);
+                boolean first = !aggregates.containsKey(groupId);
+                aggregates.put(groupId, combine(aggregates.get(groupId, 0), row, first));
+            }
+        }
+
+        private int groupId(int row) {
+            return byArtist ? songs.artistIds[row] : songs.albumIds[row];
+        }
+
+        abstract int combine(int aggregate, int row, boolean first);
+
+        @Override
+        long key(int row) {
+            return aggregates.get(groupId(row), 0);
+        }
+    }
+
+    private class ArtistAlbumCountTerm extends Term {
+        private final IntIntHashMap albumCounts = new IntIntHashMap();
+
+        ArtistAlbumCountTerm(boolean descending) {
+            super(descending);
+            IntIntHashMap seenAlbums = new IntIntHashMap();
+            for (int row = 0; row < songs.size(); row++) {
+                if (!seenAlbums.containsKey(songs.albumIds[row])) {
+                    seenAlbums.put(songs.albumIds[row], 1);
+                    albumCounts.increment(songs.artistIds[row], 1);
+                }
+            }
+        }
+
+        @Override
+        long key(int row) {
+            return albumCounts.get(songs.artistIds[row], 0);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Brings an id ordered table of songs up to date with the MediaStore without re-parsing every row.
+ * <p/>
+ * Only the rows whose {@link AudioColumns#DATE_MODIFIED} or {@link AudioColumns#DATE_ADDED} lie past the
+ * watermark of the current songs are fetched in full. A second, light query of all ids and modification dates
+ * is diffed against the current songs to find removed songs and songs that changed without passing the
+ * watermark (e.g. because of a restored backup), which are then fetched by id.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+class LibrarySync {
+    // stays well below SQLite's limit of 999 host parameters
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final Context context;
+
+    LibrarySync(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @param songs the current songs, ordered by id
+     * @return the synced songs, or null if the MediaStore could not be queried
+     */
+    @Nullable
+    Result sync(@NonNull SongTable songs) {
+        final long watermark = getWatermark(songs);
+
+        final HashMap<Integer, Row> fetched = new HashMap<>();
+        final String watermarkSelection = "(" + AudioColumns.DATE_MODIFIED + ">? OR " + AudioColumns.DATE_ADDED + ">?)";
+        final String watermarkValue = String.valueOf(watermark);
+        if (!fetchRows(SongLoader.makeSongCursor(context, watermarkSelection, new String[]{watermarkValue, watermarkValue}, BaseColumns._ID), fetched)) {
+            return null;
+        }
+
+        final Cursor cursor = makeIdCursor();
+        if (cursor == null) {
+            return null;
+        }
+        final int count = cursor.getCount();
+        final int[] ids = new int[count];
+        final long[] datesModified = new long[count];
+        if (cursor.moveToFirst()) {
+            do {
+                ids[cursor.getPosition()] = cursor.getInt(0);
+                datesModified[cursor.getPosition()] = cursor.getLong(1);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+
+        // both lists are ordered by id, so a single merge walk finds all differences
+        final IdList added = new IdList();
+        final IdList removed = new IdList();
+        final IdList changed = new IdList();
+        final IdList missing = new IdList();
+        int i = 0;
+        int j = 0;
+        while (i < songs.size() || j < count) {
+            final int currentId = i < songs.size() ? songs.ids[i] : Integer.MAX_VALUE;
+            final int storeId = j < count ? ids[j] : Integer.MAX_VALUE;
+            if (i < songs.size() && (j >= count || currentId < storeId)) {
+                removed.add(currentId);
+                i++;
+            } else if (j < count && (i >= songs.size() || storeId < currentId)) {
+                added.add(storeId);
+                if (!fetched.containsKey(storeId)) missing.add(storeId);
+                j++;
+            } else {
+                final Row row = fetched.get(storeId);
+                if (row != null) {
+                    if (!row.song.equals(songs.getSong(i)) || row.dateAdded != songs.datesAdded[i]) {
+                        changed.add(storeId);
+                    }
+                } else if (datesModified[j] != songs.datesModified[i]) {
+                    changed.add(storeId);
+                    missing.add(storeId);
+                }
+                i++;
+                j++;
+            }
+        }
+
+        for (int start = 0; start < missing.size; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(missing.size, start + MAX_IDS_PER_QUERY);
+            if (!fetchRows(makeSongCursorForIds(missing.ids, start, end), fetched)) {
+                return null;
+            }
+        }
+
+        final SongTable.Builder syncedSongs = new SongTable.Builder(songs, count);
+        final IdList albumIds = new IdList();
+        final IdList artistIds = new IdList();
+        i = 0;
+        for (j = 0; j < count; j++) {
+            while (i < songs.size() && songs.ids[i] < ids[j]) {
+                // removed
+                albumIds.add(songs.albumIds[i]);
+                artistIds.add(songs.artistIds[i]);
+                i++;
+            }
+            final boolean known = i < songs.size() && songs.ids[i] == ids[j];
+            final Row row = fetched.get(ids[j]);
+            if (known && row != null && changed.contains(ids[j])) {
+                albumIds.add(songs.albumIds[i]);
+                artistIds.add(songs.artistIds[i]);
+                addRow(row, syncedSongs, albumIds, artistIds);
+            } else if (known) {
+                // unchanged, or its row could not be fetched anymore, in that case the next sync catches up
+                changed.remove(ids[j]);
+                syncedSongs.add(songs, i);
+            } else if (row != null) {
+                addRow(row, syncedSongs, albumIds, artistIds);
+            } else {
+                // vanished between the queries, the next sync catches up
+                added.remove(ids[j]);
+            }
+            if (known) i++;
+        }
+        while (i < songs.size()) {
+            albumIds.add(songs.albumIds[i]);
+            artistIds.add(songs.artistIds[i]);
+            i++;
+        }
+
+        final LibraryChangeSet changes = new LibraryChangeSet(added.toArray(), removed.toArray(), changed.toArray(), albumIds.toArray(), artistIds.toArray());
+        return new Result(syncedSongs.build(), changes);
+    }
+
+    private static void addRow(@NonNull Row row, @NonNull SongTable.Builder songs, @NonNull IdList albumIds, @NonNull IdList artistIds) {
+        songs.add(row.song, row.dateAdded);
+        albumIds.add(row.song.albumId);
+        artistIds.add(row.song.artistId);
+    }
+
+    private static long getWatermark(@NonNull SongTable songs) {
+        long watermark = 0;
+        for (int i = 0; i < songs.size(); i++) {
+            watermark = Math.max(watermark, Math.max(songs.datesModified[i], songs.datesAdded[i]));
+        }
+        return watermark;
+    }
+
+    private static boolean fetchRows(@Nullable Cursor cursor, @NonNull HashMap<Integer, Row> rows) {
+        if (cursor == null) {
+            return false;
+        }
+        if (cursor.moveToFirst()) {
+            do {
+                final Song song = SongLoader.getSongFromCursorImpl(cursor);
+                rows.put(song.id, new Row(song, SongLoader.getDateAddedFromCursor(cursor)));
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return true;
+    }
+
+    @Nullable
+    private Cursor makeIdCursor() {
+        try {
+            return context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String[]{
+                            BaseColumns._ID,// 0
+                            AudioColumns.DATE_MODIFIED,// 1
+                    }, SongLoader.BASE_SELECTION, null, BaseColumns._ID);
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private Cursor makeSongCursorForIds(@NonNull int[] ids, int start, int end) {
+        final StringBuilder selection = new StringBuilder(BaseColumns._ID + " IN (");
+        final String[] selectionValues = new String[end - start];
+        for (int i = start; i < end; i++) {
+            selection.append(i == start ? "?" : ",?");
+            selectionValues[i - start] = String.valueOf(ids[i]);
+        }
+        selection.append(")");
+        return SongLoader.makeSongCursor(context, selection.toString(), selectionValues, BaseColumns._ID);
+    }
+
+    static class Result {
+        @NonNull
+        final SongTable songs;
+        @NonNull
+        final LibraryChangeSet changes;
+
+        Result(@NonNull SongTable songs, @NonNull LibraryChangeSet changes) {
+            this.songs = songs;
+            this.changes = changes;
+        }
+    }
+
+    private static class Row {
+        final Song song;
+        final long dateAdded;
+
+        Row(Song song, long dateAdded) {
+            this.song = song;
+            this.dateAdded = dateAdded;
+        }
+    }
+
+    /**
+     * Ids collected in ascending order during the merge walk.
+     */
+    private static class IdList {
+        int[] ids = new int[16];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                size--;
+            }
+        }
+
+        @NonNull
+        int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An immutable full text index over the lyrics embedded in the tags of the songs.
+ * <p/>
+ * The lyrics are split into tokens like by {@link SearchIndex#tokenize(String)}. Per song the index keeps the
+ * date the file was modified when its lyrics were read, so only new and changed files have to be read again,
+ * and the tokens of the lyrics joined by spaces and compressed with {@link Deflater}. Every token maps to the
+ * ascending ids of the songs whose lyrics contain it, stored as delta encoded varints. A phrase query intersects
+ * the postings of its tokens, rarest first, and then only decompresses the tokens of the remaining songs to
+ * check that the tokens of the phrase follow each other.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LyricsIndex {
+    public static final LyricsIndex EMPTY = new LyricsIndex(new int[0], new long[0], new byte[0][], new String[0], new byte[0][]);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NO_TEXT = new byte[0];
+    // the lyrics of at most this many candidates are decompressed per phrase query
+    private static final int MAX_CANDIDATES_TO_CHECK = 500;
+
+    // ascending
+    @NonNull
+    public final int[] songIds;
+    @NonNull
+    public final long[] datesModified;
+    // the tokens of the lyrics joined by spaces as deflated UTF-8, empty for songs without lyrics
+    @NonNull
+    public final byte[][] texts;
+    // all distinct tokens in ascending order, and the ascending ids of the songs that contain them as delta varints
+    @NonNull
+    public final String[] tokens;
+    @NonNull
+    public final byte[][] postings;
+
+    public LyricsIndex(@NonNull int[] songIds, @NonNull long[] datesModified, @NonNull byte[][] texts,
+                       @NonNull String[] tokens, @NonNull byte[][] postings) {
+        this.songIds = songIds;
+        this.datesModified = datesModified;
+        this.texts = texts;
+        this.tokens = tokens;
+        this.postings = postings;
+    }
+
+    /**
+     * @return the number of indexed songs, including the songs without lyrics
+     */
+    public int size() {
+        return songIds.length;
+    }
+
+    /**
+     * @return whether the lyrics of the song were read from the file as it is now
+     */
+    public boolean isIndexed(int songId, long dateModified) {
+        final int index = Arrays.binarySearch(songIds, songId);
+        return index >= 0 && datesModified[index] == dateModified;
+    }
+
+    /**
+     * @return the tokens of the lyrics of the song joined by spaces, or null if the song has no lyrics or is not indexed
+     */
+    @Nullable
+    String getText(int songId) {
+        final int index = Arrays.binarySearch(songIds, songId);
+        if (index < 0 || texts[index].length == 0) {
+            return null;
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            final byte[][] buffer = {new byte[texts[index].length * 4]};
+            final int length = inflate(inflater, texts[index], buffer);
+            return length < 0 ? null : new String(buffer[0], 0, length, UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Finds the songs whose lyrics contain the tokens of the phrase in the same order, the last token of the
+     * phrase may also be the start of a token.
+     *
+     * @param limit the maximum number of songs to return
+     * @return the ascending ids of the matching songs
+     */
+    @NonNull
+    public int[] search(@NonNull String phrase, int limit) {
+        final ArrayList<String> phraseTokens = SearchIndex.tokenize(phrase);
+        if (phraseTokens.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+
+        final int[][] ids = new int[phraseTokens.size()][];
+        for (int i = 0; i < phraseTokens.size(); i++) {
+            final String phraseToken = phraseTokens.get(i);
+            if (i == phraseTokens.size() - 1) {
+                ids[i] = unionOfPostings(lowerBound(phraseToken), lowerBound(phraseToken + Character.MAX_VALUE));
+            } else {
+                final int token = Arrays.binarySearch(tokens, phraseToken);
+                ids[i] = token < 0 ? new int[0] : decode(postings[token]);
+            }
+        }
+        // the rarest tokens first, every intersection is at most as long as the shorter list
+        Arrays.sort(ids, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a.length - b.length;
+            }
+        });
+        int[] candidates = ids[0];
+        for (int i = 1; i < ids.length && candidates.length > 0; i++) {
+            candidates = intersect(candidates, ids[i]);
+        }
+        if (phraseTokens.size() == 1 || candidates.length == 0) {
+            return candidates.length <= limit ? candidates : Arrays.copyOf(candidates, limit);
+        }
+
+        final byte[] phraseBytes = join(phraseTokens).getBytes(UTF_8);
+        final int[] matches = new int[Math.min(limit, candidates.length)];
+        int count = 0;
+        final Inflater inflater = new Inflater();
+        final byte[][] buffer = {new byte[4096]};
+        try {
+            for (int i = 0; i < candidates.length && i < MAX_CANDIDATES_TO_CHECK && count < matches.length; i++) {
+                inflater.reset();
+                final int length = inflate(inflater, texts[Arrays.binarySearch(songIds, candidates[i])], buffer);
+                if (length >= 0 && containsPhrase(buffer[0], length, phraseBytes)) {
+                    matches[count++] = candidates[i];
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    @NonNull
+    public Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return whether the phrase starts at the start of a token of the text, it may end within a token
+     */
+    private static boolean containsPhrase(@NonNull byte[] text, int length, @NonNull byte[] phrase) {
+        for (int start = 0; start + phrase.length <= length; start++) {
+            if (start > 0 && text[start - 1] != ' ') {
+                continue;
+            }
+            int i = 0;
+            while (i < phrase.length && text[start + i] == phrase[i]) {
+                i++;
+            }
+            if (i == phrase.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private static String join(@NonNull ArrayList<String> tokens) {
+        final StringBuilder joined = new StringBuilder();
+        for (String token : tokens) {
+            if (joined.length() > 0) joined.append(' ');
+            joined.append(token);
+        }
+        return joined.toString();
+    }
+
+    @NonNull
+    private int[] unionOfPostings(int from, int to) {
+        if (to - from == 1) {
+            return decode(postings[from]);
+        }
+        // short prefixes match many tokens, sorting all ids once is cheaper than merging them one by one
+        int[] ids = new int[16];
+        int count = 0;
+        for (int token = from; token < to; token++) {
+            final int[] tokenIds = decode(postings[token]);
+            if (count + tokenIds.length > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(ids.length * 2, count + tokenIds.length));
+            }
+            System.arraycopy(tokenIds, 0, ids, count, tokenIds.length);
+            count += tokenIds.length;
+        }
+        Arrays.sort(ids, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || ids[i] != ids[unique - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, unique);
+    }
+
+    private int lowerBound(@NonNull String key) {
+        final int index = Arrays.binarySearch(tokens, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    @NonNull
+    private static int[] intersect(@NonNull int[] a, @NonNull int[] b) {
+        final int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @NonNull
+    private static int[] union(@NonNull int[] a, @NonNull int[] b) {
+        final int[] result = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[count++] = b[j++];
+            } else {
+                result[count++] = a[i++];
+                j++;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    @NonNull
+    static byte[] encode(@NonNull int[] ids, int count) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(count + 4);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = ids[i] - previous;
+            previous = ids[i];
+            while ((delta & ~0x7F) != 0) {
+                out.write((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            out.write(delta);
+        }
+        return out.toByteArray();
+    }
+
+    @NonNull
+    static int[] decode(@NonNull byte[] encoded) {
+        int[] ids = new int[encoded.length];
+        int count = 0;
+        int previous = 0;
+        for (int i = 0; i < encoded.length; ) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[i++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += delta;
+            ids[count++] = previous;
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    @NonNull
+    private static byte[] deflate(@NonNull String text) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(text.getBytes(UTF_8));
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() / 2 + 16);
+        final byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * @param buffer holds the buffer that receives the inflated bytes, it is replaced by a larger one if it is too small
+     * @return the number of inflated bytes, or -1 if the data is damaged
+     */
+    private static int inflate(@NonNull Inflater inflater, @NonNull byte[] compressed, @NonNull byte[][] buffer) {
+        inflater.setInput(compressed);
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer[0].length) {
+                    buffer[0] = Arrays.copyOf(buffer[0], Math.max(16, buffer[0].length * 2));
+                }
+                final int inflated = inflater.inflate(buffer[0], length, buffer[0].length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // truncated
+                    return -1;
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Derives a new index from an existing one, only the lyrics of the added songs are tokenized.
+     */
+    public static class Builder {
+        @NonNull
+        private final LyricsIndex base;
+        // the songs of the base to drop, because they were removed or are put again
+        @NonNull
+        private final ArrayList<Integer> droppedIds = new ArrayList<>();
+        @NonNull
+        private final TreeMap<Integer, Entry> entries = new TreeMap<>();
+
+        Builder(@NonNull LyricsIndex base) {
+            this.base = base;
+        }
+
+        @NonNull
+        public Builder remove(int songId) {
+            entries.remove(songId);
+            if (Arrays.binarySearch(base.songIds, songId) >= 0) {
+                droppedIds.add(songId);
+            }
+            return this;
+        }
+
+        /**
+         * @param lyrics the lyrics read from the file, or null if it has none
+         */
+        @NonNull
+        public Builder put(int songId, long dateModified, @Nullable String lyrics) {
+            remove(songId);
+            entries.put(songId, new Entry(dateModified, lyrics == null ? "" : lyrics));
+            return this;
+        }
+
+        public boolean hasChanges() {
+            return !droppedIds.isEmpty() || !entries.isEmpty();
+        }
+
+        @NonNull
+        public LyricsIndex build() {
+            if (!hasChanges()) {
+                return base;
+            }
+            final int[] dropped = new int[droppedIds.size()];
+            for (int i = 0; i < dropped.length; i++) {
+                dropped[i] = droppedIds.get(i);
+            }
+            Arrays.sort(dropped);
+
+            // merge the songs of the base that are kept with the new songs, both ordered by id
+            final int size = base.songIds.length - dropped.length + entries.size();
+            final int[] songIds = new int[size];
+            final long[] datesModified = new long[size];
+            final byte[][] texts = new byte[size][];
+            final HashMap<String, IdList> newPostings = new HashMap<>();
+            int count = 0;
+            int i = 0;
+            for (Integer songId : entries.keySet()) {
+                for (; i < base.songIds.length && base.songIds[i] < songId; i++) {
+                    if (Arrays.binarySearch(dropped, base.songIds[i]) < 0) {
+                        songIds[count] = base.songIds[i];
+                        datesModified[count] = base.datesModified[i];
+                        texts[count++] = base.texts[i];
+                    }
+                }
+                final Entry entry = entries.get(songId);
+                songIds[count] = songId;
+                datesModified[count] = entry.dateModified;
+                final ArrayList<String> entryTokens = SearchIndex.tokenize(entry.lyrics);
+                texts[count++] = entryTokens.isEmpty() ? NO_TEXT : deflate(join(entryTokens));
+                for (String token : new LinkedHashSet<>(entryTokens)) {
+                    IdList ids = newPostings.get(token);
+                    if (ids == null) {
+                        ids = new IdList();
+                        newPostings.put(token, ids);
+                    }
+                    // the entries are visited in id order, the ids stay sorted
+                    ids.add(songId);
+                }
+            }
+            for (; i < base.songIds.length; i++) {
+                if (Arrays.binarySearch(dropped, base.songIds[i]) < 0) {
+                    songIds[count] = base.songIds[i];
+                    datesModified[count] = base.datesModified[i];
+                    texts[count++] = base.texts[i];
+                }
+            }
+
+            final String[] newTokens = newPostings.keySet().toArray(new String[newPostings.size()]);
+            Arrays.sort(newTokens);
+            final ArrayList<String> tokens = new ArrayList<>(base.tokens.length + newTokens.length);
+            final ArrayList<byte[]> postings = new ArrayList<>(base.tokens.length + newTokens.length);
+            int j = 0;
+            i = 0;
+            while (i < base.tokens.length || j < newTokens.length) {
+                final int comparison = i == base.tokens.length ? 1 : (j == newTokens.length ? -1 : base.tokens[i].compareTo(newTokens[j]));
+                if (comparison < 0 && dropped.length == 0) {
+                    // nothing to change
+                    tokens.add(base.tokens[i]);
+                    postings.add(base.postings[i++]);
+                    continue;
+                }
+                int[] ids = comparison <= 0 ? withoutDropped(base.postings[i], dropped) : new int[0];
+                if (comparison >= 0) {
+                    final IdList newIds = newPostings.get(newTokens[j]);
+                    ids = union(ids, Arrays.copyOf(newIds.ids, newIds.size));
+                }
+                if (ids.length > 0) {
+                    tokens.add(comparison <= 0 ? base.tokens[i] : newTokens[j]);
+                    postings.add(comparison < 0 && ids.length == base.postings[i].length ? base.postings[i] : encode(ids, ids.length));
+                }
+                if (comparison <= 0) i++;
+                if (comparison >= 0) j++;
+            }
+
+            return new LyricsIndex(songIds, datesModified, texts, tokens.toArray(new String[tokens.size()]),
+                    postings.toArray(new byte[postings.size()][]));
+        }
+
+        @NonNull
+        private static int[] withoutDropped(@NonNull byte[] encoded, @NonNull int[] dropped) {
+            final int[] ids = decode(encoded);
+            if (dropped.length == 0) {
+                return ids;
+            }
+            int count = 0;
+            for (int id : ids) {
+                if (Arrays.binarySearch(dropped, id) < 0) {
+                    ids[count++] = id;
+                }
+            }
+            return count == ids.length ? ids : Arrays.copyOf(ids, count);
+        }
+    }
+
+    private static class Entry {
+        final long dateModified;
+        @NonNull
+        final String lyrics;
+
+        Entry(long dateModified, @NonNull String lyrics) {
+            this.dateModified = dateModified;
+            this.lyrics = lyrics;
+        }
+    }
+
+    private static class IdList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.os.Process;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.provider.LyricsIndexStore;
+
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.FieldKey;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the {@link LyricsIndex} of the {@link MusicLibrary} up to date in the background.
+ * <p/>
+ * The embedded lyrics of every song are read once. After that only the files of new songs and of songs
+ * whose modification date changed are read again, the index is saved in the {@link LyricsIndexStore}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LyricsIndexer {
+    public static final String TAG = LyricsIndexer.class.getSimpleName();
+
+    // the progress is published and saved after this many files, so searches see it early and a killed process doesn't start over
+    private static final int FILES_PER_SAVE = 500;
+
+    @Nullable
+    private static LyricsIndexer sInstance;
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+
+    @Nullable
+    private volatile LyricsIndex index;
+    // the generation of the library the index is up to date with, only accessed on the executor
+    private int indexedGeneration = -1;
+
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            updateScheduled.set(false);
+            update();
+        }
+    };
+
+    private LyricsIndexer(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    public static synchronized LyricsIndexer getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new LyricsIndexer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the index as far as it is built, may lack the lyrics of recently added or changed songs
+     */
+    @NonNull
+    @WorkerThread
+    public LyricsIndex getIndex() {
+        LyricsIndex index = this.index;
+        if (index == null) {
+            synchronized (this) {
+                index = this.index;
+                if (index == null) {
+                    index = LyricsIndexStore.getInstance(context).getIndex();
+                    if (index == null) {
+                        index = LyricsIndex.EMPTY;
+                    }
+                    this.index = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Schedules reading the lyrics of the songs that were added or changed since the last update.
+     */
+    public void requestUpdate() {
+        if (updateScheduled.compareAndSet(false, true)) {
+            executor.execute(update);
+        }
+    }
+
+    @WorkerThread
+    private void update() {
+        final MusicLibrary library = MusicLibrary.getInstance(context);
+        final SongTable songs;
+        final int generation;
+        // getting the table may load or sync the library, the generation must be the one of the table
+        synchronized (library) {
+            songs = library.getSongTable();
+            generation = library.getGeneration();
+        }
+        if (generation == indexedGeneration) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+
+        LyricsIndex.Builder builder = getIndex().buildUpon();
+        final int[] indexedIds = getIndex().songIds;
+        for (int songId : indexedIds) {
+            if (songs.indexOfId(songId) < 0) {
+                builder.remove(songId);
+            }
+        }
+        int readFiles = 0;
+        int unreadableFiles = 0;
+        Exception firstError = null;
+        for (int row = 0; row < songs.size(); row++) {
+            if (getIndex().isIndexed(songs.ids[row], songs.getDateModified(row))) {
+                continue;
+            }
+            String lyrics = null;
+            try {
+                lyrics = readLyrics(songs.getData(row));
+            } catch (Exception e) {
+                // not a supported format or unreadable, either way there are no lyrics to index
+                if (unreadableFiles++ == 0) {
+                    firstError = e;
+                }
+            }
+            builder.put(songs.ids[row], songs.getDateModified(row), lyrics);
+            if (++readFiles % FILES_PER_SAVE == 0) {
+                publish(builder.build());
+                builder = getIndex().buildUpon();
+            }
+        }
+        if (builder.hasChanges()) {
+            publish(builder.build());
+        }
+        indexedGeneration = generation;
+        if (readFiles > 0) {
+            Log.d(TAG, "Read the lyrics of " + readFiles + " files in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        if (unreadableFiles > 0) {
+            Log.w(TAG, "Could not read the lyrics of " + unreadableFiles + " files, the first failed with: " + firstError);
+        }
+    }
+
+    private void publish(@NonNull LyricsIndex index) {
+        this.index = index;
+        LyricsIndexStore.getInstance(context).saveIndex(index);
+    }
+
+    @Nullable
+    private static String readLyrics(@Nullable String path) throws Exception {
+        if (path == null) {
+            return null;
+        }
+        return AudioFileIO.read(new File(path)).getTagOrCreateDefault().getFirst(FieldKey.LYRICS);
+    }
+}
@@ -0,0 +1,539 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.provider.BaseColumns;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.provider.LibrarySnapshotStore;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Process wide in memory copy of all songs of the MediaStore.
+ * <p/>
+ * The songs are kept in a column oriented {@link SongTable}, {@link Song} objects are only materialized
+ * when a sorted list is requested and are dropped again under memory pressure.
+ * <p/>
+ * The songs are queried once (or restored from the {@link LibrarySnapshotStore} on a cold start) and the
+ * songs, albums and artists tabs derive their sorted views from this single copy instead of running
+ * their own MediaStore queries. Changes of the MediaStore are applied incrementally by {@link #sync()}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class MusicLibrary {
+    public static final String TAG = MusicLibrary.class.getSimpleName();
+
+    private static final String SNAPSHOT_NAME = "library";
+    // the order the songs are kept in, also the key of the snapshot
+    private static final String BASE_SORT_ORDER = BaseColumns._ID;
+    // how many change sets are kept for getChangesSince()
+    private static final int MAX_CHANGE_LOG_SIZE = 16;
+
+    @Nullable
+    private static MusicLibrary sInstance;
+
+    private final Context context;
+
+    // volatile, so peekSongById() can read it without the lock
+    @Nullable
+    private volatile SongTable songs;
+    // the songs materialized so far, by row of the table, the garbage collector may drop them at any time
+    @NonNull
+    private SoftReference<Song[]> materializedSongs = new SoftReference<>(null);
+    // whether songs reflects the MediaStore, false while the songs come from the snapshot
+    private boolean verified;
+    // whether the MediaStore was queried at least once in this process, the snapshot is useless afterwards
+    private boolean queriedMediaStore;
+
+    // sorts the songs, keeps the collation keys of the songs for all sort orders
+    @Nullable
+    private LibrarySorter sorter;
+    private final HashMap<String, int[]> sortOrderCache = new HashMap<>();
+    // built on first use and kept up to date by sync()
+    @Nullable
+    private LibraryIndexes indexes;
+    // built on first use and updated for the current songs on the next search
+    @Nullable
+    private SearchIndex searchIndex;
+
+    // incremented on every change of the songs
+    private int generation;
+    // the change sets of the last generations, oldest first, cleared when the changes are unknown
+    private final ArrayDeque<LibraryChangeSet> changeLog = new ArrayDeque<>();
+
+    private MusicLibrary(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    public static synchronized MusicLibrary getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new MusicLibrary(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return all songs in the given sort order, queries the MediaStore if the songs were not yet verified against it
+     */
+    @NonNull
+    public synchronized ArrayList<Song> getSongs(@NonNull String sortOrder) {
+        ensureVerified();
+        return getSortedSongs(sortOrder, null);
+    }
+
+    /**
+     * @return all songs of the snapshot in the given sort order, or null if the library was already verified
+     * against the MediaStore or if there is no snapshot
+     */
+    @Nullable
+    public synchronized ArrayList<Song> getSongsFromSnapshot(@NonNull String sortOrder) {
+        if (verified || !ensureLoadedFromSnapshot()) {
+            return null;
+        }
+        return getSortedSongs(sortOrder, null);
+    }
+
+    /**
+     * Like {@link #getSongs(String)}, but only materializes the songs that are accessed.
+     */
+    @NonNull
+    public synchronized PagedSongList getPagedSongs(@NonNull String sortOrder) {
+        ensureVerified();
+        //noinspection ConstantConditions
+        return new PagedSongList(songs, getOrder(sortOrder), PagedSongList.DEFAULT_PAGE_BUDGET);
+    }
+
+    /**
+     * Like {@link #getSongsFromSnapshot(String)}, but only materializes the songs that are accessed.
+     */
+    @Nullable
+    public synchronized PagedSongList getPagedSongsFromSnapshot(@NonNull String sortOrder) {
+        if (verified || !ensureLoadedFromSnapshot()) {
+            return null;
+        }
+        //noinspection ConstantConditions
+        return new PagedSongList(songs, getOrder(sortOrder), PagedSongList.DEFAULT_PAGE_BUDGET);
+    }
+
+    /**
+     * @param songIds the ids of the songs, e.g. from one of the {@link #getIndexes() indexes}
+     * @return the songs with the given ids that are in the library, in the given sort order
+     */
+    @NonNull
+    public synchronized ArrayList<Song> getSongs(@NonNull int[] songIds, @NonNull String sortOrder) {
+        ensureVerified();
+        //noinspection ConstantConditions
+        final boolean[] selected = new boolean[songs.size()];
+        for (int songId : songIds) {
+            int row = songs.indexOfId(songId);
+            if (row >= 0) {
+                selected[row] = true;
+            }
+        }
+        return getSortedSongs(sortOrder, selected);
+    }
+
+    /**
+     * Only looks at the songs that are already in memory and never waits for a load or a sync, so it is safe to
+     * call on the main thread. Callers that get null while the library is loading update again once it is loaded.
+     *
+     * @return the song with the given id, or null if it is not in the library or the library is not loaded yet
+     */
+    @Nullable
+    public Song peekSongById(int songId) {
+        final SongTable songs = this.songs;
+        if (songs == null) {
+            return null;
+        }
+        final int row = songs.indexOfId(songId);
+        return row < 0 ? null : songs.getSong(row);
+    }
+
+    /**
+     * @return all songs ordered by id, the table is immutable
+     */
+    @NonNull
+    @WorkerThread
+    public synchronized SongTable getSongTable() {
+        ensureVerified();
+        //noinspection ConstantConditions
+        return songs;
+    }
+
+    /**
+     * Like {@link #getSongTable()}, but prefers the snapshot over querying the MediaStore, so looking up many songs
+     * at once stays cheap after a cold start.
+     *
+     * @return all songs ordered by id, the table is immutable
+     */
+    @NonNull
+    public synchronized SongTable getSongTableForLookups() {
+        if (!ensureLoadedFromSnapshot()) {
+            ensureVerified();
+        }
+        //noinspection ConstantConditions
+        return songs;
+    }
+
+    /**
+     * @return the genre, year, composer and album artist indexes of the songs, or null if the MediaStore could not be queried
+     */
+    @Nullable
+    @WorkerThread
+    public synchronized LibraryIndexes getIndexes() {
+        ensureVerified();
+        if (indexes == null) {
+            long start = System.currentTimeMillis();
+            //noinspection ConstantConditions
+            indexes = LibraryIndexes.build(context, songs);
+            Log.d(TAG, "Built " + indexes + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return indexes;
+    }
+
+    /**
+     * Searches the titles, album names and artist names of the songs, see {@link SearchIndex}.
+     *
+     * @param albumSortOrder  the order of the songs of albums with the same name
+     * @param artistSortOrder the order of the songs of artists with the same name
+     * @return the matching songs, albums and artists, best match first
+     */
+    @NonNull
+    public synchronized SearchResult search(@NonNull String query, @NonNull String albumSortOrder, @NonNull String artistSortOrder) {
+        final SearchIndex searchIndex = getSearchIndex();
+        final SearchIndex.Result result = searchIndex.search(query);
+        return new SearchResult(getSongsOfTitles(searchIndex, result.titles),
+                getAlbumsOfNames(searchIndex, result.albumNames, albumSortOrder),
+                getArtistsOfNames(searchIndex, result.artistNames, artistSortOrder));
+    }
+
+    /**
+     * @return the search index of the current songs
+     */
+    @NonNull
+    public synchronized SearchIndex getSearchIndex() {
+        ensureVerified();
+        //noinspection ConstantConditions
+        searchIndex = searchIndex == null ? SearchIndex.build(songs) : searchIndex.update(songs);
+        return searchIndex;
+    }
+
+    /**
+     * @param titles the matching titles of a {@link SearchIndex.Result}
+     * @return the songs with these titles in the order of the titles
+     */
+    @NonNull
+    public synchronized ArrayList<Song> getSongsOfTitles(@NonNull SearchIndex searchIndex, @NonNull int[] titles) {
+        final ArrayList<Song> songs = new ArrayList<>();
+        for (int title : titles) {
+            for (int i = 0; i < searchIndex.getRowCount(SearchIndex.FIELD_TITLE, title); i++) {
+                songs.add(getSong(searchIndex, searchIndex.getRow(SearchIndex.FIELD_TITLE, title, i)));
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * @param rows rows of the songs of the search index, e.g. from {@link SearchIndex#rankSongs}
+     * @return the songs of these rows in the same order
+     */
+    @NonNull
+    public synchronized ArrayList<Song> getSongsOfRows(@NonNull SearchIndex searchIndex, @NonNull int[] rows) {
+        final ArrayList<Song> songs = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            songs.add(getSong(searchIndex, row));
+        }
+        return songs;
+    }
+
+    /**
+     * @param albumNames the matching album names of a {@link SearchIndex.Result}
+     * @param sortOrder  the order of the songs of albums with the same name
+     * @return the albums with these names in the order of the names
+     */
+    @NonNull
+    public synchronized ArrayList<Album> getAlbumsOfNames(@NonNull SearchIndex searchIndex, @NonNull int[] albumNames, @NonNull String sortOrder) {
+        return AlbumLoader.splitIntoAlbums(getSongsOfStrings(searchIndex, SearchIndex.FIELD_ALBUM, albumNames, sortOrder));
+    }
+
+    /**
+     * @param artistNames the matching artist names of a {@link SearchIndex.Result}
+     * @param sortOrder   the order of the songs of artists with the same name
+     * @return the artists with these names in the order of the names
+     */
+    @NonNull
+    public synchronized ArrayList<Artist> getArtistsOfNames(@NonNull SearchIndex searchIndex, @NonNull int[] artistNames, @NonNull String sortOrder) {
+        return ArtistLoader.splitIntoArtists(AlbumLoader.splitIntoAlbums(getSongsOfStrings(searchIndex, SearchIndex.FIELD_ARTIST, artistNames, sortOrder)));
+    }
+
+    @NonNull
+    public ArrayList<Album> getAlbums(@NonNull String sortOrder) {
+        return AlbumLoader.splitIntoAlbums(getSongs(sortOrder));
+    }
+
+    @Nullable
+    public ArrayList<Album> getAlbumsFromSnapshot(@NonNull String sortOrder) {
+        ArrayList<Song> songs = getSongsFromSnapshot(sortOrder);
+        return songs == null ? null : AlbumLoader.splitIntoAlbums(songs);
+    }
+
+    @NonNull
+    public ArrayList<Artist> getArtists(@NonNull String sortOrder) {
+        return ArtistLoader.splitIntoArtists(getAlbums(sortOrder));
+    }
+
+    @Nullable
+    public ArrayList<Artist> getArtistsFromSnapshot(@NonNull String sortOrder) {
+        ArrayList<Album> albums = getAlbumsFromSnapshot(sortOrder);
+        return albums == null ? null : ArtistLoader.splitIntoArtists(albums);
+    }
+
+    /**
+     * Drops the in memory songs, the next access queries the MediaStore again.
+     */
+    public synchronized void invalidate() {
+        songs = null;
+        sorter = null;
+        indexes = null;
+        searchIndex = null;
+        materializedSongs.clear();
+        verified = false;
+        sortOrderCache.clear();
+        onChanged(null);
+    }
+
+    /**
+     * Applies the changes of the MediaStore to the in memory songs, only fetching the rows that were
+     * added or changed since the last sync.
+     *
+     * @return the applied changes, or null if they are unknown (e.g. because the songs were not loaded yet)
+     */
+    @Nullable
+    @WorkerThread
+    public synchronized LibraryChangeSet sync() {
+        if (songs == null || !verified) {
+            // the next access queries the MediaStore anyway
+            invalidate();
+            return null;
+        }
+
+        LibrarySync.Result result = new LibrarySync(context).sync(songs);
+        if (result == null) {
+            invalidate();
+            return null;
+        }
+        if (!result.changes.isEmpty()) {
+            setSongs(result.songs);
+            if (indexes != null) {
+                // rebuilt on the next access if the changed songs can't be queried
+                indexes = indexes.update(context, result.songs, result.changes);
+            }
+            LibrarySnapshotStore.getInstance(context).saveSnapshot(SNAPSHOT_NAME, BASE_SORT_ORDER, result.songs);
+            onChanged(result.changes);
+        }
+        return result.changes;
+    }
+
+    /**
+     * @return the current generation of the library, it changes whenever the songs change
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param generation a generation previously returned by {@link #getGeneration()}
+     * @return all changes since the given generation, or null if they are unknown and everything has to be reloaded
+     */
+    @Nullable
+    public synchronized LibraryChangeSet getChangesSince(int generation) {
+        int behind = this.generation - generation;
+        if (behind < 0 || behind > changeLog.size()) {
+            return null;
+        }
+        LibraryChangeSet changes = LibraryChangeSet.EMPTY;
+        Iterator<LibraryChangeSet> iterator = changeLog.descendingIterator();
+        for (int i = 0; i < behind; i++) {
+            changes = changes.merge(iterator.next());
+        }
+        return changes;
+    }
+
+    /**
+     * @param changes the changes of the new generation or null if they are unknown
+     */
+    private void onChanged(@Nullable LibraryChangeSet changes) {
+        generation++;
+        if (changes == null) {
+            changeLog.clear();
+        } else {
+            changeLog.addLast(changes);
+            if (changeLog.size() > MAX_CHANGE_LOG_SIZE) {
+                changeLog.removeFirst();
+            }
+        }
+    }
+
+    private boolean ensureLoadedFromSnapshot() {
+        if (songs != null) {
+            return true;
+        }
+        if (queriedMediaStore) {
+            return false;
+        }
+        SongTable snapshot = LibrarySnapshotStore.getInstance(context).getSnapshot(SNAPSHOT_NAME, BASE_SORT_ORDER);
+        if (snapshot == null) {
+            return false;
+        }
+        setSongs(snapshot);
+        return true;
+    }
+
+    private void ensureVerified() {
+        if (verified) return;
+
+        long start = System.currentTimeMillis();
+        SongTable songs = ParallelSongLoader.load(ParallelSongLoader.fromMediaStore(context));
+        if (songs == null) {
+            // no permission to read the MediaStore
+            if (this.songs == null) {
+                setSongs(SongTable.EMPTY);
+            }
+            return;
+        }
+        Log.d(TAG, "Loaded " + songs.size() + " songs in " + (System.currentTimeMillis() - start) + " ms with " + songs.strings.length + " distinct strings, " + StringPool.getInstance());
+
+        queriedMediaStore = true;
+        verified = true;
+        if (this.songs == null || !songs.contentEquals(this.songs)) {
+            setSongs(songs);
+            indexes = null;
+            LibrarySnapshotStore.getInstance(context).saveSnapshot(SNAPSHOT_NAME, BASE_SORT_ORDER, songs);
+            onChanged(null);
+        }
+    }
+
+    private void setSongs(@NonNull SongTable songs) {
+        this.songs = songs;
+        sorter = new LibrarySorter(songs);
+        materializedSongs = new SoftReference<>(null);
+        sortOrderCache.clear();
+    }
+
+    /**
+     * @return the rows of the songs in the given sort order, must not be modified
+     */
+    @NonNull
+    private int[] getOrder(@NonNull String sortOrder) {
+        //noinspection ConstantConditions
+        final Locale collationLocale = sorter.getCollationLocale();
+        if (collationLocale != null && !collationLocale.equals(Locale.getDefault())) {
+            // the orders by collation key depend on the locale
+            sortOrderCache.clear();
+        }
+        int[] order = sortOrderCache.get(sortOrder);
+        if (order == null) {
+            order = sorter.sort(sortOrder);
+            sortOrderCache.put(sortOrder, order);
+        }
+        return order;
+    }
+
+    /**
+     * @param strings the strings of the search index field in the order of the result
+     * @return the songs of each string in turn, the songs of one string in the given sort order
+     */
+    @NonNull
+    private ArrayList<Song> getSongsOfStrings(@NonNull SearchIndex searchIndex, int field, @NonNull int[] strings, @NonNull String sortOrder) {
+        final ArrayList<Song> songs = new ArrayList<>();
+        if (strings.length == 0) {
+            return songs;
+        }
+        // the index may lag behind the library if it synced in the meantime
+        final int[] order = searchIndex.getSongs() == this.songs ? getOrder(sortOrder) : new LibrarySorter(searchIndex.getSongs()).sort(sortOrder);
+        final int[] positions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            positions[order[i]] = i;
+        }
+        for (int string : strings) {
+            final int[] stringPositions = new int[searchIndex.getRowCount(field, string)];
+            for (int i = 0; i < stringPositions.length; i++) {
+                stringPositions[i] = positions[searchIndex.getRow(field, string, i)];
+            }
+            Arrays.sort(stringPositions);
+            for (int position : stringPositions) {
+                songs.add(getSong(searchIndex, order[position]));
+            }
+        }
+        return songs;
+    }
+
+    @NonNull
+    private Song getSong(@NonNull SearchIndex searchIndex, int row) {
+        return searchIndex.getSongs() == songs ? getSong(row) : searchIndex.getSongs().getSong(row);
+    }
+
+    /**
+     * @param selected which rows to include, or null for all rows
+     */
+    @NonNull
+    private ArrayList<Song> getSortedSongs(@NonNull String sortOrder, @Nullable boolean[] selected) {
+        final int[] order = getOrder(sortOrder);
+        // a new list every time as the callers are free to modify it
+        ArrayList<Song> sorted = new ArrayList<>(order.length);
+        for (int row : order) {
+            if (selected != null && !selected[row]) continue;
+            sorted.add(getSong(row));
+        }
+        return sorted;
+    }
+
+    @NonNull
+    private Song getSong(int row) {
+        // the tabs show the same songs in different orders, they share the materialized objects as long as they are alive
+        Song[] materialized = materializedSongs.get();
+        if (materialized == null) {
+            //noinspection ConstantConditions
+            materialized = new Song[songs.size()];
+            materializedSongs = new SoftReference<>(materialized);
+        }
+        Song song = materialized[row];
+        if (song == null) {
+            //noinspection ConstantConditions
+            song = songs.getSong(row);
+            materialized[row] = song;
+        }
+        return song;
+    }
+
+    /**
+     * The songs, albums and artists matching a search.
+     */
+    public static class SearchResult {
+        @NonNull
+        public final ArrayList<Song> songs;
+        @NonNull
+        public final ArrayList<Album> albums;
+        @NonNull
+        public final ArrayList<Artist> artists;
+
+        SearchResult(@NonNull ArrayList<Song> songs, @NonNull ArrayList<Album> albums, @NonNull ArrayList<Artist> artists) {
+            this.songs = songs;
+            this.albums = albums;
+            this.artists = artists;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A read only list of songs in a given order that materializes the {@link Song} objects page by page
+ * from a {@link SongTable} as they are accessed, e.g. while the user scrolls.
+ * <p/>
+ * Only the most recently used pages are kept, so the number of {@link Song} objects held by the list is
+ * bounded by the page budget no matter how large the library is. Evicted pages are materialized again
+ * when they are accessed the next time.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class PagedSongList extends AbstractList<Song> implements RandomAccess {
+    public static final int PAGE_SIZE = 128;
+    public static final int DEFAULT_PAGE_BUDGET = 16;
+
+    private final SongTable table;
+    private final int[] rows;
+    private final LinkedHashMap<Integer, Song[]> pages;
+
+    /**
+     * @param table      the table to materialize the songs from
+     * @param rows       the rows of the table in list order
+     * @param pageBudget the maximal number of pages to keep materialized
+     */
+    public PagedSongList(@NonNull SongTable table, @NonNull int[] rows, final int pageBudget) {
+        this.table = table;
+        this.rows = rows;
+        // access ordered, so the eldest entry is the least recently used page
+        this.pages = new LinkedHashMap<Integer, Song[]>(pageBudget * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Song[]> eldest) {
+                return size() > pageBudget;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Song get(int position) {
+        if (position < 0 || position >= rows.length) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + rows.length);
+        }
+        final int page = position / PAGE_SIZE;
+        Song[] songs = pages.get(page);
+        if (songs == null) {
+            songs = materializePage(page);
+            pages.put(page, songs);
+        }
+        return songs[position % PAGE_SIZE];
+    }
+
+    @Override
+    public int size() {
+        return rows.length;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Song)) return -1;
+        final Song song = (Song) o;
+        // compare the ids first to avoid materializing every page
+        for (int i = 0; i < rows.length; i++) {
+            if (table.ids[rows[i]] == song.id && song.equals(get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        if (!(o instanceof Song)) return -1;
+        final Song song = (Song) o;
+        for (int i = rows.length - 1; i >= 0; i--) {
+            if (table.ids[rows[i]] == song.id && song.equals(get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @NonNull
+    private Song[] materializePage(int page) {
+        final int start = page * PAGE_SIZE;
+        final Song[] songs = new Song[Math.min(PAGE_SIZE, rows.length - start)];
+        for (int i = 0; i < songs.length; i++) {
+            songs[i] = table.getSong(rows[start + i]);
+        }
+        return songs;
+    }
+}
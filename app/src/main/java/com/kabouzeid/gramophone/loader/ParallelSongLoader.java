@@ -0,0 +1,221 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads all songs of the MediaStore into a {@link SongTable} using all cores.
+ * <p/>
+ * The id space is split into contiguous ranges of about the same number of songs. Each range is queried
+ * and decoded into its own buffer on the executor, the buffers are then merged in id order. As the
+ * ranges are open ended at both ends, songs added between the queries are not lost.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class ParallelSongLoader {
+    public static final String TAG = ParallelSongLoader.class.getSimpleName();
+
+    static final int EXECUTOR_THREADS = Runtime.getRuntime().availableProcessors();
+    static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(EXECUTOR_THREADS);
+
+    // below this many songs per range the additional queries cost more than they save
+    private static final int MIN_SONGS_PER_RANGE = 2000;
+
+    /**
+     * Where the songs come from, the MediaStore unless benchmarked.
+     */
+    public interface Source {
+        /**
+         * @return a cursor with the projection of {@link SongLoader#makeSongCursor(Context, String, String[], String)}
+         * ordered by id, or null if the songs can't be queried
+         */
+        @Nullable
+        Cursor querySongs(@Nullable String selection, @Nullable String[] selectionValues);
+
+        /**
+         * @return a cursor with only the ids of the songs, ordered by id, or null if the songs can't be queried
+         */
+        @Nullable
+        Cursor queryIds();
+    }
+
+    @NonNull
+    public static Source fromMediaStore(@NonNull final Context context) {
+        return new Source() {
+            @Nullable
+            @Override
+            public Cursor querySongs(@Nullable String selection, @Nullable String[] selectionValues) {
+                return SongLoader.makeSongCursor(context, selection, selectionValues, BaseColumns._ID);
+            }
+
+            @Nullable
+            @Override
+            public Cursor queryIds() {
+                try {
+                    return context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                            new String[]{BaseColumns._ID}, SongLoader.BASE_SELECTION, null, BaseColumns._ID);
+                } catch (SecurityException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return all songs ordered by id, or null if they can't be queried
+     */
+    @Nullable
+    public static SongTable load(@NonNull Source source) {
+        return load(source, EXECUTOR_THREADS);
+    }
+
+    /**
+     * @param maxRanges the maximal number of ranges to decode in parallel
+     * @return all songs ordered by id, or null if they can't be queried
+     */
+    @Nullable
+    public static SongTable load(@NonNull Source source, int maxRanges) {
+        int[] ids = queryIds(source);
+        if (ids == null) {
+            return null;
+        }
+        int ranges = Math.min(maxRanges, ids.length / MIN_SONGS_PER_RANGE);
+        if (ranges <= 1) {
+            return loadSequential(source);
+        }
+
+        List<RangeTask> tasks = new ArrayList<>(ranges);
+        for (int i = 0; i < ranges; i++) {
+            // the first range has no lower and the last range no upper bound
+            Integer from = i == 0 ? null : ids[(int) ((long) ids.length * i / ranges)];
+            Integer to = i == ranges - 1 ? null : ids[(int) ((long) ids.length * (i + 1) / ranges)];
+            tasks.add(new RangeTask(source, from, to));
+        }
+
+        try {
+            List<Future<Range>> futures = EXECUTOR.invokeAll(tasks);
+            SongTable.Builder builder = new SongTable.Builder(ids.length);
+            for (Future<Range> future : futures) {
+                Range range = future.get();
+                if (range == null) {
+                    return null;
+                }
+                for (int i = 0; i < range.songs.size(); i++) {
+                    builder.add(range.songs.get(i), range.datesAdded[i]);
+                }
+            }
+            return builder.build();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.w(TAG, "Parallel loading failed, loading sequentially", e);
+            return loadSequential(source);
+        }
+    }
+
+    /**
+     * @return all songs ordered by id decoded from a single cursor on the calling thread, or null if they can't be queried
+     */
+    @Nullable
+    public static SongTable loadSequential(@NonNull Source source) {
+        Range range = decode(source.querySongs(null, null));
+        if (range == null) {
+            return null;
+        }
+        SongTable.Builder builder = new SongTable.Builder(range.songs.size());
+        for (int i = 0; i < range.songs.size(); i++) {
+            builder.add(range.songs.get(i), range.datesAdded[i]);
+        }
+        return builder.build();
+    }
+
+    @Nullable
+    private static int[] queryIds(@NonNull Source source) {
+        Cursor cursor = source.queryIds();
+        if (cursor == null) {
+            return null;
+        }
+        int[] ids = new int[cursor.getCount()];
+        if (cursor.moveToFirst()) {
+            do {
+                ids[cursor.getPosition()] = cursor.getInt(0);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return ids;
+    }
+
+    @Nullable
+    private static Range decode(@Nullable Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        Range range = new Range(cursor.getCount());
+        if (cursor.moveToFirst()) {
+            do {
+                range.songs.add(SongLoader.getSongFromCursorImpl(cursor));
+                range.datesAdded[cursor.getPosition()] = SongLoader.getDateAddedFromCursor(cursor);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return range;
+    }
+
+    private static class Range {
+        final ArrayList<Song> songs;
+        final long[] datesAdded;
+
+        Range(int count) {
+            songs = new ArrayList<>(count);
+            datesAdded = new long[count];
+        }
+    }
+
+    private static class RangeTask implements Callable<Range> {
+        private final Source source;
+        @Nullable
+        private final Integer from;
+        @Nullable
+        private final Integer to;
+
+        /**
+         * @param from the first id of the range, or null for no lower bound
+         * @param to   the first id after the range, or null for no upper bound
+         */
+        RangeTask(@NonNull Source source, @Nullable Integer from, @Nullable Integer to) {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Range call() {
+            String selection;
+            String[] selectionValues;
+            if (from == null) {
+                selection = BaseColumns._ID + "<?";
+                selectionValues = new String[]{String.valueOf(to)};
+            } else if (to == null) {
+                selection = BaseColumns._ID + ">=?";
+                selectionValues = new String[]{String.valueOf(from)};
+            } else {
+                selection = BaseColumns._ID + ">=? AND " + BaseColumns._ID + "<?";
+                selectionValues = new String[]{String.valueOf(from), String.valueOf(to)};
+            }
+            return decode(source.querySongs(selection, selectionValues));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.database.Cursor;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.provider.HistoryStore;
+import com.kabouzeid.gramophone.provider.SongPlayCountStore;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of how much and how recently the user listened to each song, used to rank search results.
+ * <p/>
+ * Every played song gets a boost between 0 and 1: up to {@link #PLAY_COUNT_WEIGHT} from its play count score
+ * in the {@link SongPlayCountStore}, which saturates after a few plays, plus up to {@link #RECENCY_WEIGHT} if it
+ * is in the {@link HistoryStore}, halving every {@link #RECENCY_HALF_LIFE_MILLIS}. Songs that were never played
+ * have no boost.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class PlayStatistics {
+    public static final PlayStatistics EMPTY = new PlayStatistics(new int[0], new float[0]);
+
+    private static final float PLAY_COUNT_WEIGHT = 0.6f;
+    private static final float RECENCY_WEIGHT = 0.35f;
+    // the play count score at which half of the play count weight is reached, a play this week scores about 75
+    private static final float HALF_PLAY_COUNT_SCORE = 250f;
+    private static final long RECENCY_HALF_LIFE_MILLIS = 1000L * 60 * 60 * 24 * 3;
+
+    // ascending
+    @NonNull
+    private final int[] songIds;
+    @NonNull
+    private final float[] boosts;
+
+    PlayStatistics(@NonNull int[] songIds, @NonNull float[] boosts) {
+        this.songIds = songIds;
+        this.boosts = boosts;
+    }
+
+    @NonNull
+    @WorkerThread
+    public static PlayStatistics load(@NonNull Context context) {
+        final IntIntHashMap indexes = new IntIntHashMap();
+        int[] songIds = new int[64];
+        float[] boosts = new float[64];
+        int count = 0;
+
+        Cursor cursor = SongPlayCountStore.getInstance(context).getPlayCountScores();
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    if (count == songIds.length) {
+                        songIds = Arrays.copyOf(songIds, count * 2);
+                        boosts = Arrays.copyOf(boosts, count * 2);
+                    }
+                    final float score = cursor.getFloat(1);
+                    indexes.put((int) cursor.getLong(0), count);
+                    songIds[count] = (int) cursor.getLong(0);
+                    boosts[count++] = PLAY_COUNT_WEIGHT * score / (score + HALF_PLAY_COUNT_SCORE);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        cursor = HistoryStore.getInstance(context).queryRecentIdsAndTimesPlayed();
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    final int songId = (int) cursor.getLong(0);
+                    final float recency = RECENCY_WEIGHT * (float) Math.pow(0.5, Math.max(0, now - cursor.getLong(1)) / (double) RECENCY_HALF_LIFE_MILLIS);
+                    int index = indexes.get(songId, -1);
+                    if (index < 0) {
+                        if (count == songIds.length) {
+                            songIds = Arrays.copyOf(songIds, count * 2);
+                            boosts = Arrays.copyOf(boosts, count * 2);
+                        }
+                        index = count++;
+                        indexes.put(songId, index);
+                        songIds[index] = songId;
+                    }
+                    boosts[index] += recency;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return create(Arrays.copyOf(songIds, count), Arrays.copyOf(boosts, count));
+    }
+
+    /**
+     * @param songIds the played songs in any order, without duplicates
+     * @param boosts  their boosts, from 0 to less than 1
+     */
+    @NonNull
+    static PlayStatistics create(@NonNull int[] songIds, @NonNull float[] boosts) {
+        final long[] sorted = new long[songIds.length];
+        for (int i = 0; i < songIds.length; i++) {
+            sorted[i] = (long) songIds[i] << 32 | i;
+        }
+        Arrays.sort(sorted);
+        final int[] sortedIds = new int[sorted.length];
+        final float[] sortedBoosts = new float[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedIds[i] = (int) (sorted[i] >> 32);
+            sortedBoosts[i] = boosts[(int) sorted[i]];
+        }
+        return new PlayStatistics(sortedIds, sortedBoosts);
+    }
+
+    public boolean isEmpty() {
+        return songIds.length == 0;
+    }
+
+    public int size() {
+        return songIds.length;
+    }
+
+    public int getSongId(int index) {
+        return songIds[index];
+    }
+
+    /**
+     * @return the boost of the index-th song in ascending id order
+     */
+    public float getBoostAt(int index) {
+        return boosts[index];
+    }
+
+    /**
+     * @return the boost of the song, 0 if it was never played
+     */
+    public float getBoost(int songId) {
+        final int index = Arrays.binarySearch(songIds, songId);
+        return index < 0 ? 0f : boosts[index];
+    }
+}
@@ -38,9 +38,9 @@ public class PlaylistSongLoader {
         final String data = cursor.getString(5);
         final int dateModified = cursor.getInt(6);
         final int albumId = cursor.getInt(7);
-        final String albumName = cursor.getString(8);
+        final String albumName = StringPool.getInstance().intern(cursor.getString(8));
         final int artistId = cursor.getInt(9);
-        final String artistName = cursor.getString(10);
+        final String artistName = StringPool.getInstance().intern(cursor.getString(10));
         final int idInPlaylist = cursor.getInt(11);
 
         return new PlaylistSong(id, title, trackNumber, year, duration, data, dateModified, albumId, albumName, artistId, artistName, playlistId, idInPlaylist);
@@ -0,0 +1,827 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.misc.BoundedLongHeap;
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+
+/**
+ * An immutable in memory full text index over the titles, album names and artist names of a {@link SongTable}.
+ * <p/>
+ * The strings are folded to lower case without diacritics (e.g. "Beyoncé" to "beyonce", "Straße" to "strasse")
+ * and split into tokens at everything that is neither a letter nor a digit. Words joined by punctuation are
+ * also indexed as one token, so "acdc" finds "AC/DC" and "dont" finds "Don't". Every token maps to the sorted
+ * ids of the pooled strings that contain it, so a query is answered by looking up each of its tokens as a
+ * prefix in the sorted token dictionary and intersecting the strings found. A string matches if every token
+ * of the query is the prefix of one of its tokens.
+ * <p/>
+ * A query token of at least {@link #MIN_FUZZY_LENGTH} characters that is not the prefix of any token is
+ * treated as a typo: it matches the tokens whose prefix is within one edit, or two edits for longer tokens.
+ * These tokens are found through the trigrams of the token dictionary, so like exact lookups fuzzy lookups
+ * depend on the number of distinct words rather than on the number of songs.
+ * <p/>
+ * Results are ranked by how well they match: strings equal to the query first, then strings starting with
+ * the first query word, then strings merely containing the query tokens, then typo matches. Within a tier the
+ * songs the user plays most or played recently come first (see {@link PlayStatistics}), then shorter strings.
+ * Only the best k results are selected through a bounded heap, the other matches are never sorted.
+ * <p/>
+ * As the string pool of a synced table extends the pool of the previous table, {@link #update(SongTable)}
+ * only tokenizes the strings that were not indexed before.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SearchIndex {
+    public static final int FIELD_TITLE = 0;
+    public static final int FIELD_ALBUM = 1;
+    public static final int FIELD_ARTIST = 2;
+    private static final int FIELD_COUNT = 3;
+
+    // shorter query tokens are only matched as prefixes
+    private static final int MIN_FUZZY_LENGTH = 4;
+    // from this length on two edits are allowed
+    private static final int MIN_TWO_EDITS_LENGTH = 8;
+    // pads the start of tokens for their trigrams, tokens only consist of letters and digits
+    private static final String GRAM_PADDING = "^^";
+
+    // the ranking tiers, lower is better
+    private static final long TIER_EXACT = 0;
+    private static final long TIER_STARTS_WITH = 1;
+    private static final long TIER_CONTAINS = 2;
+    private static final long TIER_FUZZY = 3;
+    // play statistics boosts are quantized to this many steps
+    private static final int BOOST_STEPS = 0x1FF;
+
+    @NonNull
+    private final SongTable songs;
+    // all distinct tokens in ascending order, and the ascending ids of the strings that contain them
+    @NonNull
+    private final String[] tokens;
+    @NonNull
+    private final int[][] postings;
+    // per pooled string: whether it was tokenized, its normalized key and its number of words, used for ranking
+    @NonNull
+    private final boolean[] tokenized;
+    @NonNull
+    private final String[] keys;
+    @NonNull
+    private final int[] tokenCounts;
+    // per field the rows grouped by string, the rows of string s are rows[offsets[s]] to rows[offsets[s + 1] - 1]
+    @NonNull
+    private final int[][] fieldOffsets;
+    @NonNull
+    private final int[][] fieldRows;
+    // the ids of the tokens per trigram, built on the first fuzzy lookup
+    @Nullable
+    private HashMap<String, int[]> grams;
+
+    private SearchIndex(@NonNull SongTable songs, @NonNull String[] tokens, @NonNull int[][] postings,
+                        @NonNull boolean[] tokenized, @NonNull String[] keys, @NonNull int[] tokenCounts) {
+        this.songs = songs;
+        this.tokens = tokens;
+        this.postings = postings;
+        this.tokenized = tokenized;
+        this.keys = keys;
+        this.tokenCounts = tokenCounts;
+        this.fieldOffsets = new int[FIELD_COUNT][];
+        this.fieldRows = new int[FIELD_COUNT][];
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            groupRows(field);
+        }
+    }
+
+    @NonNull
+    public static SearchIndex build(@NonNull SongTable songs) {
+        return create(null, songs);
+    }
+
+    /**
+     * @return an index of the given songs, reusing this index for all strings both tables share
+     */
+    @NonNull
+    public SearchIndex update(@NonNull SongTable songs) {
+        if (songs == this.songs) {
+            return this;
+        }
+        return create(sharesStrings(this.songs, songs) ? this : null, songs);
+    }
+
+    /**
+     * @return the songs this index was built for
+     */
+    @NonNull
+    public SongTable getSongs() {
+        return songs;
+    }
+
+    /**
+     * @return the number of distinct tokens
+     */
+    public int getTokenCount() {
+        return tokens.length;
+    }
+
+    /**
+     * @return the strings matching the query, best match first
+     */
+    @NonNull
+    public Result search(@NonNull String query) {
+        return rank(match(query, null));
+    }
+
+    /**
+     * Finds the strings matching the query. If the query refines the query of the previous matches, e.g. because
+     * the user typed another character, only the previous matches are considered.
+     *
+     * @param previous the matches of the previous query of the same search session, or null
+     */
+    @NonNull
+    public Matches match(@NonNull String query, @Nullable Matches previous) {
+        final ArrayList<String> queryTokens = new ArrayList<>();
+        final ArrayList<String> queryWords = new ArrayList<>();
+        tokenize(query, queryTokens, queryWords);
+        final ArrayList<String> distinctQueryTokens = new ArrayList<>(new LinkedHashSet<>(queryTokens));
+        final String queryKey = join(queryWords);
+        if (distinctQueryTokens.isEmpty()) {
+            return new Matches(this, distinctQueryTokens, queryKey, false, new long[(tokenized.length + 63) >>> 6], 0);
+        }
+
+        long[] matched = null;
+        ArrayList<String> remainingTokens = distinctQueryTokens;
+        if (previous != null && previous.index == this && !previous.fuzzy && refines(distinctQueryTokens, previous.queryTokens)) {
+            matched = previous.matched;
+            // the previous matches already contain the tokens of the previous query
+            remainingTokens = new ArrayList<>(distinctQueryTokens);
+            remainingTokens.removeAll(previous.queryTokens);
+        }
+
+        int[][] similarTokens = findSimilarTokens(remainingTokens);
+        if (similarTokens != null && matched != null) {
+            // the fuzzy matches of a token are no subset of the matches of its prefix
+            matched = null;
+            remainingTokens = distinctQueryTokens;
+            similarTokens = findSimilarTokens(remainingTokens);
+        }
+
+        for (int i = 0; i < remainingTokens.size(); i++) {
+            final long[] bits = new long[(tokenized.length + 63) >>> 6];
+            if (similarTokens != null && similarTokens[i] != null) {
+                for (int token : similarTokens[i]) {
+                    addPostings(token, matched, bits);
+                }
+            } else {
+                final String queryToken = remainingTokens.get(i);
+                final int end = lowerBound(queryToken + Character.MAX_VALUE);
+                for (int token = lowerBound(queryToken); token < end; token++) {
+                    addPostings(token, matched, bits);
+                }
+            }
+            matched = bits;
+        }
+        int count = 0;
+        //noinspection ConstantConditions
+        for (long bits : matched) {
+            count += Long.bitCount(bits);
+        }
+        return new Matches(this, distinctQueryTokens, queryKey, similarTokens != null, matched, count);
+    }
+
+    /**
+     * Finds the strings of a field that are equal to the text after normalization, e.g. "beyonce" and "Beyoncé".
+     *
+     * @return the ids of the pooled strings
+     */
+    @NonNull
+    public int[] findEqual(int field, @NonNull String text) {
+        final Matches matches = match(text, null);
+        final int[] strings = new int[matches.count];
+        int count = 0;
+        final int[] offsets = fieldOffsets[field];
+        for (int word = 0; word < matches.matched.length; word++) {
+            long bits = matches.matched[word];
+            while (bits != 0) {
+                final int string = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (offsets[string + 1] != offsets[string] && keys[string].equals(matches.queryKey)) {
+                    strings[count++] = string;
+                }
+            }
+        }
+        return Arrays.copyOf(strings, count);
+    }
+
+    /**
+     * @return the matching strings per field, best match first
+     */
+    @NonNull
+    public Result rank(@NonNull Matches matches) {
+        if (matches.count == 0) {
+            return Result.EMPTY;
+        }
+        return new Result(
+                rank(matches, FIELD_TITLE, PlayStatistics.EMPTY, Integer.MAX_VALUE),
+                rank(matches, FIELD_ALBUM, PlayStatistics.EMPTY, Integer.MAX_VALUE),
+                rank(matches, FIELD_ARTIST, PlayStatistics.EMPTY, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Selects the best matching strings of a field. Strings used by a played song are boosted by the most played one.
+     *
+     * @param limit the maximum number of strings to return
+     * @return the best matching strings of the field, best match first
+     */
+    @NonNull
+    public int[] rank(@NonNull Matches matches, int field, @NonNull PlayStatistics statistics, int limit) {
+        final int[] column = column(songs, field);
+        final int[] offsets = fieldOffsets[field];
+        // the few played songs are mapped to their strings, rather than looking up the songs of every matching string
+        final IntIntHashMap stringBoosts = new IntIntHashMap(statistics.size());
+        for (int i = 0; i < statistics.size(); i++) {
+            final int row = songs.indexOfId(statistics.getSongId(i));
+            if (row >= 0 && column[row] != SongTable.NULL_STRING) {
+                final int boost = quantize(statistics.getBoostAt(i));
+                if (boost > stringBoosts.get(column[row], 0)) {
+                    stringBoosts.put(column[row], boost);
+                }
+            }
+        }
+
+        final String firstQueryWord = getFirstWord(matches.queryKey);
+        final BoundedLongHeap best = new BoundedLongHeap(Math.min(limit, matches.count));
+        for (int word = 0; word < matches.matched.length; word++) {
+            long bits = matches.matched[word];
+            while (bits != 0) {
+                final int string = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (offsets[string + 1] == offsets[string]) {
+                    // not used by this field
+                    continue;
+                }
+                best.offer(rankingKey(tierOf(matches, firstQueryWord, string), stringBoosts.get(string, 0), string, string));
+            }
+        }
+        return toIds(best);
+    }
+
+    /**
+     * Selects the best matching songs by their titles. Unlike {@link #rank(Matches, int, PlayStatistics, int)}
+     * every song is boosted on its own, so the most played of several songs with the same title comes first.
+     *
+     * @param limit the maximum number of songs to return
+     * @return the rows of the best matching songs, best match first
+     */
+    @NonNull
+    public int[] rankSongs(@NonNull Matches matches, @NonNull PlayStatistics statistics, int limit) {
+        final int[] offsets = fieldOffsets[FIELD_TITLE];
+        final int[] rows = fieldRows[FIELD_TITLE];
+        final String firstQueryWord = getFirstWord(matches.queryKey);
+        final BoundedLongHeap best = new BoundedLongHeap(Math.min(limit, songs.size()));
+        for (int word = 0; word < matches.matched.length; word++) {
+            long bits = matches.matched[word];
+            while (bits != 0) {
+                final int string = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (offsets[string + 1] == offsets[string]) {
+                    continue;
+                }
+                final long tier = tierOf(matches, firstQueryWord, string);
+                for (int i = offsets[string]; i < offsets[string + 1]; i++) {
+                    final int boost = statistics.isEmpty() ? 0 : quantize(statistics.getBoost(songs.ids[rows[i]]));
+                    best.offer(rankingKey(tier, boost, string, rows[i]));
+                }
+            }
+        }
+        return toIds(best);
+    }
+
+    /**
+     * @return the number of rows whose field holds the given string
+     */
+    public int getRowCount(int field, int string) {
+        return fieldOffsets[field][string + 1] - fieldOffsets[field][string];
+    }
+
+    /**
+     * @return the index-th row in ascending order whose field holds the given string
+     */
+    public int getRow(int field, int string, int index) {
+        return fieldRows[field][fieldOffsets[field][string] + index];
+    }
+
+    /**
+     * Splits the text into lower case tokens without diacritics at everything that is neither a letter nor a digit.
+     */
+    @NonNull
+    public static ArrayList<String> tokenize(@Nullable String text) {
+        final ArrayList<String> tokens = new ArrayList<>();
+        tokenize(text, tokens, null);
+        return tokens;
+    }
+
+    /**
+     * @return the text as compared by {@link #findEqual(int, String)}, e.g. "ac dc" for "AC/DC" and "beyonce" for "Beyoncé"
+     */
+    @NonNull
+    public static String normalize(@Nullable String text) {
+        final ArrayList<String> words = new ArrayList<>();
+        tokenize(text, new ArrayList<String>(), words);
+        return join(words);
+    }
+
+    /**
+     * @param tokens receives the tokens
+     * @param words  receives the tokens of each whitespace separated word joined together, e.g. "acdc" for "AC/DC"
+     */
+    private static void tokenize(@Nullable String text, @NonNull ArrayList<String> tokens, @Nullable ArrayList<String> words) {
+        if (text == null) {
+            return;
+        }
+        final String folded = fold(text);
+        // the first token of the current word, and all of its tokens once there is a second one
+        String wordToken = null;
+        StringBuilder word = null;
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            final char c = i < folded.length() ? folded.charAt(i) : ' ';
+            final boolean tokenChar = Character.isLetterOrDigit(c);
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                final String token = folded.substring(start, i);
+                tokens.add(token);
+                if (wordToken == null) {
+                    wordToken = token;
+                } else if (word == null) {
+                    word = new StringBuilder(wordToken).append(token);
+                } else {
+                    word.append(token);
+                }
+                start = -1;
+            }
+            if (wordToken != null && Character.isWhitespace(c)) {
+                if (words != null) {
+                    words.add(word == null ? wordToken : word.toString());
+                }
+                wordToken = null;
+                word = null;
+            }
+        }
+    }
+
+    /**
+     * @return the text in lower case, without diacritics and with ligatures and special letters spelled out
+     */
+    @NonNull
+    static String fold(@NonNull String text) {
+        final String lowerCase = text.toLowerCase(Locale.ROOT);
+        int i = 0;
+        while (i < lowerCase.length() && lowerCase.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == lowerCase.length()) {
+            // plain ASCII, the common case
+            return lowerCase;
+        }
+        final String decomposed = Normalizer.normalize(lowerCase, Normalizer.Form.NFKD);
+        final StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int j = 0; j < decomposed.length(); j++) {
+            final char c = decomposed.charAt(j);
+            switch (c) {
+                case 'ß':
+                    folded.append("ss");
+                    break;
+                case 'æ':
+                    folded.append("ae");
+                    break;
+                case 'œ':
+                    folded.append("oe");
+                    break;
+                case 'þ':
+                    folded.append("th");
+                    break;
+                case 'ø':
+                    folded.append('o');
+                    break;
+                case 'ł':
+                    folded.append('l');
+                    break;
+                case 'đ':
+                case 'ð':
+                    folded.append('d');
+                    break;
+                case 'ı':
+                    folded.append('i');
+                    break;
+                default:
+                    if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                        folded.append(c);
+                    }
+            }
+        }
+        // NFKD may yield upper case letters again, e.g. for "ℌ"
+        return folded.toString().toLowerCase(Locale.ROOT);
+    }
+
+    @NonNull
+    private static String join(@NonNull ArrayList<String> words) {
+        final StringBuilder joined = new StringBuilder();
+        for (String word : words) {
+            if (joined.length() > 0) joined.append(' ');
+            joined.append(word);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * @return whether every token of the previous query is the prefix of a token of the query, so that every
+     * string matching the query also matches the previous query
+     */
+    private static boolean refines(@NonNull ArrayList<String> queryTokens, @NonNull ArrayList<String> previousQueryTokens) {
+        if (previousQueryTokens.isEmpty()) {
+            return false;
+        }
+        for (String previousQueryToken : previousQueryTokens) {
+            boolean refined = false;
+            for (String queryToken : queryTokens) {
+                if (queryToken.startsWith(previousQueryToken)) {
+                    refined = true;
+                    break;
+                }
+            }
+            if (!refined) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addPostings(int token, @Nullable long[] candidates, @NonNull long[] bits) {
+        for (int string : postings[token]) {
+            // only keeps the strings that matched the tokens before
+            if (candidates == null || (candidates[string >>> 6] & 1L << string) != 0) {
+                bits[string >>> 6] |= 1L << string;
+            }
+        }
+    }
+
+    /**
+     * @return per query token the ids of the tokens it matches with typos if it is not the prefix of any token,
+     * or null if every query token is the prefix of a token
+     */
+    @Nullable
+    private int[][] findSimilarTokens(@NonNull ArrayList<String> queryTokens) {
+        int[][] similarTokens = null;
+        for (int i = 0; i < queryTokens.size(); i++) {
+            final String queryToken = queryTokens.get(i);
+            if (queryToken.length() < MIN_FUZZY_LENGTH || lowerBound(queryToken) != lowerBound(queryToken + Character.MAX_VALUE)) {
+                continue;
+            }
+            if (similarTokens == null) {
+                similarTokens = new int[queryTokens.size()][];
+            }
+            similarTokens[i] = findSimilarTokens(queryToken);
+        }
+        return similarTokens;
+    }
+
+    @NonNull
+    private int[] findSimilarTokens(@NonNull String queryToken) {
+        final int maxEdits = queryToken.length() >= MIN_TWO_EDITS_LENGTH ? 2 : 1;
+        // every edit changes at most three trigrams and a transposition four, candidates must share the others
+        final int minSharedGrams = Math.max(1, queryToken.length() - 4 * maxEdits);
+        final HashMap<String, int[]> grams = getGrams();
+        final String padded = GRAM_PADDING + queryToken;
+        final int[] sharedGrams = new int[tokens.length];
+        final IdList candidates = new IdList();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            final int[] gramTokens = grams.get(padded.substring(i, i + 3));
+            if (gramTokens == null) continue;
+            for (int token : gramTokens) {
+                if (++sharedGrams[token] == minSharedGrams) {
+                    candidates.add(token);
+                }
+            }
+        }
+        final IdList similar = new IdList();
+        for (int i = 0; i < candidates.size; i++) {
+            final int token = candidates.ids[i];
+            if (prefixDistance(queryToken, tokens[token], maxEdits) <= maxEdits) {
+                similar.add(token);
+            }
+        }
+        return similar.toSortedArray();
+    }
+
+    /**
+     * @return the smallest number of insertions, deletions, substitutions and transpositions of adjacent
+     * characters that turns the query token into a prefix of the token, or more than maxEdits
+     */
+    static int prefixDistance(@NonNull String queryToken, @NonNull String token, int maxEdits) {
+        final int columns = Math.min(token.length(), queryToken.length() + maxEdits) + 1;
+        int[] previousRow = null;
+        int[] row = new int[columns];
+        int[] nextRow = new int[columns];
+        for (int j = 0; j < columns; j++) {
+            row[j] = j;
+        }
+        for (int i = 1; i <= queryToken.length(); i++) {
+            nextRow[0] = i;
+            int rowMin = i;
+            for (int j = 1; j < columns; j++) {
+                final char c = queryToken.charAt(i - 1);
+                int distance = Math.min(Math.min(row[j] + 1, nextRow[j - 1] + 1), row[j - 1] + (c == token.charAt(j - 1) ? 0 : 1));
+                if (previousRow != null && j > 1 && c == token.charAt(j - 2) && queryToken.charAt(i - 2) == token.charAt(j - 1)) {
+                    distance = Math.min(distance, previousRow[j - 2] + 1);
+                }
+                nextRow[j] = distance;
+                rowMin = Math.min(rowMin, distance);
+            }
+            if (rowMin > maxEdits) {
+                return rowMin;
+            }
+            final int[] recycled = previousRow == null ? new int[columns] : previousRow;
+            previousRow = row;
+            row = nextRow;
+            nextRow = recycled;
+        }
+        int distance = Integer.MAX_VALUE;
+        for (int j = 0; j < columns; j++) {
+            distance = Math.min(distance, row[j]);
+        }
+        return distance;
+    }
+
+    @NonNull
+    private synchronized HashMap<String, int[]> getGrams() {
+        if (grams == null) {
+            final HashMap<String, IdList> gramTokens = new HashMap<>();
+            for (int token = 0; token < tokens.length; token++) {
+                final String padded = GRAM_PADDING + tokens[token];
+                for (int i = 0; i + 3 <= padded.length(); i++) {
+                    final String gram = padded.substring(i, i + 3);
+                    IdList ids = gramTokens.get(gram);
+                    if (ids == null) {
+                        ids = new IdList();
+                        gramTokens.put(gram, ids);
+                    }
+                    // a token is listed once per gram, even if the gram repeats like in "lalala"
+                    if (ids.size == 0 || ids.ids[ids.size - 1] != token) {
+                        ids.add(token);
+                    }
+                }
+            }
+            grams = new HashMap<>(gramTokens.size() * 2);
+            for (String gram : gramTokens.keySet()) {
+                grams.put(gram, Arrays.copyOf(gramTokens.get(gram).ids, gramTokens.get(gram).size));
+            }
+        }
+        return grams;
+    }
+
+    private long tierOf(@NonNull Matches matches, @NonNull String firstQueryWord, int string) {
+        if (keys[string].equals(matches.queryKey)) {
+            return TIER_EXACT;
+        } else if (matches.fuzzy) {
+            return TIER_FUZZY;
+        } else if (keys[string].startsWith(firstQueryWord)) {
+            return TIER_STARTS_WITH;
+        }
+        return TIER_CONTAINS;
+    }
+
+    /**
+     * @return a key that sorts by better tier, then higher boost, then fewer words, then shorter strings first
+     */
+    private long rankingKey(long tier, int boost, int string, int id) {
+        return tier << 61
+                | (long) (BOOST_STEPS - boost) << 52
+                | (long) Math.min(tokenCounts[string], 0xFF) << 44
+                | (long) Math.min(songs.strings[string].length(), 0xFFF) << 32
+                | id;
+    }
+
+    private static int quantize(float boost) {
+        return Math.max(0, Math.min(BOOST_STEPS, (int) (boost * BOOST_STEPS)));
+    }
+
+    @NonNull
+    private static int[] toIds(@NonNull BoundedLongHeap best) {
+        final long[] ranked = best.toSortedArray();
+        final int[] ids = new int[ranked.length];
+        for (int i = 0; i < ranked.length; i++) {
+            ids[i] = (int) ranked[i];
+        }
+        return ids;
+    }
+
+    @NonNull
+    private static String getFirstWord(@NonNull String key) {
+        final int wordEnd = key.indexOf(' ');
+        return wordEnd < 0 ? key : key.substring(0, wordEnd);
+    }
+
+    private int lowerBound(@NonNull String key) {
+        final int index = Arrays.binarySearch(tokens, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private void groupRows(int field) {
+        final int[] column = column(songs, field);
+        final int[] offsets = new int[songs.strings.length + 1];
+        for (int row = 0; row < songs.size(); row++) {
+            if (column[row] != SongTable.NULL_STRING) {
+                offsets[column[row] + 1]++;
+            }
+        }
+        for (int string = 0; string < songs.strings.length; string++) {
+            offsets[string + 1] += offsets[string];
+        }
+        final int[] next = Arrays.copyOf(offsets, songs.strings.length);
+        final int[] rows = new int[offsets[songs.strings.length]];
+        for (int row = 0; row < songs.size(); row++) {
+            if (column[row] != SongTable.NULL_STRING) {
+                rows[next[column[row]]++] = row;
+            }
+        }
+        fieldOffsets[field] = offsets;
+        fieldRows[field] = rows;
+    }
+
+    @NonNull
+    private static int[] column(@NonNull SongTable songs, int field) {
+        switch (field) {
+            case FIELD_TITLE:
+                return songs.titles;
+            case FIELD_ALBUM:
+                return songs.albumNames;
+            default:
+                return songs.artistNames;
+        }
+    }
+
+    /**
+     * @return whether the pool of the new table starts with the pool of the old table, like the pools of synced tables do
+     */
+    private static boolean sharesStrings(@NonNull SongTable oldSongs, @NonNull SongTable newSongs) {
+        if (newSongs.strings.length < oldSongs.strings.length) {
+            return false;
+        }
+        for (int i = 0; i < oldSongs.strings.length; i++) {
+            if (newSongs.strings[i] != oldSongs.strings[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static SearchIndex create(@Nullable SearchIndex base, @NonNull SongTable songs) {
+        final int stringCount = songs.strings.length;
+        final boolean[] tokenized = base == null ? new boolean[stringCount] : Arrays.copyOf(base.tokenized, stringCount);
+        final String[] keys = base == null ? new String[stringCount] : Arrays.copyOf(base.keys, stringCount);
+        final int[] tokenCounts = base == null ? new int[stringCount] : Arrays.copyOf(base.tokenCounts, stringCount);
+
+        final HashMap<String, IdList> newPostings = new HashMap<>();
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            final int[] column = column(songs, field);
+            for (int row = 0; row < songs.size(); row++) {
+                final int string = column[row];
+                if (string == SongTable.NULL_STRING || tokenized[string]) {
+                    continue;
+                }
+                tokenized[string] = true;
+                final ArrayList<String> stringTokens = new ArrayList<>();
+                final ArrayList<String> words = new ArrayList<>();
+                tokenize(songs.strings[string], stringTokens, words);
+                tokenCounts[string] = words.size();
+                keys[string] = join(words);
+                // the joined words are indexed as well, for the single token words they are duplicates
+                stringTokens.addAll(words);
+                for (String token : new LinkedHashSet<>(stringTokens)) {
+                    IdList ids = newPostings.get(token);
+                    if (ids == null) {
+                        ids = new IdList();
+                        newPostings.put(token, ids);
+                    }
+                    ids.add(string);
+                }
+            }
+        }
+
+        final String[] newTokens = newPostings.keySet().toArray(new String[newPostings.size()]);
+        Arrays.sort(newTokens);
+        final String[] baseTokens = base == null ? new String[0] : base.tokens;
+        final int[][] basePostings = base == null ? new int[0][] : base.postings;
+
+        // merge the sorted new tokens into the sorted tokens of the base
+        final ArrayList<String> tokens = new ArrayList<>(baseTokens.length + newTokens.length);
+        final ArrayList<int[]> postings = new ArrayList<>(baseTokens.length + newTokens.length);
+        int i = 0;
+        int j = 0;
+        while (i < baseTokens.length || j < newTokens.length) {
+            final int comparison = i == baseTokens.length ? 1 : (j == newTokens.length ? -1 : baseTokens[i].compareTo(newTokens[j]));
+            if (comparison < 0) {
+                tokens.add(baseTokens[i]);
+                postings.add(basePostings[i++]);
+            } else if (comparison > 0) {
+                tokens.add(newTokens[j]);
+                postings.add(newPostings.get(newTokens[j++]).toSortedArray());
+            } else {
+                final int[] baseIds = basePostings[i];
+                final int[] newIds = newPostings.get(newTokens[j]).toSortedArray();
+                final int[] ids = Arrays.copyOf(baseIds, baseIds.length + newIds.length);
+                System.arraycopy(newIds, 0, ids, baseIds.length, newIds.length);
+                // strings of the base pool tokenized only now (e.g. a file name that became a title) may come first
+                if (baseIds.length > 0 && newIds.length > 0 && newIds[0] < baseIds[baseIds.length - 1]) {
+                    Arrays.sort(ids);
+                }
+                tokens.add(baseTokens[i++]);
+                postings.add(ids);
+                j++;
+            }
+        }
+
+        return new SearchIndex(songs, tokens.toArray(new String[tokens.size()]), postings.toArray(new int[postings.size()][]),
+                tokenized, keys, tokenCounts);
+    }
+
+    /**
+     * The pooled strings matching a query, not yet ranked.
+     */
+    public static class Matches {
+        @NonNull
+        final SearchIndex index;
+        @NonNull
+        final ArrayList<String> queryTokens;
+        @NonNull
+        final String queryKey;
+        // whether a query token was matched with typos
+        final boolean fuzzy;
+        @NonNull
+        final long[] matched;
+        final int count;
+
+        Matches(@NonNull SearchIndex index, @NonNull ArrayList<String> queryTokens, @NonNull String queryKey, boolean fuzzy, @NonNull long[] matched, int count) {
+            this.index = index;
+            this.queryTokens = queryTokens;
+            this.queryKey = queryKey;
+            this.fuzzy = fuzzy;
+            this.matched = matched;
+            this.count = count;
+        }
+
+        /**
+         * @return the number of matching strings, including strings that are not used by any song anymore
+         */
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * The ids of the pooled strings that matched a query per field, best match first.
+     */
+    public static class Result {
+        public static final Result EMPTY = new Result(new int[0], new int[0], new int[0]);
+
+        @NonNull
+        public final int[] titles;
+        @NonNull
+        public final int[] albumNames;
+        @NonNull
+        public final int[] artistNames;
+
+        Result(@NonNull int[] titles, @NonNull int[] albumNames, @NonNull int[] artistNames) {
+            this.titles = titles;
+            this.albumNames = albumNames;
+            this.artistNames = artistNames;
+        }
+    }
+
+    private static class IdList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        @NonNull
+        int[] toSortedArray() {
+            // strings are added in row order, not in string order
+            final int[] sorted = Arrays.copyOf(ids, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.util.PreferenceUtil;
+
+import java.util.ArrayList;
+
+/**
+ * Runs the searches of a search screen while the user types.
+ * <p/>
+ * Queries submitted within one frame are coalesced into one search. A search runs on a background thread and
+ * stops as soon as a newer query is submitted. If the query only refines the previous one (e.g. another
+ * character was typed), only the previous matches are narrowed down instead of searching the whole index.
+ * Only the best matches are delivered, ranked by match quality and by how much the user listens to them.
+ * The songs are delivered first, the albums and artists follow, as grouping them takes longer, and the songs
+ * whose lyrics contain the query come last.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SearchSession {
+    // one frame at 60 fps
+    private static final long COALESCE_DELAY_MILLIS = 16;
+    private static final int MAX_SONG_RESULTS = 200;
+    private static final int MAX_ALBUM_AND_ARTIST_RESULTS = 50;
+    private static final int MAX_LYRICS_RESULTS = 50;
+
+    /**
+     * Receives the results on the main thread, only for the latest query.
+     */
+    public interface Callback {
+        void onSongsFound(@NonNull String query, @NonNull ArrayList<Song> songs);
+
+        void onAlbumsAndArtistsFound(@NonNull String query, @NonNull ArrayList<Album> albums, @NonNull ArrayList<Artist> artists);
+
+        void onLyricsFound(@NonNull String query, @NonNull ArrayList<Song> songs);
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread searchHandlerThread;
+    private final Handler searchHandler;
+
+    // the latest submitted query, searches for older queries are stale
+    @Nullable
+    private volatile String latestQuery;
+    // only accessed on the search thread
+    @Nullable
+    private SearchIndex.Matches previousMatches;
+    private boolean forceFullSearch;
+    @Nullable
+    private PlayStatistics statistics;
+
+    private final Runnable dispatchSearch = new Runnable() {
+        @Override
+        public void run() {
+            final String query = latestQuery;
+            if (query == null) return;
+            searchHandler.removeCallbacksAndMessages(null);
+            searchHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    runSearch(query);
+                }
+            });
+        }
+    };
+
+    public SearchSession(@NonNull Context context, @NonNull Callback callback) {
+        this.context = context.getApplicationContext();
+        this.callback = callback;
+        searchHandlerThread = new HandlerThread("SearchHandler", Process.THREAD_PRIORITY_BACKGROUND);
+        searchHandlerThread.start();
+        searchHandler = new Handler(searchHandlerThread.getLooper());
+        // picks up the lyrics of songs added while the app was not running
+        LyricsIndexer.getInstance(context).requestUpdate();
+    }
+
+    /**
+     * Submits a new query, to be called on the main thread whenever the query changes.
+     */
+    public void search(@NonNull String query) {
+        // marks the running search as stale right away, even though the new one only starts a frame later
+        latestQuery = query;
+        mainHandler.removeCallbacks(dispatchSearch);
+        mainHandler.postDelayed(dispatchSearch, COALESCE_DELAY_MILLIS);
+    }
+
+    /**
+     * Runs the latest query again without narrowing, e.g. because the library changed.
+     */
+    public void refresh() {
+        final String query = latestQuery;
+        if (query == null) return;
+        searchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                forceFullSearch = true;
+            }
+        });
+        search(query);
+    }
+
+    /**
+     * Stops the search thread, no callbacks are delivered afterwards.
+     */
+    public void release() {
+        latestQuery = null;
+        mainHandler.removeCallbacksAndMessages(null);
+        searchHandlerThread.quit();
+    }
+
+    @WorkerThread
+    private void runSearch(@NonNull final String query) {
+        if (isStale(query)) return;
+        final MusicLibrary library = MusicLibrary.getInstance(context);
+        final SearchIndex searchIndex = library.getSearchIndex();
+
+        final SearchIndex.Matches matches = searchIndex.match(query, forceFullSearch ? null : previousMatches);
+        previousMatches = matches;
+        forceFullSearch = false;
+        if (statistics == null) {
+            // read once per session, the play counts don't change while the user is searching
+            statistics = PlayStatistics.load(context);
+        }
+        final int[] songRows = searchIndex.rankSongs(matches, statistics, MAX_SONG_RESULTS);
+        if (isStale(query)) return;
+
+        final ArrayList<Song> songs = library.getSongsOfRows(searchIndex, songRows);
+        deliver(query, new Runnable() {
+            @Override
+            public void run() {
+                callback.onSongsFound(query, songs);
+            }
+        });
+        if (isStale(query)) return;
+
+        final int[] artistNames = searchIndex.rank(matches, SearchIndex.FIELD_ARTIST, statistics, MAX_ALBUM_AND_ARTIST_RESULTS);
+        final ArrayList<Artist> artists = library.getArtistsOfNames(searchIndex, artistNames, ArtistLoader.getSongLoaderSortOrder(context));
+        if (isStale(query)) return;
+        final int[] albumNames = searchIndex.rank(matches, SearchIndex.FIELD_ALBUM, statistics, MAX_ALBUM_AND_ARTIST_RESULTS);
+        final ArrayList<Album> albums = library.getAlbumsOfNames(searchIndex, albumNames, AlbumLoader.getSongLoaderSortOrder(context));
+        deliver(query, new Runnable() {
+            @Override
+            public void run() {
+                callback.onAlbumsAndArtistsFound(query, albums, artists);
+            }
+        });
+        if (isStale(query)) return;
+
+        final int[] lyricsSongIds = LyricsIndexer.getInstance(context).getIndex().search(query, MAX_LYRICS_RESULTS);
+        final ArrayList<Song> lyricsSongs = library.getSongs(lyricsSongIds, PreferenceUtil.getInstance(context).getSongSortOrder());
+        deliver(query, new Runnable() {
+            @Override
+            public void run() {
+                callback.onLyricsFound(query, lyricsSongs);
+            }
+        });
+    }
+
+    private boolean isStale(@NonNull String query) {
+        return !query.equals(latestQuery);
+    }
+
+    private void deliver(@NonNull final String query, @NonNull final Runnable delivery) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // a newer query may have been submitted while the result was on its way
+                if (!isStale(query)) {
+                    delivery.run();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,135 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of {@link Song} objects by id, shared by the lists that only keep song ids, e.g. the playing queue.
+ * <p/>
+ * Songs that are not cached are materialized from the {@link MusicLibrary}. Only the most recently used songs
+ * are kept, so the memory held by the cache doesn't grow with the number of songs the id lists refer to.
+ * <p/>
+ * {@link #get(int)} is called on the main thread, so the source must not block: a song the source doesn't have yet,
+ * e.g. because the library is still loading, is returned as a placeholder without caching it, and the song is
+ * looked up again on the next access.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SongCache {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Materializes the songs that are not cached.
+     */
+    public interface Source {
+        /**
+         * Must not block, e.g. by loading the library.
+         *
+         * @return the song with the given id, or null if it doesn't exist anymore or isn't loaded yet
+         */
+        @Nullable
+        Song getSong(int songId);
+    }
+
+    @Nullable
+    private static SongCache sInstance;
+
+    @NonNull
+    private final Source source;
+    @NonNull
+    private final LinkedHashMap<Integer, Song> songs;
+    private final int capacity;
+
+    public SongCache(@NonNull Source source, final int capacity) {
+        this.source = source;
+        this.capacity = capacity;
+        // access ordered, so the eldest entry is the least recently used song
+        this.songs = new LinkedHashMap<Integer, Song>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Song> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @NonNull
+    public static synchronized SongCache getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            final MusicLibrary library = MusicLibrary.getInstance(context);
+            sInstance = new SongCache(new Source() {
+                @Nullable
+                @Override
+                public Song getSong(int songId) {
+                    return library.peekSongById(songId);
+                }
+            }, DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the song with the given id, or a song without any data but the id if it doesn't exist anymore or
+     * isn't loaded yet
+     */
+    @NonNull
+    public synchronized Song get(int songId) {
+        Song song = songs.get(songId);
+        if (song == null) {
+            song = source.getSong(songId);
+            if (song == null) {
+                // e.g. deleted while it was queued, it can't be played but must still be removable by its id,
+                // not cached as the library may not be loaded yet
+                return new Song(songId, "", -1, -1, -1, "", -1, -1, "", -1, "");
+            }
+            songs.put(songId, song);
+        }
+        return song;
+    }
+
+    /**
+     * Caches the given song, e.g. because it was just queued and may not be in the library.
+     */
+    public synchronized void put(@NonNull Song song) {
+        songs.put(song.id, song);
+    }
+
+    /**
+     * Caches the songs around the given position, e.g. of a queue that was just opened, so they are shown before
+     * the library is loaded. At most half the capacity, so the songs the other lists need stay cached.
+     */
+    public synchronized void putAround(@NonNull List<? extends Song> list, int position) {
+        final int count = Math.min(list.size(), capacity / 2);
+        final int start = Math.max(0, Math.min(position - count / 2, list.size() - count));
+        for (int i = start; i < start + count; i++) {
+            final Song song = list.get(i);
+            songs.put(song.id, song);
+        }
+    }
+
+    /**
+     * Drops the cached songs with the given ids, e.g. because their data changed.
+     */
+    public synchronized void remove(@NonNull int[] songIds) {
+        for (int songId : songIds) {
+            songs.remove(songId);
+        }
+    }
+
+    /**
+     * Drops all cached songs, e.g. because it is unknown which songs changed.
+     */
+    public synchronized void clear() {
+        songs.clear();
+    }
+
+    public synchronized int size() {
+        return songs.size();
+    }
+}
@@ -0,0 +1,651 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.misc.LazyPermutation;
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A mutable list of songs that only keeps their ids, about five bytes per song no matter how long the list is.
+ * <p/>
+ * The {@link Song} objects are materialized through a shared {@link SongCache} when they are accessed, e.g.
+ * for the current song or the rows the user sees. Operations that only need the ids, like {@link #indexOfId(int)},
+ * copying or {@link #shuffle(int, long)}, never materialize a song.
+ * <p/>
+ * The ids are kept in blocks of at most {@link #MAX_BLOCK_SIZE} ids, a Fenwick tree over the block sizes finds the
+ * block of a position. So inserting, removing and moving a song take O(log n) plus shifting the ids of one block,
+ * instead of shifting all ids behind it. The first lookup by id builds an index from the ids to their blocks,
+ * which the later mutations keep up to date, so repeated lookups like removing songs from both queues don't
+ * scan the list. {@link #removeAllIds(IntIntHashMap, int)} removes any number of songs in a single pass.
+ * <p/>
+ * {@link #shuffle(int, long)} doesn't move any id, the blocks keep the order from before and a
+ * {@link LazyPermutation} maps the positions to it, generated only as far as they are read. So shuffling and
+ * {@link #unshuffle(int)} take O(1) no matter how long the list is. The first change to the list or lookup of a
+ * position by id applies the permutation to the blocks.
+ * <p/>
+ * The playing queue is read by the UI, the playback handler and the read ahead at the same time, and even reads
+ * change the list inside, they generate the shuffle or build the index. So every method locks the list and sees it
+ * in a consistent state. Iterating, or reading several positions that must belong to the same state of the list,
+ * needs the caller to hold the lock of the list.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SongIdList extends AbstractList<Song> implements RandomAccess {
+    static final int MAX_BLOCK_SIZE = 256;
+    // rebuilt blocks leave room for insertions before they have to be split
+    private static final int FILL_BLOCK_SIZE = MAX_BLOCK_SIZE * 3 / 4;
+    // neighboring blocks are merged when they fit into one block with room to spare
+    private static final int MERGE_BLOCK_SIZE = MAX_BLOCK_SIZE / 2;
+    private static final int NOT_INDEXED = Integer.MIN_VALUE;
+    // the song is in the list once, but in which block is only known after the next lookup
+    private static final int UNKNOWN_BLOCK = -1;
+
+    private static class Block {
+        final int serial;
+        @NonNull
+        final int[] ids = new int[MAX_BLOCK_SIZE];
+        int size;
+        // the position of the block in the block list
+        int ordinal;
+
+        Block(int serial) {
+            this.serial = serial;
+        }
+    }
+
+    @NonNull
+    private final SongCache cache;
+    @NonNull
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    // the blocks by their serial, serials stay the same when blocks before them are split or dropped
+    @NonNull
+    private Block[] blocksBySerial = new Block[4];
+    private int serialCount;
+    // 1-based Fenwick tree over the block sizes by ordinal
+    @NonNull
+    private int[] blockSizeTree = new int[1];
+    private int size;
+    // per song id: the serial of its block if it is in the list once, or minus the number of occurrences if it is
+    // in the list more than once, only built on the first lookup by id
+    @Nullable
+    private IntIntHashMap index;
+    // while shuffled lazily, maps the positions to the ones in the blocks
+    @Nullable
+    private LazyPermutation permutation;
+
+    public SongIdList(@NonNull SongCache cache) {
+        this.cache = cache;
+    }
+
+    public SongIdList(@NonNull SongCache cache, @NonNull Collection<? extends Song> songs) {
+        this(cache);
+        addAll(songs);
+    }
+
+    /**
+     * Copies the ids of the other list, a lazy shuffle stays lazy in the copy.
+     */
+    public SongIdList(@NonNull SongIdList other) {
+        this(other.cache);
+        synchronized (other) {
+            rebuild(other.toUnshuffledIdArray());
+            if (other.permutation != null) {
+                permutation = new LazyPermutation(size, other.permutation.getFirst(), other.permutation.getSeed());
+            }
+        }
+    }
+
+    @Override
+    public Song get(int index) {
+        return cache.get(getId(index));
+    }
+
+    public synchronized int getId(int index) {
+        checkIndex(index, size);
+        final long location = locate(permutation == null ? index : permutation.get(index));
+        return blocks.get((int) (location >>> 32)).ids[(int) location];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized Song set(int index, @NonNull Song song) {
+        final Song previous = get(index);
+        cache.put(song);
+        removeId(index);
+        insertId(index, song.id);
+        return previous;
+    }
+
+    @Override
+    public synchronized void add(int index, @NonNull Song song) {
+        checkIndex(index, size + 1);
+        // a single song was explicitly queued, it may not be in the library
+        cache.put(song);
+        insertId(index, song.id);
+    }
+
+    @Override
+    public synchronized boolean addAll(@NonNull Collection<? extends Song> songs) {
+        return addAll(size, songs);
+    }
+
+    @Override
+    public synchronized boolean addAll(int index, @NonNull Collection<? extends Song> songs) {
+        if (songs instanceof List && !(songs instanceof SongIdList)) {
+            // the songs may not be loaded from the library yet, keep the first ones to play
+            cache.putAround((List<? extends Song>) songs, 0);
+        }
+        final int[] addedIds = idsOf(songs);
+        addIds(index, addedIds);
+        return addedIds.length > 0;
+    }
+
+    /**
+     * Inserts the songs with the given ids, without materializing them.
+     */
+    public synchronized void addIds(int index, @NonNull int[] addedIds) {
+        checkIndex(index, size + 1);
+        if (addedIds.length == 0) {
+            return;
+        }
+        applyPermutation();
+        if (addedIds.length < MAX_BLOCK_SIZE) {
+            for (int i = 0; i < addedIds.length; i++) {
+                insertId(index + i, addedIds[i]);
+            }
+        } else {
+            // cheaper to rebuild all blocks once than to split them over and over
+            final int[] ids = new int[size + addedIds.length];
+            copyIds(0, index, ids, 0);
+            System.arraycopy(addedIds, 0, ids, index, addedIds.length);
+            copyIds(index, size, ids, index + addedIds.length);
+            rebuild(ids);
+        }
+    }
+
+    @Override
+    public Song remove(int index) {
+        return cache.get(removeId(index));
+    }
+
+    /**
+     * Like {@link #remove(int)}, but doesn't materialize the removed song.
+     *
+     * @return the id of the removed song
+     */
+    public synchronized int removeId(int index) {
+        checkIndex(index, size);
+        applyPermutation();
+        final long location = locate(index);
+        final int ordinal = (int) (location >>> 32);
+        final int offset = (int) location;
+        final Block block = blocks.get(ordinal);
+        final int songId = block.ids[offset];
+        System.arraycopy(block.ids, offset + 1, block.ids, offset, block.size - offset - 1);
+        block.size--;
+        size--;
+        modCount++;
+        unindex(songId);
+
+        if (block.size == 0 && blocks.size() > 1) {
+            dropBlock(ordinal);
+        } else if (ordinal + 1 < blocks.size() && block.size + blocks.get(ordinal + 1).size <= MERGE_BLOCK_SIZE) {
+            mergeIntoPrevious(ordinal + 1);
+        } else if (ordinal > 0 && block.size + blocks.get(ordinal - 1).size <= MERGE_BLOCK_SIZE) {
+            mergeIntoPrevious(ordinal);
+        } else {
+            addToBlockSize(ordinal, -1);
+        }
+        return songId;
+    }
+
+    /**
+     * Moves the song at one position to another, without materializing it.
+     */
+    public synchronized void move(int from, int to) {
+        checkIndex(to, size);
+        insertId(to, removeId(from));
+    }
+
+    /**
+     * Removes all occurrences of the given song ids in a single pass.
+     *
+     * @param songIds  the ids of the songs to remove as keys
+     * @param position a position in this list, e.g. of the current song
+     * @return where the song at the given position is now, or where the song behind it is now if it was removed
+     */
+    public synchronized int removeAllIds(@NonNull IntIntHashMap songIds, int position) {
+        final int[] ids = toIdArray();
+        int kept = 0;
+        int newPosition = -1;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == position) {
+                newPosition = kept;
+            }
+            if (!songIds.containsKey(ids[i])) {
+                ids[kept++] = ids[i];
+            }
+        }
+        if (kept < ids.length) {
+            rebuild(Arrays.copyOf(ids, kept));
+        }
+        return newPosition < 0 ? kept : newPosition;
+    }
+
+    @Override
+    public synchronized void clear() {
+        rebuild(new int[0]);
+    }
+
+    /**
+     * @return the first position of the song with the given id, or -1
+     */
+    public synchronized int indexOfId(int songId) {
+        applyPermutation();
+        final int entry = getIndex().get(songId, NOT_INDEXED);
+        if (entry == NOT_INDEXED) {
+            return -1;
+        }
+        if (entry < UNKNOWN_BLOCK) {
+            // the song is in the list several times, which is rare enough to just find the first one
+            return scanForId(songId);
+        }
+        if (entry == UNKNOWN_BLOCK) {
+            final int position = scanForId(songId);
+            index.put(songId, blocks.get((int) (locate(position) >>> 32)).serial);
+            return position;
+        }
+        final Block block = blocksBySerial[entry];
+        int position = prefixSize(block.ordinal);
+        for (int i = 0; i < block.size; i++) {
+            if (block.ids[i] == songId) {
+                return position + i;
+            }
+        }
+        throw new IllegalStateException("Index out of sync for song " + songId);
+    }
+
+    /**
+     * @return how often the song with the given id is in the list
+     */
+    public synchronized int countOfId(int songId) {
+        final int entry = getIndex().get(songId, NOT_INDEXED);
+        return entry == NOT_INDEXED ? 0 : entry >= 0 ? 1 : Math.max(1, -entry);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        // the songs are identified by their ids, comparing them doesn't need to materialize any song
+        return o instanceof Song ? indexOfId(((Song) o).id) : -1;
+    }
+
+    @Override
+    public synchronized int lastIndexOf(Object o) {
+        if (!(o instanceof Song)) return -1;
+        final int songId = ((Song) o).id;
+        if (countOfId(songId) <= 1) {
+            return indexOfId(songId);
+        }
+        applyPermutation();
+        int position = size;
+        for (int ordinal = blocks.size() - 1; ordinal >= 0; ordinal--) {
+            final Block block = blocks.get(ordinal);
+            position -= block.size;
+            for (int i = block.size - 1; i >= 0; i--) {
+                if (block.ids[i] == songId) {
+                    return position + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Song && countOfId(((Song) o).id) > 0;
+    }
+
+    /**
+     * Moves the song at the given position to the front and shuffles the others, lazily. The order only depends on
+     * the ids, the position and the seed, so shuffling the same ids with the same seed again gives the same order.
+     *
+     * @param current the position of the song to keep at the front, or -1 to shuffle all songs
+     */
+    public synchronized void shuffle(int current, long seed) {
+        if (current >= 0) {
+            checkIndex(current, size);
+        }
+        if (permutation != null && current >= 0) {
+            // shuffled again, the ids in the blocks stay in the order from before the first shuffle
+            current = permutation.get(current);
+        }
+        permutation = new LazyPermutation(size, current, seed);
+        modCount++;
+    }
+
+    /**
+     * Undoes the last {@link #shuffle(int, long)}, if the list wasn't changed since.
+     *
+     * @param position a position in this list, e.g. of the current song
+     * @return where the song at the given position was before the shuffle, or -1 if the position is out of range
+     * @throws IllegalStateException if the list is not shuffled lazily, see {@link #isShuffledLazily()}
+     */
+    public synchronized int unshuffle(int position) {
+        if (permutation == null) {
+            throw new IllegalStateException("Not shuffled lazily");
+        }
+        final int unshuffledPosition = position >= 0 && position < size ? permutation.get(position) : -1;
+        permutation = null;
+        modCount++;
+        return unshuffledPosition;
+    }
+
+    /**
+     * @return true if the list was shuffled and not changed since, the ids are still in the order from before then
+     */
+    public synchronized boolean isShuffledLazily() {
+        return permutation != null;
+    }
+
+    /**
+     * @return the permutation of the lazy shuffle, or null if the list is not shuffled lazily
+     */
+    @Nullable
+    public synchronized LazyPermutation getPermutation() {
+        return permutation;
+    }
+
+    /**
+     * @return the ids in the order from before the lazy shuffle, or in their order if the list is not shuffled lazily
+     */
+    @NonNull
+    public synchronized int[] toUnshuffledIdArray() {
+        final int[] ids = new int[size];
+        copyIds(0, size, ids, 0);
+        return ids;
+    }
+
+    @NonNull
+    public synchronized int[] toIdArray() {
+        final int[] ids = toUnshuffledIdArray();
+        if (permutation != null) {
+            LazyPermutation.shuffle(ids, permutation.getFirst(), permutation.getSeed());
+        }
+        return ids;
+    }
+
+    /**
+     * Moves the ids in the blocks to their shuffled positions before the list gets changed.
+     */
+    private void applyPermutation() {
+        if (permutation == null) return;
+        // the order stays the same, an iteration over the list can go on
+        final int modCount = this.modCount;
+        rebuild(toIdArray());
+        this.modCount = modCount;
+    }
+
+    private void insertId(int position, int songId) {
+        applyPermutation();
+        if (blocks.isEmpty()) {
+            rebuild(new int[]{songId});
+            return;
+        }
+        int ordinal;
+        int offset;
+        if (position == size) {
+            ordinal = blocks.size() - 1;
+            offset = blocks.get(ordinal).size;
+        } else {
+            final long location = locate(position);
+            ordinal = (int) (location >>> 32);
+            offset = (int) location;
+        }
+        Block block = blocks.get(ordinal);
+        if (block.size == MAX_BLOCK_SIZE) {
+            split(ordinal);
+            if (offset > block.size) {
+                offset -= block.size;
+                ordinal++;
+                block = blocks.get(ordinal);
+            }
+        }
+        System.arraycopy(block.ids, offset, block.ids, offset + 1, block.size - offset);
+        block.ids[offset] = songId;
+        block.size++;
+        size++;
+        modCount++;
+        addToBlockSize(ordinal, 1);
+        if (index != null) {
+            final int entry = index.get(songId, NOT_INDEXED);
+            index.put(songId, entry == NOT_INDEXED ? block.serial : entry >= UNKNOWN_BLOCK ? -2 : entry - 1);
+        }
+    }
+
+    private void unindex(int songId) {
+        if (index == null) return;
+        final int entry = index.get(songId, NOT_INDEXED);
+        if (entry >= UNKNOWN_BLOCK) {
+            index.remove(songId, NOT_INDEXED);
+        } else if (entry == -2) {
+            index.put(songId, UNKNOWN_BLOCK);
+        } else {
+            index.put(songId, entry + 1);
+        }
+    }
+
+    @NonNull
+    private IntIntHashMap getIndex() {
+        if (index == null) {
+            final IntIntHashMap index = new IntIntHashMap(size);
+            for (Block block : blocks) {
+                for (int i = 0; i < block.size; i++) {
+                    final int entry = index.get(block.ids[i], NOT_INDEXED);
+                    index.put(block.ids[i], entry == NOT_INDEXED ? block.serial : entry >= 0 ? -2 : entry - 1);
+                }
+            }
+            this.index = index;
+        }
+        return index;
+    }
+
+    private int scanForId(int songId) {
+        int position = 0;
+        for (Block block : blocks) {
+            for (int i = 0; i < block.size; i++) {
+                if (block.ids[i] == songId) {
+                    return position + i;
+                }
+            }
+            position += block.size;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the upper half of a full block into a new block behind it.
+     */
+    private void split(int ordinal) {
+        final Block block = blocks.get(ordinal);
+        final Block upper = newBlock();
+        upper.size = block.size / 2;
+        block.size -= upper.size;
+        System.arraycopy(block.ids, block.size, upper.ids, 0, upper.size);
+        reindex(upper, block);
+        blocks.add(ordinal + 1, upper);
+        onBlocksChanged();
+    }
+
+    /**
+     * Appends the block at the ordinal to the block before it.
+     */
+    private void mergeIntoPrevious(int ordinal) {
+        final Block block = blocks.get(ordinal);
+        final Block previous = blocks.get(ordinal - 1);
+        System.arraycopy(block.ids, 0, previous.ids, previous.size, block.size);
+        previous.size += block.size;
+        reindex(block, previous);
+        dropBlock(ordinal);
+    }
+
+    private void dropBlock(int ordinal) {
+        blocksBySerial[blocks.remove(ordinal).serial] = null;
+        if (serialCount > 2 * blocks.size() + 16) {
+            // too many serials of dropped blocks, number the blocks again
+            blocksBySerial = new Block[Math.max(4, blocks.size() * 2)];
+            serialCount = 0;
+            final ArrayList<Block> renumbered = new ArrayList<>(blocks.size());
+            for (Block block : blocks) {
+                final Block copy = newBlock();
+                System.arraycopy(block.ids, 0, copy.ids, 0, block.size);
+                copy.size = block.size;
+                renumbered.add(copy);
+            }
+            blocks.clear();
+            blocks.addAll(renumbered);
+            index = null;
+        }
+        onBlocksChanged();
+    }
+
+    /**
+     * Points the index entries of the ids of the given block from the block they came from to it.
+     */
+    private void reindex(@NonNull Block block, @NonNull Block from) {
+        if (index == null) return;
+        for (int i = 0; i < block.size; i++) {
+            if (index.get(block.ids[i], NOT_INDEXED) == from.serial) {
+                index.put(block.ids[i], block.serial);
+            }
+        }
+    }
+
+    @NonNull
+    private Block newBlock() {
+        if (serialCount == blocksBySerial.length) {
+            blocksBySerial = Arrays.copyOf(blocksBySerial, serialCount * 2);
+        }
+        final Block block = new Block(serialCount);
+        blocksBySerial[serialCount++] = block;
+        return block;
+    }
+
+    /**
+     * Splits the ids into new blocks with room for insertions.
+     */
+    private void rebuild(@NonNull int[] ids) {
+        blocks.clear();
+        blocksBySerial = new Block[Math.max(4, 2 * (ids.length / FILL_BLOCK_SIZE + 1))];
+        serialCount = 0;
+        for (int start = 0; start < ids.length; start += FILL_BLOCK_SIZE) {
+            final Block block = newBlock();
+            block.size = Math.min(FILL_BLOCK_SIZE, ids.length - start);
+            System.arraycopy(ids, start, block.ids, 0, block.size);
+            blocks.add(block);
+        }
+        size = ids.length;
+        index = null;
+        permutation = null;
+        modCount++;
+        onBlocksChanged();
+    }
+
+    private void onBlocksChanged() {
+        blockSizeTree = new int[blocks.size() + 1];
+        for (int ordinal = 0; ordinal < blocks.size(); ordinal++) {
+            final Block block = blocks.get(ordinal);
+            block.ordinal = ordinal;
+            // linear time Fenwick construction
+            final int node = ordinal + 1;
+            blockSizeTree[node] += block.size;
+            final int parent = node + (node & -node);
+            if (parent < blockSizeTree.length) {
+                blockSizeTree[parent] += blockSizeTree[node];
+            }
+        }
+    }
+
+    private void addToBlockSize(int ordinal, int delta) {
+        for (int node = ordinal + 1; node < blockSizeTree.length; node += node & -node) {
+            blockSizeTree[node] += delta;
+        }
+    }
+
+    /**
+     * @return the number of ids in the blocks before the given one
+     */
+    private int prefixSize(int ordinal) {
+        int sum = 0;
+        for (int node = ordinal; node > 0; node -= node & -node) {
+            sum += blockSizeTree[node];
+        }
+        return sum;
+    }
+
+    /**
+     * @return the ordinal of the block holding the position in the upper and the offset in the block in the lower half
+     */
+    private long locate(int position) {
+        int node = 0;
+        int remaining = position;
+        for (int step = Integer.highestOneBit(blocks.size()); step > 0; step >>= 1) {
+            final int next = node + step;
+            if (next < blockSizeTree.length && blockSizeTree[next] <= remaining) {
+                node = next;
+                remaining -= blockSizeTree[next];
+            }
+        }
+        return (long) node << 32 | remaining;
+    }
+
+    /**
+     * Copies the ids from position {@code from} to {@code to} (exclusive) into the target array.
+     */
+    private void copyIds(int from, int to, @NonNull int[] target, int targetPosition) {
+        if (from >= to) return;
+        final long location = locate(from);
+        int ordinal = (int) (location >>> 32);
+        int offset = (int) location;
+        int remaining = to - from;
+        while (remaining > 0) {
+            final Block block = blocks.get(ordinal++);
+            final int count = Math.min(remaining, block.size - offset);
+            System.arraycopy(block.ids, offset, target, targetPosition, count);
+            targetPosition += count;
+            remaining -= count;
+            offset = 0;
+        }
+    }
+
+    @NonNull
+    private static int[] idsOf(@NonNull Collection<? extends Song> songs) {
+        if (songs instanceof SongIdList) {
+            return ((SongIdList) songs).toIdArray();
+        }
+        final int[] ids = new int[songs.size()];
+        int i = 0;
+        for (Song song : songs) {
+            ids[i++] = song.id;
+        }
+        return ids;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.provider.MediaStore;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An immutable secondary index of the library: maps each key (e.g. a genre or a year) to the sorted ids
+ * of the songs with that key. A song may appear under several keys.
+ * <p/>
+ * The keys are kept in the order of the comparator the index was built with.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SongIndex {
+    /**
+     * Orders text keys by their MediaStore sort key, like the album and artist tabs.
+     */
+    public static final Comparator<String> TEXT_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int result = MediaStore.Audio.keyFor(a).compareTo(MediaStore.Audio.keyFor(b));
+            return result != 0 ? result : a.compareTo(b);
+        }
+    };
+
+    /**
+     * Orders numeric keys, e.g. years, newest first like the year sort orders.
+     */
+    public static final Comparator<String> NUMBER_DESCENDING_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            long x = Long.parseLong(a);
+            long y = Long.parseLong(b);
+            return x > y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    @NonNull
+    private final String[] keys;
+    @NonNull
+    private final int[][] songIds;
+    @NonNull
+    private final Comparator<String> keyOrder;
+
+    private SongIndex(@NonNull String[] keys, @NonNull int[][] songIds, @NonNull Comparator<String> keyOrder) {
+        this.keys = keys;
+        this.songIds = songIds;
+        this.keyOrder = keyOrder;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    @NonNull
+    public String getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * @return the ids of the songs with the key at the given index in ascending order, must not be modified
+     */
+    @NonNull
+    public int[] getSongIds(int index) {
+        return songIds[index];
+    }
+
+    /**
+     * @return the index of the key or a negative value if no song has the key
+     */
+    public int indexOf(@NonNull String key) {
+        return Arrays.binarySearch(keys, key, keyOrder);
+    }
+
+    /**
+     * @return the ids of the songs with the given key in ascending order, must not be modified
+     */
+    @NonNull
+    public int[] getSongIds(@NonNull String key) {
+        int index = indexOf(key);
+        return index < 0 ? new int[0] : songIds[index];
+    }
+
+    /**
+     * @param excludedSongIds sorted ids of songs to leave out, e.g. because they changed
+     * @return a builder with all entries of this index except the ones of the given songs
+     */
+    @NonNull
+    public Builder buildUpon(@NonNull int[] excludedSongIds) {
+        Builder builder = new Builder(keyOrder);
+        for (int i = 0; i < keys.length; i++) {
+            for (int songId : songIds[i]) {
+                if (Arrays.binarySearch(excludedSongIds, songId) < 0) {
+                    builder.add(keys[i], songId);
+                }
+            }
+        }
+        return builder;
+    }
+
+    public static class Builder {
+        private final HashMap<String, IdList> entries = new HashMap<>();
+        @NonNull
+        private final Comparator<String> keyOrder;
+
+        /**
+         * @param keyOrder the order of the keys, must be consistent with equals
+         */
+        public Builder(@NonNull Comparator<String> keyOrder) {
+            this.keyOrder = keyOrder;
+        }
+
+        /**
+         * Adds a song under the given key, null and empty keys are ignored.
+         */
+        @NonNull
+        public Builder add(@Nullable String key, int songId) {
+            if (key == null || key.trim().isEmpty()) {
+                return this;
+            }
+            IdList ids = entries.get(key);
+            if (ids == null) {
+                ids = new IdList();
+                entries.put(key, ids);
+            }
+            ids.add(songId);
+            return this;
+        }
+
+        @NonNull
+        public SongIndex build() {
+            ArrayList<String> keys = new ArrayList<>(entries.keySet());
+            Collections.sort(keys, keyOrder);
+            int[][] songIds = new int[keys.size()][];
+            for (int i = 0; i < keys.size(); i++) {
+                songIds[i] = entries.get(keys.get(i)).toSortedUniqueArray();
+            }
+            return new SongIndex(keys.toArray(new String[keys.size()]), songIds, keyOrder);
+        }
+    }
+
+    private static class IdList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        @NonNull
+        int[] toSortedUniqueArray() {
+            Arrays.sort(ids, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || ids[i] != ids[i - 1]) {
+                    ids[unique++] = ids[i];
+                }
+            }
+            return Arrays.copyOf(ids, unique);
+        }
+    }
+}
@@ -21,8 +21,32 @@ public class SongLoader {
 
     @NonNull
     public static ArrayList<Song> getAllSongs(@NonNull Context context) {
-        Cursor cursor = makeSongCursor(context, null, null);
-        return getSongs(cursor);
+        return MusicLibrary.getInstance(context).getSongs(PreferenceUtil.getInstance(context).getSongSortOrder());
+    }
+
+    /**
+     * @return all songs from the library snapshot or null if there is no snapshot or the library is already up to date
+     */
+    @Nullable
+    public static ArrayList<Song> getAllSongsFromSnapshot(@NonNull Context context) {
+        return MusicLibrary.getInstance(context).getSongsFromSnapshot(PreferenceUtil.getInstance(context).getSongSortOrder());
+    }
+
+    /**
+     * @return all songs as a list that only materializes the songs that are accessed, for very large libraries
+     */
+    @NonNull
+    public static PagedSongList getAllSongsPaged(@NonNull Context context) {
+        return MusicLibrary.getInstance(context).getPagedSongs(PreferenceUtil.getInstance(context).getSongSortOrder());
+    }
+
+    /**
+     * @see #getAllSongsPaged(Context)
+     * @see #getAllSongsFromSnapshot(Context)
+     */
+    @Nullable
+    public static PagedSongList getAllSongsPagedFromSnapshot(@NonNull Context context) {
+        return MusicLibrary.getInstance(context).getPagedSongsFromSnapshot(PreferenceUtil.getInstance(context).getSongSortOrder());
     }
 
     @NonNull
@@ -65,8 +89,12 @@ public class SongLoader {
         return song;
     }
 
+    /**
+     * Album and artist names are shared between songs, titles and paths are unique to each song.
+     */
     @NonNull
-    private static Song getSongFromCursorImpl(@NonNull Cursor cursor) {
+    static Song getSongFromCursorImpl(@NonNull Cursor cursor) {
+        final StringPool pool = StringPool.getInstance();
         final int id = cursor.getInt(0);
         final String title = cursor.getString(1);
         final int trackNumber = cursor.getInt(2);
@@ -75,13 +103,20 @@ public class SongLoader {
         final String data = cursor.getString(5);
         final long dateModified = cursor.getLong(6);
         final int albumId = cursor.getInt(7);
-        final String albumName = cursor.getString(8);
+        final String albumName = pool.intern(cursor.getString(8));
         final int artistId = cursor.getInt(9);
-        final String artistName = cursor.getString(10);
+        final String artistName = pool.intern(cursor.getString(10));
 
         return new Song(id, title, trackNumber, year, duration, data, dateModified, albumId, albumName, artistId, artistName);
     }
 
+    /**
+     * @param cursor a cursor created by {@link #makeSongCursor(Context, String, String[], String)}
+     */
+    static long getDateAddedFromCursor(@NonNull Cursor cursor) {
+        return cursor.getLong(11);
+    }
+
     @Nullable
     public static Cursor makeSongCursor(@NonNull final Context context, @Nullable final String selection, final String[] selectionValues) {
         return makeSongCursor(context, selection, selectionValues, PreferenceUtil.getInstance(context).getSongSortOrder());
@@ -108,6 +143,7 @@ public class SongLoader {
                             AudioColumns.ALBUM,// 8
                             AudioColumns.ARTIST_ID,// 9
                             AudioColumns.ARTIST,// 10
+                            AudioColumns.DATE_ADDED,// 11
 
                     }, baseSelection, selectionValues, sortOrder);
         } catch (SecurityException e) {
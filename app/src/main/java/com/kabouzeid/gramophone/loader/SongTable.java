@@ -0,0 +1,360 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Column oriented storage of songs: one primitive array per {@link Song} field and a deduplicated
+ * string pool that the string columns index into.
+ * <p/>
+ * A row costs a few primitives instead of a {@link Song} object, and album names, artist names and
+ * any other repeated string are only held once. Paths are split into a directory and a file name so the
+ * directories are shared as well. {@link Song} objects are materialized on demand with
+ * {@link #getSong(int)}, they share the strings of the pool.
+ * <p/>
+ * Tables are immutable. The rows of the tables kept by the {@link MusicLibrary} are ordered by id.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SongTable {
+    public static final SongTable EMPTY = new Builder(0).build();
+
+    /**
+     * The index string columns hold for null strings.
+     */
+    public static final int NULL_STRING = -1;
+
+    private final int size;
+    // the columns are exposed for bulk access (e.g. by the snapshot store), they must not be modified
+    public final String[] strings;
+    public final int[] ids;
+    public final int[] titles;
+    public final int[] trackNumbers;
+    public final int[] years;
+    public final long[] durations;
+    // the directory of the path including the trailing separator, or NULL_STRING if the path has none
+    public final int[] directories;
+    public final int[] fileNames;
+    public final long[] datesModified;
+    public final int[] albumIds;
+    public final int[] albumNames;
+    public final int[] artistIds;
+    public final int[] artistNames;
+    public final long[] datesAdded;
+
+    /**
+     * Wraps the given columns without copying them, all of them must have the same length.
+     */
+    public SongTable(@NonNull String[] strings, @NonNull int[] ids, @NonNull int[] titles, @NonNull int[] trackNumbers, @NonNull int[] years,
+                     @NonNull long[] durations, @NonNull int[] directories, @NonNull int[] fileNames, @NonNull long[] datesModified, @NonNull int[] albumIds, @NonNull int[] albumNames,
+                     @NonNull int[] artistIds, @NonNull int[] artistNames, @NonNull long[] datesAdded) {
+        this.size = ids.length;
+        this.strings = strings;
+        this.ids = ids;
+        this.titles = titles;
+        this.trackNumbers = trackNumbers;
+        this.years = years;
+        this.durations = durations;
+        this.directories = directories;
+        this.fileNames = fileNames;
+        this.datesModified = datesModified;
+        this.albumIds = albumIds;
+        this.albumNames = albumNames;
+        this.artistIds = artistIds;
+        this.artistNames = artistNames;
+        this.datesAdded = datesAdded;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public String getTitle(int row) {
+        return string(titles[row]);
+    }
+
+    public int getTrackNumber(int row) {
+        return trackNumbers[row];
+    }
+
+    public int getYear(int row) {
+        return years[row];
+    }
+
+    public long getDuration(int row) {
+        return durations[row];
+    }
+
+    public String getData(int row) {
+        if (fileNames[row] == NULL_STRING) return null;
+        if (directories[row] == NULL_STRING) return strings[fileNames[row]];
+        return strings[directories[row]] + strings[fileNames[row]];
+    }
+
+    public long getDateModified(int row) {
+        return datesModified[row];
+    }
+
+    public int getAlbumId(int row) {
+        return albumIds[row];
+    }
+
+    public String getAlbumName(int row) {
+        return string(albumNames[row]);
+    }
+
+    public int getArtistId(int row) {
+        return artistIds[row];
+    }
+
+    public String getArtistName(int row) {
+        return string(artistNames[row]);
+    }
+
+    /**
+     * @return the {@link android.provider.MediaStore.Audio.AudioColumns#DATE_ADDED} of the row
+     */
+    public long getDateAdded(int row) {
+        return datesAdded[row];
+    }
+
+    @Nullable
+    public String string(int index) {
+        return index == NULL_STRING ? null : strings[index];
+    }
+
+    /**
+     * Materializes a {@link Song} view of the row.
+     */
+    @NonNull
+    public Song getSong(int row) {
+        return new Song(ids[row], string(titles[row]), trackNumbers[row], years[row], durations[row],
+                getData(row), datesModified[row], albumIds[row], string(albumNames[row]),
+                artistIds[row], string(artistNames[row]));
+    }
+
+    /**
+     * Materializes all rows in the given order.
+     */
+    @NonNull
+    public ArrayList<Song> getSongs(@NonNull int[] rows) {
+        ArrayList<Song> songs = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            songs.add(getSong(row));
+        }
+        return songs;
+    }
+
+    /**
+     * @return the row of the song with the given id or a negative value, only valid for tables ordered by id
+     */
+    public int indexOfId(int songId) {
+        return Arrays.binarySearch(ids, 0, size, songId);
+    }
+
+    public boolean contentEquals(@NonNull SongTable other) {
+        if (size != other.size) return false;
+        if (!Arrays.equals(ids, other.ids)
+                || !Arrays.equals(trackNumbers, other.trackNumbers)
+                || !Arrays.equals(years, other.years)
+                || !Arrays.equals(durations, other.durations)
+                || !Arrays.equals(datesModified, other.datesModified)
+                || !Arrays.equals(albumIds, other.albumIds)
+                || !Arrays.equals(artistIds, other.artistIds)
+                || !Arrays.equals(datesAdded, other.datesAdded)) {
+            return false;
+        }
+        for (int row = 0; row < size; row++) {
+            if (!equal(getTitle(row), other.getTitle(row))
+                    || !equal(string(directories[row]), other.string(other.directories[row]))
+                    || !equal(string(fileNames[row]), other.string(other.fileNames[row]))
+                    || !equal(getAlbumName(row), other.getAlbumName(row))
+                    || !equal(getArtistName(row), other.getArtistName(row))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Collects rows into a new table, deduplicating the strings on the way.
+     */
+    public static class Builder {
+        private final HashMap<String, Integer> stringIndices = new HashMap<>();
+        private final ArrayList<String> strings = new ArrayList<>();
+        // the table whose string pool this builder extends, its rows are copied without touching the strings
+        @Nullable
+        private final SongTable base;
+        private boolean baseStringsIndexed;
+
+        private int size;
+        private int[] ids;
+        private int[] titles;
+        private int[] trackNumbers;
+        private int[] years;
+        private long[] durations;
+        private int[] directories;
+        private int[] fileNames;
+        private long[] datesModified;
+        private int[] albumIds;
+        private int[] albumNames;
+        private int[] artistIds;
+        private int[] artistNames;
+        private long[] datesAdded;
+
+        public Builder(int expectedSize) {
+            this(null, expectedSize);
+        }
+
+        /**
+         * @param base a table most rows are copied from, e.g. the previous state of the library. The new table
+         *             keeps all of its strings, even the ones only used by rows that are not copied.
+         */
+        public Builder(@Nullable SongTable base, int expectedSize) {
+            this.base = base;
+            if (base != null) {
+                strings.addAll(Arrays.asList(base.strings));
+            }
+            allocate(Math.max(expectedSize, 16));
+        }
+
+        @NonNull
+        public Builder add(@NonNull Song song, long dateAdded) {
+            ensureCapacity();
+            ids[size] = song.id;
+            titles[size] = pool(song.title);
+            trackNumbers[size] = song.trackNumber;
+            years[size] = song.year;
+            durations[size] = song.duration;
+            addPath(song.data);
+            datesModified[size] = song.dateModified;
+            albumIds[size] = song.albumId;
+            albumNames[size] = pool(song.albumName);
+            artistIds[size] = song.artistId;
+            artistNames[size] = pool(song.artistName);
+            datesAdded[size] = dateAdded;
+            size++;
+            return this;
+        }
+
+        /**
+         * Copies a row of another table without materializing it.
+         */
+        @NonNull
+        public Builder add(@NonNull SongTable table, int row) {
+            ensureCapacity();
+            if (table == base) {
+                ids[size] = table.ids[row];
+                titles[size] = table.titles[row];
+                trackNumbers[size] = table.trackNumbers[row];
+                years[size] = table.years[row];
+                durations[size] = table.durations[row];
+                directories[size] = table.directories[row];
+                fileNames[size] = table.fileNames[row];
+                datesModified[size] = table.datesModified[row];
+                albumIds[size] = table.albumIds[row];
+                albumNames[size] = table.albumNames[row];
+                artistIds[size] = table.artistIds[row];
+                artistNames[size] = table.artistNames[row];
+                datesAdded[size] = table.datesAdded[row];
+                size++;
+                return this;
+            }
+            ids[size] = table.ids[row];
+            titles[size] = pool(table.getTitle(row));
+            trackNumbers[size] = table.trackNumbers[row];
+            years[size] = table.years[row];
+            durations[size] = table.durations[row];
+            directories[size] = pool(table.string(table.directories[row]));
+            fileNames[size] = pool(table.string(table.fileNames[row]));
+            datesModified[size] = table.datesModified[row];
+            albumIds[size] = table.albumIds[row];
+            albumNames[size] = pool(table.getAlbumName(row));
+            artistIds[size] = table.artistIds[row];
+            artistNames[size] = pool(table.getArtistName(row));
+            datesAdded[size] = table.datesAdded[row];
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @NonNull
+        public SongTable build() {
+            return new SongTable(strings.toArray(new String[strings.size()]),
+                    Arrays.copyOf(ids, size), Arrays.copyOf(titles, size), Arrays.copyOf(trackNumbers, size),
+                    Arrays.copyOf(years, size), Arrays.copyOf(durations, size),
+                    Arrays.copyOf(directories, size), Arrays.copyOf(fileNames, size),
+                    Arrays.copyOf(datesModified, size), Arrays.copyOf(albumIds, size), Arrays.copyOf(albumNames, size),
+                    Arrays.copyOf(artistIds, size), Arrays.copyOf(artistNames, size), Arrays.copyOf(datesAdded, size));
+        }
+
+        private void addPath(@Nullable String path) {
+            int separator = path == null ? -1 : path.lastIndexOf('/');
+            if (separator < 0) {
+                directories[size] = NULL_STRING;
+                fileNames[size] = pool(path);
+            } else {
+                directories[size] = pool(path.substring(0, separator + 1));
+                fileNames[size] = pool(path.substring(separator + 1));
+            }
+        }
+
+        private int pool(@Nullable String string) {
+            if (string == null) {
+                return NULL_STRING;
+            }
+            if (base != null && !baseStringsIndexed) {
+                baseStringsIndexed = true;
+                for (int i = 0; i < base.strings.length; i++) {
+                    stringIndices.put(base.strings[i], i);
+                }
+            }
+            Integer index = stringIndices.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndices.put(string, index);
+            }
+            return index;
+        }
+
+        private void ensureCapacity() {
+            if (size == ids.length) {
+                allocate(size * 2);
+            }
+        }
+
+        private void allocate(int capacity) {
+            ids = ids == null ? new int[capacity] : Arrays.copyOf(ids, capacity);
+            titles = titles == null ? new int[capacity] : Arrays.copyOf(titles, capacity);
+            trackNumbers = trackNumbers == null ? new int[capacity] : Arrays.copyOf(trackNumbers, capacity);
+            years = years == null ? new int[capacity] : Arrays.copyOf(years, capacity);
+            durations = durations == null ? new long[capacity] : Arrays.copyOf(durations, capacity);
+            directories = directories == null ? new int[capacity] : Arrays.copyOf(directories, capacity);
+            fileNames = fileNames == null ? new int[capacity] : Arrays.copyOf(fileNames, capacity);
+            datesModified = datesModified == null ? new long[capacity] : Arrays.copyOf(datesModified, capacity);
+            albumIds = albumIds == null ? new int[capacity] : Arrays.copyOf(albumIds, capacity);
+            albumNames = albumNames == null ? new int[capacity] : Arrays.copyOf(albumNames, capacity);
+            artistIds = artistIds == null ? new int[capacity] : Arrays.copyOf(artistIds, capacity);
+            artistNames = artistNames == null ? new int[capacity] : Arrays.copyOf(artistNames, capacity);
+            datesAdded = datesAdded == null ? new long[capacity] : Arrays.copyOf(datesAdded, capacity);
+        }
+    }
+}
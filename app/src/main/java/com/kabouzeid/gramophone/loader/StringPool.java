@@ -0,0 +1,85 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Interns the strings the loaders read from cursors so that equal album names, artist names etc.
+ * are only held once, no matter how many songs refer to them.
+ * <p/>
+ * The pool only holds weak references, a string disappears from it as soon as no song uses it anymore.
+ * It keeps track of the bytes it saved by handing out an existing string instead of the fresh copy.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class StringPool {
+    // object header, hash and length fields of a String on a 32 bit VM, the chars come on top
+    private static final int STRING_OVERHEAD = 24;
+
+    private static final StringPool sInstance = new StringPool();
+
+    private final WeakHashMap<String, WeakReference<String>> strings = new WeakHashMap<>();
+
+    private long lookups;
+    private long hits;
+    private long savedBytes;
+
+    StringPool() {
+    }
+
+    /**
+     * @return the process wide pool used by all loaders
+     */
+    @NonNull
+    public static StringPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return a string equal to the given one, the same instance for all equal strings that are still in use
+     */
+    @Nullable
+    public synchronized String intern(@Nullable String string) {
+        if (string == null) {
+            return null;
+        }
+        lookups++;
+        WeakReference<String> reference = strings.get(string);
+        String pooled = reference == null ? null : reference.get();
+        if (pooled != null) {
+            hits++;
+            savedBytes += STRING_OVERHEAD + 2 * string.length();
+            return pooled;
+        }
+        strings.put(string, new WeakReference<>(string));
+        return string;
+    }
+
+    /**
+     * @return an estimate of the bytes that were saved by sharing strings, the strings may have been collected in the meantime
+     */
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StringPool{" +
+                "size=" + strings.size() +
+                ", lookups=" + lookups +
+                ", hits=" + hits +
+                ", savedBytes=" + savedBytes +
+                '}';
+    }
+}
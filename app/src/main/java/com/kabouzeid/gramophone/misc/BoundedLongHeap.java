@@ -0,0 +1,80 @@
+package com.kabouzeid.gramophone.misc;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the k smallest of the values offered to it.
+ * <p/>
+ * A max heap of at most k values: a value smaller than the largest kept one replaces it, everything else is
+ * dropped right away. Selecting the k best of n ranking keys this way takes O(n log k) instead of sorting all n.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class BoundedLongHeap {
+    @NonNull
+    private final long[] heap;
+    private int size;
+
+    /**
+     * @param capacity the number of values to keep
+     */
+    public BoundedLongHeap(int capacity) {
+        heap = new long[Math.max(0, capacity)];
+    }
+
+    public void offer(long value) {
+        if (size < heap.length) {
+            heap[size] = value;
+            siftUp(size++);
+        } else if (size > 0 && value < heap[0]) {
+            heap[0] = value;
+            siftDown(0);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the kept values in ascending order
+     */
+    @NonNull
+    public long[] toSortedArray() {
+        final long[] sorted = Arrays.copyOf(heap, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void siftUp(int index) {
+        final long value = heap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (heap[parent] >= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    private void siftDown(int index) {
+        final long value = heap[index];
+        final int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= value) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+}
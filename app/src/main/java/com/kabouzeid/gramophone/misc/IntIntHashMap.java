@@ -0,0 +1,156 @@
+package com.kabouzeid.gramophone.misc;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive int keys to primitive int values.
+ * <p/>
+ * Used where {@link java.util.HashMap} would box every key and {@link android.util.SparseIntArray}
+ * would make every insertion O(n), e.g. when grouping a whole library by album or artist id.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class IntIntHashMap {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+
+    public IntIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of entries the map should hold without rehashing
+     */
+    public IntIntHashMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeThreshold = capacity / 2;
+    }
+
+    private static int hash(int key) {
+        // murmur3 finalizer, spreads sequential MediaStore ids over the whole table
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int slotOf(int key) {
+        int slot = hash(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the value mapped to the key or {@code defaultValue} if there is none
+     */
+    public int get(int key, int defaultValue) {
+        int slot = slotOf(key);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        return used[slotOf(key)];
+    }
+
+    public void put(int key, int value) {
+        int slot = slotOf(key);
+        if (!used[slot]) {
+            if (size >= resizeThreshold) {
+                rehash(keys.length << 1);
+                slot = slotOf(key);
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Adds {@code delta} to the value mapped to the key, treating a missing value as 0.
+     *
+     * @return the new value
+     */
+    public int increment(int key, int delta) {
+        int value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * @return the removed value or {@code defaultValue} if the key was not mapped
+     */
+    public int remove(int key, int defaultValue) {
+        int slot = slotOf(key);
+        if (!used[slot]) return defaultValue;
+        int removed = values[slot];
+        used[slot] = false;
+        size--;
+
+        // backward shift deletion, keeps probe sequences intact without tombstones
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                used[gap] = true;
+                used[next] = false;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slotOf(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
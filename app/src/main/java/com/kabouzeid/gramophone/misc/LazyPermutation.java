@@ -0,0 +1,127 @@
+package com.kabouzeid.gramophone.misc;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A random permutation of the positions 0 to size - 1 that is only generated as far as it is read.
+ * <p/>
+ * Runs Fisher-Yates front to back, one step per position: the first {@link #get(int)} of a position runs the steps
+ * up to it. The generated positions are kept in an array, the positions behind them that an earlier step swapped
+ * into in a hash map, every other position still maps to itself. So creating one is O(1), and reading the first k
+ * positions takes O(k) time and memory, no matter how large the permutation is.
+ * <p/>
+ * The permutation only depends on its size, the position that comes first and the seed, so those three are all it
+ * takes to create the same one again. {@link #shuffle(int[], int, long)} applies it to an array in one go.
+ * <p/>
+ * Reading generates, so {@link #get(int)} locks the permutation, it may be read on several threads.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LazyPermutation {
+    private final int size;
+    private final int first;
+    private final long seed;
+    @NonNull
+    private final Random random;
+
+    // the values of the generated positions
+    @NonNull
+    private int[] generated = new int[16];
+    private int generatedCount;
+    // the values of the positions behind the generated ones that don't map to themselves
+    @NonNull
+    private final IntIntHashMap swapped = new IntIntHashMap();
+
+    /**
+     * @param first the position that comes first, or -1 to shuffle all positions
+     */
+    public LazyPermutation(int size, int first, long seed) {
+        if (first >= size) {
+            throw new IndexOutOfBoundsException("First position " + first + " of " + size);
+        }
+        this.size = size;
+        this.first = first;
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return the position that is at the given position after the shuffle
+     */
+    public synchronized int get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Index " + position + " of " + size);
+        }
+        while (generatedCount <= position) {
+            generateNext();
+        }
+        return generated[position];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the position that comes first, or -1 if all positions were shuffled
+     */
+    public int getFirst() {
+        return first;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return how many positions were generated so far
+     */
+    public synchronized int getGeneratedCount() {
+        return generatedCount;
+    }
+
+    private void generateNext() {
+        final int step = generatedCount;
+        final int swap = nextSwap(step, size, first, random);
+        final int value = swapped.get(swap, swap);
+        final int replaced = swapped.remove(step, step);
+        if (swap != step) {
+            swapped.put(swap, replaced);
+        }
+        if (generatedCount == generated.length) {
+            generated = Arrays.copyOf(generated, Math.min(size, generatedCount * 2));
+        }
+        generated[generatedCount++] = value;
+    }
+
+    /**
+     * Shuffles the values like a {@link LazyPermutation} of their length with the same first position and seed,
+     * so that {@code values[i]} afterwards is what was at {@code get(i)} before.
+     */
+    public static void shuffle(@NonNull int[] values, int first, long seed) {
+        if (first >= values.length) {
+            throw new IndexOutOfBoundsException("First position " + first + " of " + values.length);
+        }
+        final Random random = new Random(seed);
+        for (int step = 0; step < values.length; step++) {
+            final int swap = nextSwap(step, values.length, first, random);
+            final int value = values[swap];
+            values[swap] = values[step];
+            values[step] = value;
+        }
+    }
+
+    /**
+     * @return the position that gets swapped with the one of the step
+     */
+    private static int nextSwap(int step, int size, int first, @NonNull Random random) {
+        if (step == 0 && first >= 0) {
+            return first;
+        }
+        // the last position has nothing left to swap with, and must not advance the random either
+        return step + 1 < size ? step + random.nextInt(size - step) : step;
+    }
+}
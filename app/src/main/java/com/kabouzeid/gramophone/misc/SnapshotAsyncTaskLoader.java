@@ -0,0 +1,53 @@
+package com.kabouzeid.gramophone.misc;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+/**
+ * A {@link WrappedAsyncTaskLoader} that first delivers data from a snapshot (e.g. the on disk library snapshot)
+ * and then reloads from the real source in the background.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public abstract class SnapshotAsyncTaskLoader<D> extends WrappedAsyncTaskLoader<D> {
+    private boolean snapshotLoaded;
+    private boolean verifySnapshot;
+
+    public SnapshotAsyncTaskLoader(Context context) {
+        super(context);
+    }
+
+    /**
+     * @return the data of the snapshot or null if there is no usable snapshot, e.g. because the source was already loaded
+     */
+    @Nullable
+    protected abstract D loadFromSnapshot();
+
+    /**
+     * Loads the data from the real source.
+     */
+    protected abstract D loadFromSource();
+
+    @Override
+    public D loadInBackground() {
+        if (!snapshotLoaded) {
+            snapshotLoaded = true;
+            D data = loadFromSnapshot();
+            if (data != null) {
+                verifySnapshot = true;
+                return data;
+            }
+        }
+        return loadFromSource();
+    }
+
+    @Override
+    public void deliverResult(D data) {
+        super.deliverResult(data);
+        if (verifySnapshot && !isReset()) {
+            verifySnapshot = false;
+            // the snapshot is on screen now, check it against the source
+            onContentChanged();
+        }
+    }
+}
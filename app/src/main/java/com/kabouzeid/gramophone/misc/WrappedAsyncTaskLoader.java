@@ -44,7 +44,8 @@ public abstract class WrappedAsyncTaskLoader<D> extends AsyncTaskLoader<D> {
         super.onStartLoading();
         if (this.mData != null) {
             deliverResult(this.mData);
-        } else if (takeContentChanged() || this.mData == null) {
+        }
+        if (takeContentChanged() || this.mData == null) {
             forceLoad();
         }
     }
@@ -143,6 +143,13 @@ public class HistoryStore extends SQLiteOpenHelper {
                 RecentStoreColumns.TIME_PLAYED + " DESC");
     }
 
+    public Cursor queryRecentIdsAndTimesPlayed() {
+        final SQLiteDatabase database = getReadableDatabase();
+        return database.query(RecentStoreColumns.NAME,
+                new String[]{RecentStoreColumns.ID, RecentStoreColumns.TIME_PLAYED}, null, null, null, null,
+                RecentStoreColumns.TIME_PLAYED + " DESC");
+    }
+
     public interface RecentStoreColumns {
         String NAME = "recent_history";
 
@@ -0,0 +1,269 @@
+package com.kabouzeid.gramophone.provider;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.loader.SongTable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Keeps a compact binary copy of the parsed library on disk so the library can be shown
+ * right after a cold start, without walking a MediaStore cursor first.
+ * <p/>
+ * A snapshot is the {@link SongTable} of the library written column by column: the deduplicated
+ * string pool followed by the columns, the string columns only hold indices into the pool. Reading maps
+ * the file into memory and copies every column with a single bulk get.
+ * <p/>
+ * Each snapshot carries a key (usually the sort order it was loaded with). A snapshot with a
+ * different key, an unknown version or a damaged layout is treated as missing.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LibrarySnapshotStore {
+    public static final String TAG = LibrarySnapshotStore.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "library_snapshots";
+    private static final String FILE_EXTENSION = ".snapshot";
+
+    private static final int MAGIC = 0x50484c53; // "PHLS"
+    private static final int VERSION = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Nullable
+    private static LibrarySnapshotStore sInstance = null;
+
+    private final File directory;
+
+    public LibrarySnapshotStore(@NonNull final Context context) {
+        this(new File(context.getFilesDir(), DIRECTORY_NAME));
+    }
+
+    LibrarySnapshotStore(@NonNull final File directory) {
+        this.directory = directory;
+    }
+
+    @NonNull
+    public static synchronized LibrarySnapshotStore getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new LibrarySnapshotStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @NonNull
+    private File getFile(@NonNull final String name) {
+        return new File(directory, name + FILE_EXTENSION);
+    }
+
+    /**
+     * @param name the name of the snapshot
+     * @param key  the key the snapshot has to be saved with, usually the sort order of the songs
+     * @return the songs in the order they were saved, or null if there is no valid snapshot
+     */
+    @Nullable
+    public synchronized SongTable getSnapshot(@NonNull final String name, @NonNull final String key) {
+        final File file = getFile(name);
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readSnapshot(buffer, key);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            Log.w(TAG, "Discarding unreadable library snapshot " + name, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot with the given songs. A failed write leaves the previous snapshot intact.
+     */
+    public synchronized void saveSnapshot(@NonNull final String name, @NonNull final String key, @NonNull final SongTable songs) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+
+        final File file = getFile(name);
+        final File tmpFile = new File(directory, name + FILE_EXTENSION + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+            writeSnapshot(out, key, songs);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tmpFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save library snapshot " + name, e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    public synchronized void delete(@NonNull final String name) {
+        //noinspection ResultOfMethodCallIgnored
+        getFile(name).delete();
+    }
+
+    private static void writeSnapshot(@NonNull final DataOutputStream out, @NonNull final String key, @NonNull final SongTable songs) throws IOException {
+        // the string pool of the table is already deduplicated and becomes the string table as is
+        final int[] stringEnds = new int[songs.strings.length];
+        final ArrayList<byte[]> encoded = new ArrayList<>(songs.strings.length);
+        int byteLength = 0;
+        for (int i = 0; i < songs.strings.length; i++) {
+            final byte[] bytes = songs.strings[i].getBytes(UTF_8);
+            encoded.add(bytes);
+            byteLength += bytes.length;
+            stringEnds[i] = byteLength;
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+
+        out.writeInt(songs.size());
+
+        out.writeInt(stringEnds.length);
+        out.writeInt(byteLength);
+        writeInts(out, stringEnds);
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+
+        writeInts(out, songs.ids);
+        writeInts(out, songs.titles);
+        writeInts(out, songs.trackNumbers);
+        writeInts(out, songs.years);
+        writeLongs(out, songs.durations);
+        writeInts(out, songs.directories);
+        writeInts(out, songs.fileNames);
+        writeLongs(out, songs.datesModified);
+        writeInts(out, songs.albumIds);
+        writeInts(out, songs.albumNames);
+        writeInts(out, songs.artistIds);
+        writeInts(out, songs.artistNames);
+        writeLongs(out, songs.datesAdded);
+    }
+
+    private static void writeInts(@NonNull final DataOutputStream out, @NonNull final int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeLongs(@NonNull final DataOutputStream out, @NonNull final long[] values) throws IOException {
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    @Nullable
+    private static SongTable readSnapshot(@NonNull final ByteBuffer buffer, @NonNull final String key) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        final byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        if (!key.equals(new String(keyBytes, UTF_8))) {
+            return null;
+        }
+
+        final int count = buffer.getInt();
+
+        final int stringCount = buffer.getInt();
+        final byte[] stringBytes = new byte[buffer.getInt()];
+        final int[] stringEnds = readInts(buffer, stringCount);
+        buffer.get(stringBytes);
+        final String[] strings = new String[stringCount];
+        int start = 0;
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = new String(stringBytes, start, stringEnds[i] - start, UTF_8);
+            start = stringEnds[i];
+        }
+
+        final int[] ids = readInts(buffer, count);
+        final int[] titles = readInts(buffer, count);
+        final int[] trackNumbers = readInts(buffer, count);
+        final int[] years = readInts(buffer, count);
+        final long[] durations = readLongs(buffer, count);
+        final int[] directories = readInts(buffer, count);
+        final int[] fileNames = readInts(buffer, count);
+        final long[] datesModified = readLongs(buffer, count);
+        final int[] albumIds = readInts(buffer, count);
+        final int[] albumNames = readInts(buffer, count);
+        final int[] artistIds = readInts(buffer, count);
+        final int[] artistNames = readInts(buffer, count);
+        final long[] datesAdded = readLongs(buffer, count);
+
+        checkStrings(titles, stringCount);
+        checkStrings(directories, stringCount);
+        checkStrings(fileNames, stringCount);
+        checkStrings(albumNames, stringCount);
+        checkStrings(artistNames, stringCount);
+
+        return new SongTable(strings, ids, titles, trackNumbers, years, durations, directories, fileNames, datesModified,
+                albumIds, albumNames, artistIds, artistNames, datesAdded);
+    }
+
+    private static void checkStrings(@NonNull final int[] indices, final int stringCount) {
+        for (int index : indices) {
+            if (index < SongTable.NULL_STRING || index >= stringCount) {
+                throw new IndexOutOfBoundsException("String index " + index + " of " + stringCount);
+            }
+        }
+    }
+
+    @NonNull
+    private static int[] readInts(@NonNull final ByteBuffer buffer, final int count) {
+        final int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    @NonNull
+    private static long[] readLongs(@NonNull final ByteBuffer buffer, final int count) {
+        final long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+
+    private static void closeQuietly(@Nullable final java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
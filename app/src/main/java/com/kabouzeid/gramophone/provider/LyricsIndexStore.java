@@ -0,0 +1,193 @@
+package com.kabouzeid.gramophone.provider;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.loader.LyricsIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps the {@link LyricsIndex} on disk, so the lyrics of the songs only have to be read from their files once.
+ * <p/>
+ * The index is written as is: the ids and modification dates of the songs, their compressed lyrics tokens, the
+ * tokens and their varint encoded postings. Reading maps the file into memory. An index with an unknown
+ * version or a damaged layout is treated as missing, all lyrics are read again then.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LyricsIndexStore {
+    public static final String TAG = LyricsIndexStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "lyrics.index";
+
+    private static final int MAGIC = 0x50484c59; // "PHLY"
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Nullable
+    private static LyricsIndexStore sInstance = null;
+
+    private final File file;
+
+    public LyricsIndexStore(@NonNull final Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    LyricsIndexStore(@NonNull final File file) {
+        this.file = file;
+    }
+
+    @NonNull
+    public static synchronized LyricsIndexStore getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new LyricsIndexStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the saved index, or null if there is no valid index
+     */
+    @Nullable
+    public synchronized LyricsIndex getIndex() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readIndex(buffer);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            Log.w(TAG, "Discarding unreadable lyrics index", e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Atomically replaces the saved index. A failed write leaves the previous index intact.
+     */
+    public synchronized void saveIndex(@NonNull final LyricsIndex index) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+            writeIndex(out, index);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tmpFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save lyrics index", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    public synchronized void delete() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static void writeIndex(@NonNull final DataOutputStream out, @NonNull final LyricsIndex index) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(index.size());
+        for (int songId : index.songIds) {
+            out.writeInt(songId);
+        }
+        for (long dateModified : index.datesModified) {
+            out.writeLong(dateModified);
+        }
+        writeByteArrays(out, index.texts);
+
+        final byte[][] tokens = new byte[index.tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = index.tokens[i].getBytes(UTF_8);
+        }
+        out.writeInt(tokens.length);
+        writeByteArrays(out, tokens);
+        writeByteArrays(out, index.postings);
+    }
+
+    private static void writeByteArrays(@NonNull final DataOutputStream out, @NonNull final byte[][] arrays) throws IOException {
+        for (byte[] array : arrays) {
+            out.writeInt(array.length);
+        }
+        for (byte[] array : arrays) {
+            out.write(array);
+        }
+    }
+
+    @Nullable
+    private static LyricsIndex readIndex(@NonNull final ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+
+        final int count = buffer.getInt();
+        final int[] songIds = new int[count];
+        buffer.asIntBuffer().get(songIds);
+        buffer.position(buffer.position() + count * 4);
+        final long[] datesModified = new long[count];
+        buffer.asLongBuffer().get(datesModified);
+        buffer.position(buffer.position() + count * 8);
+        final byte[][] texts = readByteArrays(buffer, count);
+
+        final int tokenCount = buffer.getInt();
+        final byte[][] tokenBytes = readByteArrays(buffer, tokenCount);
+        final String[] tokens = new String[tokenCount];
+        for (int i = 0; i < tokenCount; i++) {
+            tokens[i] = new String(tokenBytes[i], UTF_8);
+        }
+        final byte[][] postings = readByteArrays(buffer, tokenCount);
+
+        return new LyricsIndex(songIds, datesModified, texts, tokens, postings);
+    }
+
+    @NonNull
+    private static byte[][] readByteArrays(@NonNull final ByteBuffer buffer, final int count) {
+        final int[] lengths = new int[count];
+        buffer.asIntBuffer().get(lengths);
+        buffer.position(buffer.position() + count * 4);
+        final byte[][] arrays = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            arrays[i] = new byte[lengths[i]];
+            buffer.get(arrays[i]);
+        }
+        return arrays;
+    }
+
+    private static void closeQuietly(@Nullable final java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package com.kabouzeid.gramophone.provider;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.SavedQueues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes to the playing queues and the positions since their last snapshot in the
+ * {@link MusicPlaybackQueueStore}.
+ * <p/>
+ * The service records each change as it makes it, e.g. "add these ids at 12" or "move 3 to 7", which only encodes it
+ * into memory. The queue saving thread appends the recorded changes to the file, so saving after adding a song
+ * writes a few bytes instead of both queues. Once the log has grown larger than the queues the service hands in
+ * copies of them, the store writes them as the next snapshot and starts an empty log.
+ * <p/>
+ * Every record also holds the position after the change, and is framed by its length and a CRC32. A record torn by a
+ * crash ends the log, replaying it restores the queues and the position as of the last complete record.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class MusicPlaybackQueueJournal {
+    public static final String TAG = MusicPlaybackQueueJournal.class.getSimpleName();
+
+    private static final int MAGIC = 0x5048514a; // "PHQJ"
+    private static final int VERSION = 2;
+    // magic, version and the generation of the snapshot the log continues
+    private static final int HEADER_SIZE = 16;
+    // length and CRC32 of the record
+    private static final int FRAME_SIZE = 8;
+
+    // the snapshot is rewritten once the log is larger than this plus a few bytes per queued song
+    private static final int MIN_COMPACTION_SIZE = 64 * 1024;
+    private static final int COMPACTION_SIZE_PER_SONG = 8;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_IDS = 3;
+    private static final byte MOVE = 4;
+    private static final byte SHUFFLE = 5;
+    private static final byte UNSHUFFLE = 6;
+    private static final byte CLEAR = 7;
+    private static final byte POSITION = 8;
+    private static final byte POSITION_IN_TRACK = 9;
+
+    @NonNull
+    private final File file;
+    // the framed records that are not written yet
+    @NonNull
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    @NonNull
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    @NonNull
+    private final CRC32 crc = new CRC32();
+    // copies of the queues to write as the next snapshot
+    @Nullable
+    private SavedQueues snapshot;
+    // the valid bytes in the file, -1 as long as it is neither replayed nor started after a snapshot
+    private long length = -1;
+    private int lastPosition = -1;
+    private int lastPositionInTrack;
+
+    MusicPlaybackQueueJournal(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Both queues got the songs with the given ids inserted at the index.
+     */
+    public synchronized void add(int index, @NonNull int[] songIds, int position) {
+        begin(ADD);
+        writeInt(body, index);
+        writeIds(songIds);
+        end(position);
+    }
+
+    /**
+     * The song at the index in the playing queue and the one at the original index in the original queue got removed.
+     *
+     * @param originalIndex the index in the original queue, or -1 if no song was removed from it
+     */
+    public synchronized void remove(int index, int originalIndex, int position) {
+        begin(REMOVE);
+        writeInt(body, index);
+        writeInt(body, originalIndex);
+        end(position);
+    }
+
+    /**
+     * All occurrences of the songs with the given ids got removed from both queues.
+     */
+    public synchronized void removeIds(@NonNull int[] songIds, int position) {
+        begin(REMOVE_IDS);
+        writeIds(songIds);
+        end(position);
+    }
+
+    /**
+     * A song got moved in the playing queue and also in the original queue if {@code original} is set.
+     */
+    public synchronized void move(int from, int to, boolean original, int position) {
+        begin(MOVE);
+        writeInt(body, from);
+        writeInt(body, to);
+        body.write(original ? 1 : 0);
+        end(position);
+    }
+
+    /**
+     * The playing queue got shuffled by {@link SongIdList#shuffle(int, long)} with the given seed.
+     */
+    public synchronized void shuffle(int current, long seed, int position) {
+        begin(SHUFFLE);
+        writeInt(body, current);
+        writeLong(body, seed);
+        end(position);
+    }
+
+    /**
+     * The playing queue got replaced by a copy of the original queue.
+     */
+    public synchronized void unshuffle(int position) {
+        begin(UNSHUFFLE);
+        end(position);
+    }
+
+    public synchronized void clear(int position) {
+        begin(CLEAR);
+        end(position);
+    }
+
+    public synchronized void setPosition(int position) {
+        if (position != lastPosition) {
+            begin(POSITION);
+            end(position);
+        }
+    }
+
+    public synchronized void setPositionInTrack(int positionInTrack) {
+        if (positionInTrack != lastPositionInTrack) {
+            begin(POSITION_IN_TRACK);
+            writeInt(body, positionInTrack);
+            end(lastPosition);
+            lastPositionInTrack = positionInTrack;
+        }
+    }
+
+    /**
+     * @return whether the service should hand in a snapshot, because the log outgrew the queues or was never started
+     */
+    public synchronized boolean needsSnapshot(int queueSize) {
+        return snapshot == null && (length < 0
+                || length + pending.size() > MIN_COMPACTION_SIZE + (long) COMPACTION_SIZE_PER_SONG * queueSize);
+    }
+
+    /**
+     * Replaces everything recorded so far with the given copies of the queues, the store writes them on its next save.
+     */
+    public synchronized void snapshot(@NonNull SongIdList playingQueue, @NonNull SongIdList originalPlayingQueue, int position, int positionInTrack) {
+        snapshot = new SavedQueues(playingQueue, originalPlayingQueue, position, positionInTrack);
+        pending.reset();
+        lastPosition = position;
+        lastPositionInTrack = positionInTrack;
+    }
+
+    /**
+     * Hands the snapshot to write to the store. The log belongs to the previous snapshot until {@link #start(long)},
+     * so nothing is appended to it meanwhile, and if the snapshot can't be written the service is asked for
+     * another one.
+     */
+    @Nullable
+    synchronized SavedQueues takeSnapshot() {
+        final SavedQueues snapshot = this.snapshot;
+        if (snapshot != null) {
+            this.snapshot = null;
+            length = -1;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Appends the recorded changes to the file.
+     *
+     * @return false if a snapshot was handed in meanwhile, the changes recorded since then follow that snapshot
+     */
+    boolean flush() {
+        final byte[] records;
+        final long offset;
+        synchronized (this) {
+            if (snapshot != null) {
+                return false;
+            }
+            if (length < 0 || pending.size() == 0) {
+                return true;
+            }
+            records = pending.toByteArray();
+            pending.reset();
+            offset = length;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            // drops a record torn by a crash, later records must directly follow the valid ones
+            randomAccessFile.setLength(offset);
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(records);
+            randomAccessFile.getFD().sync();
+            synchronized (this) {
+                if (length == offset) {
+                    length += records.length;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not append to the playing queue journal", e);
+            synchronized (this) {
+                // the log is incomplete now, the next save writes a snapshot instead
+                length = -1;
+            }
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+        return true;
+    }
+
+    /**
+     * Starts an empty log that continues the snapshot of the given generation.
+     */
+    void start(long generation) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(0);
+            randomAccessFile.writeInt(MAGIC);
+            randomAccessFile.writeInt(VERSION);
+            randomAccessFile.writeLong(generation);
+            randomAccessFile.getFD().sync();
+            synchronized (this) {
+                length = HEADER_SIZE;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not start the playing queue journal", e);
+            synchronized (this) {
+                length = -1;
+            }
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Applies the logged changes to the queues of the snapshot of the given generation, and continues the log.
+     *
+     * @return the queues of the snapshot with the changes applied, and the positions after the last change
+     */
+    @NonNull
+    SavedQueues replay(@NonNull SavedQueues snapshot, long generation) {
+        final ByteBuffer buffer = read();
+        if (buffer == null || buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != generation) {
+            // missing, damaged or older than the snapshot, which already holds all its changes then
+            start(generation);
+            synchronized (this) {
+                lastPosition = snapshot.position;
+                lastPositionInTrack = snapshot.positionInTrack;
+            }
+            return snapshot;
+        }
+
+        final CRC32 crc = new CRC32();
+        // the position and the position in the track
+        final int[] positions = {snapshot.position, snapshot.positionInTrack};
+        int records = 0;
+        while (buffer.remaining() >= FRAME_SIZE) {
+            final int start = buffer.position();
+            final int size = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), size);
+            if ((int) crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+            try {
+                apply(buffer, snapshot.playingQueue, snapshot.originalPlayingQueue, positions);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Playing queue journal doesn't match its snapshot", e);
+                buffer.position(start);
+                break;
+            }
+            buffer.position(start + FRAME_SIZE + size);
+            records++;
+        }
+        if (buffer.hasRemaining()) {
+            Log.w(TAG, "Dropping " + buffer.remaining() + " bytes after " + records + " records of the playing queue journal");
+        }
+        synchronized (this) {
+            length = buffer.position();
+            lastPosition = positions[0];
+            lastPositionInTrack = positions[1];
+        }
+        return new SavedQueues(snapshot.playingQueue, snapshot.originalPlayingQueue, positions[0], positions[1]);
+    }
+
+    private static void apply(@NonNull ByteBuffer buffer, @NonNull SongIdList playingQueue, @NonNull SongIdList originalPlayingQueue,
+                              @NonNull int[] positions) {
+        final byte op = buffer.get();
+        final int position = buffer.getInt();
+        switch (op) {
+            case ADD:
+                final int index = buffer.getInt();
+                final int[] addedIds = readIds(buffer);
+                playingQueue.addIds(index, addedIds);
+                originalPlayingQueue.addIds(index, addedIds);
+                break;
+            case REMOVE:
+                playingQueue.removeId(buffer.getInt());
+                final int originalIndex = buffer.getInt();
+                if (originalIndex >= 0) {
+                    originalPlayingQueue.removeId(originalIndex);
+                }
+                break;
+            case REMOVE_IDS:
+                final int[] removedIds = readIds(buffer);
+                final IntIntHashMap songIds = new IntIntHashMap(removedIds.length);
+                for (int songId : removedIds) {
+                    songIds.put(songId, 0);
+                }
+                playingQueue.removeAllIds(songIds, 0);
+                originalPlayingQueue.removeAllIds(songIds, 0);
+                break;
+            case MOVE:
+                final int from = buffer.getInt();
+                final int to = buffer.getInt();
+                playingQueue.move(from, to);
+                if (buffer.get() != 0) {
+                    originalPlayingQueue.move(from, to);
+                }
+                break;
+            case SHUFFLE:
+                final int current = buffer.getInt();
+                final long seed = buffer.getLong();
+                if (!playingQueue.isEmpty()) {
+                    playingQueue.shuffle(current, seed);
+                }
+                break;
+            case UNSHUFFLE:
+                playingQueue.clear();
+                playingQueue.addIds(0, originalPlayingQueue.toIdArray());
+                break;
+            case CLEAR:
+                playingQueue.clear();
+                originalPlayingQueue.clear();
+                break;
+            case POSITION:
+                break;
+            case POSITION_IN_TRACK:
+                positions[1] = buffer.getInt();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+        positions[0] = position;
+    }
+
+    private void begin(byte op) {
+        body.reset();
+        body.write(op);
+        // the position is only known at the end, it's patched in there
+        writeInt(body, 0);
+    }
+
+    private void end(int position) {
+        final byte[] record = body.toByteArray();
+        record[1] = (byte) (position >>> 24);
+        record[2] = (byte) (position >>> 16);
+        record[3] = (byte) (position >>> 8);
+        record[4] = (byte) position;
+        crc.reset();
+        crc.update(record, 0, record.length);
+        writeInt(pending, record.length);
+        writeInt(pending, (int) crc.getValue());
+        pending.write(record, 0, record.length);
+        lastPosition = position;
+    }
+
+    private void writeIds(@NonNull int[] songIds) {
+        writeInt(body, songIds.length);
+        for (int songId : songIds) {
+            writeInt(body, songId);
+        }
+    }
+
+    private static void writeInt(@NonNull ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(@NonNull ByteArrayOutputStream out, long value) {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    @NonNull
+    private static int[] readIds(@NonNull ByteBuffer buffer) {
+        final int[] songIds = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(songIds);
+        buffer.position(buffer.position() + songIds.length * 4);
+        return songIds;
+    }
+
+    @Nullable
+    private ByteBuffer read() {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            final byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the playing queue journal", e);
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    private static void closeQuietly(@Nullable final java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -15,106 +15,107 @@
 */
 package com.kabouzeid.gramophone.provider;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteException;
 import android.provider.BaseColumns;
-import android.provider.MediaStore.Audio.AudioColumns;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import android.util.Log;
 
-import com.kabouzeid.gramophone.loader.SongLoader;
-import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.loader.SongCache;
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.loader.SongTable;
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.misc.LazyPermutation;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * @author Andrew Neal, modified for Phonograph by Karim Abou Zeid
  *         <p/>
  *         This keeps track of the music playback and history state of the playback service
+ *         <p/>
+ *         The snapshot file holds the ids of the original queue, the playing queue as the seed of its shuffle or
+ *         a permutation of it, the position and the position in the track, followed by a checksum. The song data is in the library, so the
+ *         snapshot only takes four bytes per song and is read with a single memory map. The
+ *         {@link MusicPlaybackQueueJournal} logs the changes since the snapshot. Each snapshot has a generation,
+ *         so a log that belongs to an older snapshot is never replayed.
  */
-public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
+public class MusicPlaybackQueueStore {
+    public static final String TAG = MusicPlaybackQueueStore.class.getSimpleName();
+
+    public static final String SNAPSHOT_FILE_NAME = "playing_queue.snapshot";
+    public static final String JOURNAL_FILE_NAME = "playing_queue.journal";
+    // the queues were saved with all their song data in this database by older versions
+    public static final String LEGACY_DATABASE_NAME = "music_playback_state.db";
+    private static final String LEGACY_PLAYING_QUEUE_TABLE_NAME = "playing_queue";
+    private static final String LEGACY_ORIGINAL_PLAYING_QUEUE_TABLE_NAME = "original_playing_queue";
+
+    private static final int MAGIC = 0x50485153; // "PHQS"
+    private static final int VERSION = 1;
+    // magic, version, generation, position, position in track
+    private static final int HEADER_INTS = 6;
+
+    // the playing queue is the original queue
+    private static final int PLAYING_QUEUE_SAME = 0;
+    // the playing queue is stored as the positions of its songs in the original queue
+    private static final int PLAYING_QUEUE_PERMUTATION = 1;
+    // the queues hold different songs, the playing queue is stored as ids
+    private static final int PLAYING_QUEUE_IDS = 2;
+    // the playing queue is the original queue shuffled lazily, stored as the first position and seed of the shuffle
+    private static final int PLAYING_QUEUE_SHUFFLED = 3;
+
     @Nullable
     private static MusicPlaybackQueueStore sInstance = null;
-    public static final String DATABASE_NAME = "music_playback_state.db";
-    public static final String PLAYING_QUEUE_TABLE_NAME = "playing_queue";
-    public static final String ORIGINAL_PLAYING_QUEUE_TABLE_NAME = "original_playing_queue";
-    private static final int VERSION = 3;
 
     /**
-     * Constructor of <code>MusicPlaybackState</code>
-     *
-     * @param context The {@link Context} to use
+     * The queues, the position in the playing queue and the position in the current track.
      */
-    public MusicPlaybackQueueStore(final Context context) {
-        super(context, DATABASE_NAME, null, VERSION);
-    }
+    public static class SavedQueues {
+        @NonNull
+        public final SongIdList playingQueue;
+        @NonNull
+        public final SongIdList originalPlayingQueue;
+        public final int position;
+        public final int positionInTrack;
 
-    @Override
-    public void onCreate(@NonNull final SQLiteDatabase db) {
-        createTable(db, PLAYING_QUEUE_TABLE_NAME);
-        createTable(db, ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        public SavedQueues(@NonNull SongIdList playingQueue, @NonNull SongIdList originalPlayingQueue, int position, int positionInTrack) {
+            this.playingQueue = playingQueue;
+            this.originalPlayingQueue = originalPlayingQueue;
+            this.position = position;
+            this.positionInTrack = positionInTrack;
+        }
     }
 
-    private void createTable(@NonNull final SQLiteDatabase db, final String tableName) {
-        //noinspection StringBufferReplaceableByString
-        StringBuilder builder = new StringBuilder();
-        builder.append("CREATE TABLE IF NOT EXISTS ");
-        builder.append(tableName);
-        builder.append("(");
-
-        builder.append(BaseColumns._ID);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.TITLE);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.TRACK);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.YEAR);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.DURATION);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.DATA);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.DATE_MODIFIED);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.ALBUM_ID);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.ALBUM);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.ARTIST_ID);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.ARTIST);
-        builder.append(" STRING NOT NULL);");
-
-        db.execSQL(builder.toString());
-    }
+    @Nullable
+    private final Context context;
+    @NonNull
+    private final File file;
+    @NonNull
+    private final MusicPlaybackQueueJournal journal;
+    private long generation;
 
-    @Override
-    public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-        // not necessary yet
-        db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
-        onCreate(db);
+    /**
+     * @param context The {@link Context} to use
+     */
+    public MusicPlaybackQueueStore(@NonNull final Context context) {
+        this(context, new File(context.getFilesDir(), SNAPSHOT_FILE_NAME), new File(context.getFilesDir(), JOURNAL_FILE_NAME));
     }
 
-    @Override
-    public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
-        // If we ever have downgrade, drop the table to be safe
-        db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
-        onCreate(db);
+    MusicPlaybackQueueStore(@Nullable final Context context, @NonNull final File file, @NonNull final File journalFile) {
+        this.context = context;
+        this.file = file;
+        this.journal = new MusicPlaybackQueueJournal(journalFile);
     }
 
     /**
@@ -129,73 +130,317 @@ public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
         return sInstance;
     }
 
-    public synchronized void saveQueues(@NonNull final ArrayList<Song> playingQueue, @NonNull final ArrayList<Song> originalPlayingQueue) {
-        saveQueue(PLAYING_QUEUE_TABLE_NAME, playingQueue);
-        saveQueue(ORIGINAL_PLAYING_QUEUE_TABLE_NAME, originalPlayingQueue);
+    /**
+     * @return the log the service records its changes to the queues in
+     */
+    @NonNull
+    public MusicPlaybackQueueJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Writes what the service recorded in the journal since the last save. Only writes a new snapshot if the
+     * service handed one in, otherwise only appends the recorded changes to the journal.
+     */
+    public synchronized void save() {
+        do {
+            final SavedQueues snapshot = journal.takeSnapshot();
+            if (snapshot != null && saveSnapshot(snapshot, generation + 1)) {
+                generation++;
+                journal.start(generation);
+            }
+        } while (!journal.flush());
     }
 
     /**
-     * Clears the existing database and saves the queue into the db so that when the
-     * app is restarted, the tracks you were listening to is restored
+     * Restores the queues of the last snapshot and replays the journal onto them. Only reads song ids, neither the
+     * library nor a single song is queried, see {@link #getMissingSongIds(SongTable, int[][])} for the songs that left
+     * the library.
      *
-     * @param queue the queue to save
+     * @param fallbackPosition        the position if the queues were saved by an older version
+     * @param fallbackPositionInTrack the position in the track if the queues were saved by an older version
      */
-    private synchronized void saveQueue(final String tableName, @NonNull final ArrayList<Song> queue) {
-        final SQLiteDatabase database = getWritableDatabase();
-        database.beginTransaction();
+    @NonNull
+    public synchronized SavedQueues getSavedQueues(@NonNull final SongCache songCache, final int fallbackPosition,
+                                                   final int fallbackPositionInTrack) {
+        SavedQueues snapshot = readSnapshot(songCache);
+        if (snapshot == null) {
+            snapshot = readLegacyQueues(songCache, fallbackPosition, fallbackPositionInTrack);
+            if (snapshot != null && saveSnapshot(snapshot, generation + 1)) {
+                generation++;
+                if (context != null) {
+                    context.deleteDatabase(LEGACY_DATABASE_NAME);
+                }
+            }
+        }
+        if (snapshot == null) {
+            snapshot = new SavedQueues(new SongIdList(songCache), new SongIdList(songCache), -1, 0);
+        }
+        return journal.replay(snapshot, generation);
+    }
 
+    /**
+     * @param songs   the songs of the library, nothing is missing if it is empty
+     * @param queues  the ids of the queued songs, may contain duplicates
+     * @return the distinct ids of the queued songs that are not in the library anymore
+     */
+    @NonNull
+    public static int[] getMissingSongIds(@NonNull final SongTable songs, @NonNull final int[]... queues) {
+        if (songs.size() == 0) {
+            // the library couldn't be queried, e.g. because the permission was revoked
+            return new int[0];
+        }
+        final IntIntHashMap missingIds = new IntIntHashMap();
+        int[] missing = new int[16];
+        for (int[] songIds : queues) {
+            for (int songId : songIds) {
+                if (songs.indexOfId(songId) < 0 && !missingIds.containsKey(songId)) {
+                    if (missingIds.size() == missing.length) {
+                        missing = Arrays.copyOf(missing, missing.length * 2);
+                    }
+                    missing[missingIds.size()] = songId;
+                    missingIds.put(songId, 0);
+                }
+            }
+        }
+        return Arrays.copyOf(missing, missingIds.size());
+    }
+
+    /**
+     * Atomically replaces the snapshot. A failed write leaves the previous snapshot intact.
+     */
+    private boolean saveSnapshot(@NonNull final SavedQueues snapshot, final long generation) {
+        final int[] ints = encode(snapshot, generation);
+        final ByteBuffer bytes = ByteBuffer.allocate(ints.length * 4);
+        bytes.asIntBuffer().put(ints);
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
         try {
-            database.delete(tableName, null, null);
-            database.setTransactionSuccessful();
+            out = new FileOutputStream(tmpFile);
+            out.write(bytes.array());
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tmpFile + " to " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the playing queues", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return false;
         } finally {
-            database.endTransaction();
+            closeQuietly(out);
         }
+    }
 
-        final int NUM_PROCESS = 20;
-        int position = 0;
-        while (position < queue.size()) {
-            database.beginTransaction();
-            try {
-                for (int i = position; i < queue.size() && i < position + NUM_PROCESS; i++) {
-                    Song song = queue.get(i);
-                    ContentValues values = new ContentValues(4);
-
-                    values.put(BaseColumns._ID, song.id);
-                    values.put(AudioColumns.TITLE, song.title);
-                    values.put(AudioColumns.TRACK, song.trackNumber);
-                    values.put(AudioColumns.YEAR, song.year);
-                    values.put(AudioColumns.DURATION, song.duration);
-                    values.put(AudioColumns.DATA, song.data);
-                    values.put(AudioColumns.DATE_MODIFIED, song.dateModified);
-                    values.put(AudioColumns.ALBUM_ID, song.albumId);
-                    values.put(AudioColumns.ALBUM, song.albumName);
-                    values.put(AudioColumns.ARTIST_ID, song.artistId);
-                    values.put(AudioColumns.ARTIST, song.artistName);
-
-                    database.insert(tableName, null, values);
+    @NonNull
+    static int[] encode(@NonNull final SavedQueues snapshot, final long generation) {
+        final int[] originalIds = snapshot.originalPlayingQueue.toIdArray();
+        final LazyPermutation permutation = snapshot.playingQueue.getPermutation();
+        int kind = PLAYING_QUEUE_SAME;
+        int[] playing = null;
+        if (permutation != null && Arrays.equals(originalIds, snapshot.playingQueue.toUnshuffledIdArray())) {
+            final long seed = permutation.getSeed();
+            playing = new int[]{permutation.getFirst(), (int) (seed >>> 32), (int) seed};
+            kind = PLAYING_QUEUE_SHUFFLED;
+        } else {
+            final int[] playingIds = snapshot.playingQueue.toIdArray();
+            if (!Arrays.equals(originalIds, playingIds)) {
+                playing = toPermutation(originalIds, playingIds);
+                kind = PLAYING_QUEUE_PERMUTATION;
+                if (playing == null) {
+                    playing = playingIds;
+                    kind = PLAYING_QUEUE_IDS;
                 }
-                database.setTransactionSuccessful();
-            } finally {
-                database.endTransaction();
-                position += NUM_PROCESS;
             }
         }
+
+        final int[] ints = new int[HEADER_INTS + 1 + originalIds.length + 2 + (playing == null ? 0 : playing.length) + 1];
+        int i = 0;
+        ints[i++] = MAGIC;
+        ints[i++] = VERSION;
+        ints[i++] = (int) (generation >>> 32);
+        ints[i++] = (int) generation;
+        ints[i++] = snapshot.position;
+        ints[i++] = snapshot.positionInTrack;
+        ints[i++] = originalIds.length;
+        System.arraycopy(originalIds, 0, ints, i, originalIds.length);
+        i += originalIds.length;
+        ints[i++] = kind;
+        ints[i++] = playing == null ? 0 : playing.length;
+        if (playing != null) {
+            System.arraycopy(playing, 0, ints, i, playing.length);
+            i += playing.length;
+        }
+        ints[i] = checksum(IntBuffer.wrap(ints, 0, i));
+        return ints;
     }
 
-    @NonNull
-    public ArrayList<Song> getSavedPlayingQueue() {
-        return getQueue(PLAYING_QUEUE_TABLE_NAME);
+    /**
+     * @return the positions of the playing queue's songs in the original queue, or null if the queues hold different songs
+     */
+    @Nullable
+    private static int[] toPermutation(@NonNull final int[] originalIds, @NonNull final int[] playingIds) {
+        if (originalIds.length != playingIds.length) {
+            return null;
+        }
+        // the unused positions of each song in the original queue, chained in ascending order
+        final IntIntHashMap firstPositions = new IntIntHashMap(originalIds.length);
+        final int[] nextPositions = new int[originalIds.length];
+        for (int i = originalIds.length - 1; i >= 0; i--) {
+            nextPositions[i] = firstPositions.get(originalIds[i], -1);
+            firstPositions.put(originalIds[i], i);
+        }
+        final int[] permutation = new int[playingIds.length];
+        for (int i = 0; i < playingIds.length; i++) {
+            final int originalPosition = firstPositions.get(playingIds[i], -1);
+            if (originalPosition < 0) {
+                return null;
+            }
+            permutation[i] = originalPosition;
+            firstPositions.put(playingIds[i], nextPositions[originalPosition]);
+        }
+        return permutation;
     }
 
-    @NonNull
-    public ArrayList<Song> getSavedOriginalPlayingQueue() {
-        return getQueue(ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+    @Nullable
+    private SavedQueues readSnapshot(@NonNull final SongCache songCache) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            final FileChannel channel = randomAccessFile.getChannel();
+            final IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+            final SavedQueues snapshot = decode(ints, songCache);
+            if (snapshot == null) {
+                Log.w(TAG, "Discarding damaged playing queue snapshot");
+                return null;
+            }
+            generation = (long) ints.get(2) << 32 | (ints.get(3) & 0xffffffffL);
+            return snapshot;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            Log.w(TAG, "Discarding unreadable playing queue snapshot", e);
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    @Nullable
+    static SavedQueues decode(@NonNull final IntBuffer ints, @NonNull final SongCache songCache) {
+        final int length = ints.remaining();
+        if (length < HEADER_INTS + 3 || ints.get(0) != MAGIC || ints.get(1) != VERSION
+                || checksum((IntBuffer) ints.duplicate().limit(length - 1)) != ints.get(length - 1)) {
+            return null;
+        }
+        ints.position(4);
+        final int position = ints.get();
+        final int positionInTrack = ints.get();
+        final int[] originalIds = new int[ints.get()];
+        ints.get(originalIds);
+        final int kind = ints.get();
+        final int[] playing = new int[ints.get()];
+        ints.get(playing);
+
+        final SongIdList originalPlayingQueue = new SongIdList(songCache);
+        originalPlayingQueue.addIds(0, originalIds);
+        final SongIdList playingQueue = new SongIdList(songCache);
+        switch (kind) {
+            case PLAYING_QUEUE_SAME:
+                playingQueue.addIds(0, originalIds);
+                break;
+            case PLAYING_QUEUE_PERMUTATION:
+                for (int i = 0; i < playing.length; i++) {
+                    playing[i] = originalIds[playing[i]];
+                }
+                playingQueue.addIds(0, playing);
+                break;
+            case PLAYING_QUEUE_IDS:
+                playingQueue.addIds(0, playing);
+                break;
+            case PLAYING_QUEUE_SHUFFLED:
+                if (playing.length != 3) {
+                    return null;
+                }
+                playingQueue.addIds(0, originalIds);
+                playingQueue.shuffle(playing[0], (long) playing[1] << 32 | (playing[2] & 0xffffffffL));
+                break;
+            default:
+                return null;
+        }
+        return new SavedQueues(playingQueue, originalPlayingQueue, position, positionInTrack);
+    }
+
+    /**
+     * FNV-1a over the ints.
+     */
+    private static int checksum(@NonNull final IntBuffer ints) {
+        int hash = 0x811c9dc5;
+        while (ints.hasRemaining()) {
+            hash = (hash ^ ints.get()) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the song ids of the queues an older version saved in its database.
+     */
+    @Nullable
+    private SavedQueues readLegacyQueues(@NonNull final SongCache songCache, final int position, final int positionInTrack) {
+        if (context == null) {
+            return null;
+        }
+        final File databaseFile = context.getDatabasePath(LEGACY_DATABASE_NAME);
+        if (databaseFile == null || !databaseFile.exists()) {
+            return null;
+        }
+        SQLiteDatabase database = null;
+        try {
+            database = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            final SongIdList playingQueue = new SongIdList(songCache);
+            playingQueue.addIds(0, readLegacyIds(database, LEGACY_PLAYING_QUEUE_TABLE_NAME));
+            final SongIdList originalPlayingQueue = new SongIdList(songCache);
+            originalPlayingQueue.addIds(0, readLegacyIds(database, LEGACY_ORIGINAL_PLAYING_QUEUE_TABLE_NAME));
+            return new SavedQueues(playingQueue, originalPlayingQueue, position, positionInTrack);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not read the playing queues of the old database", e);
+            return null;
+        } finally {
+            if (database != null) {
+                database.close();
+            }
+        }
     }
 
     @NonNull
-    private ArrayList<Song> getQueue(@NonNull final String tableName) {
-        Cursor cursor = getReadableDatabase().query(tableName, null,
-                null, null, null, null, null);
-        return SongLoader.getSongs(cursor);
+    private static int[] readLegacyIds(@NonNull final SQLiteDatabase database, @NonNull final String tableName) {
+        final Cursor cursor = database.query(tableName, new String[]{BaseColumns._ID}, null, null, null, null, null);
+        if (cursor == null) {
+            return new int[0];
+        }
+        try {
+            final int[] ids = new int[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                ids[i++] = cursor.getInt(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void closeQuietly(@Nullable final java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
@@ -284,6 +284,21 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
                 (numResults <= 0 ? null : String.valueOf(numResults)));
     }
 
+    /**
+     * Gets a cursor containing the ids and play count scores of all songs played at least once in the
+     * past NUM_WEEKS, in no particular order
+     *
+     * @return the song ids and their scores
+     */
+    public Cursor getPlayCountScores() {
+        updateResults();
+
+        final SQLiteDatabase database = getReadableDatabase();
+        return database.query(SongPlayCountColumns.NAME,
+                new String[]{SongPlayCountColumns.ID, SongPlayCountColumns.PLAY_COUNT_SCORE},
+                null, null, null, null, null);
+    }
+
     /**
      * This updates all the results for the getTopPlayedResults so that we can get an
      * accurate list of the top played results
@@ -7,6 +7,7 @@ import android.media.MediaPlayer;
 import android.media.audiofx.AudioEffect;
 import android.net.Uri;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
@@ -24,12 +25,20 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
 
     private MediaPlayer mCurrentMediaPlayer = new MediaPlayer();
     private MediaPlayer mNextMediaPlayer;
+    // whether the next player is prepared and set to follow the current one
+    private boolean mIsNextPrepared;
 
     private Context context;
     @Nullable
     private Playback.PlaybackCallbacks callbacks;
 
     private boolean mIsInitialized = false;
+    // whether the current player is being prepared for the track of the last setDataSource(), read by the main thread
+    private volatile boolean mIsPreparing = false;
+    // incremented by every setDataSource() and stop(), a prepared track of an older request was replaced since
+    private int mPrepareRequest;
+    // where to seek once the current player is prepared, -1 for nowhere
+    private int mPendingSeek = -1;
 
     /**
      * Constructor of <code>MultiPlayer</code>
@@ -40,66 +49,103 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
     }
 
     /**
+     * Prepares the track asynchronously, {@link PlaybackCallbacks#onTrackPrepared(long)} is called once it can be
+     * played. Replaces the track of the previous call, even if that one is still being prepared, so only the last of
+     * several quick calls is prepared to the end.
+     *
      * @param path The path of the file, or the http/rtsp URL of the stream
      *             you want to play
-     * @return True if the <code>player</code> has been prepared and is
-     * ready to play, false otherwise
+     * @return True if the <code>player</code> is being prepared, false if the track can't be played
      */
     @Override
-    public boolean setDataSource(@NonNull final String path) {
+    public synchronized boolean setDataSource(@NonNull final String path) {
         mIsInitialized = false;
-        mIsInitialized = setDataSourceImpl(mCurrentMediaPlayer, path);
-        if (mIsInitialized) {
-            setNextDataSource(null);
-        }
-        return mIsInitialized;
+        mPendingSeek = -1;
+        // the next player was prepared to follow the replaced track
+        releaseNextMediaPlayer();
+        final int request = ++mPrepareRequest;
+        final long start = SystemClock.elapsedRealtime();
+        mIsPreparing = prepareAsync(mCurrentMediaPlayer, path, new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                onCurrentPrepared(mp, request, SystemClock.elapsedRealtime() - start);
+            }
+        });
+        return mIsPreparing;
     }
 
     /**
      * @param player The {@link MediaPlayer} to use
      * @param path   The path of the file, or the http/rtsp URL of the stream
      *               you want to play
-     * @return True if the <code>player</code> has been prepared and is
-     * ready to play, false otherwise
+     * @return True if the <code>player</code> is being prepared, false otherwise
      */
-    private boolean setDataSourceImpl(@NonNull final MediaPlayer player, @NonNull final String path) {
+    private boolean prepareAsync(@NonNull final MediaPlayer player, @NonNull final String path, @NonNull final MediaPlayer.OnPreparedListener listener) {
         if (context == null) {
             return false;
         }
         try {
+            // also abandons a prepare that is still running
             player.reset();
-            player.setOnPreparedListener(null);
+            player.setOnPreparedListener(listener);
             if (path.startsWith("content://")) {
                 player.setDataSource(context, Uri.parse(path));
             } else {
                 player.setDataSource(path);
             }
             player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            player.prepare();
+            player.setOnErrorListener(this);
+            player.prepareAsync();
+            return true;
         } catch (Exception e) {
             return false;
         }
+    }
+
+    private synchronized void onCurrentPrepared(@NonNull final MediaPlayer player, final int request, final long prepareMillis) {
+        if (player != mCurrentMediaPlayer || request != mPrepareRequest) {
+            // replaced before the prepared event was delivered
+            return;
+        }
+        mIsPreparing = false;
+        mIsInitialized = true;
+        onPreparedImpl(player);
+        // a seek past the end is dropped, e.g. the saved position of a file that was replaced by a shorter one
+        if (mPendingSeek > 0 && mPendingSeek < player.getDuration()) {
+            player.seekTo(mPendingSeek);
+        }
+        mPendingSeek = -1;
+        if (callbacks != null) {
+            callbacks.onTrackPrepared(prepareMillis);
+        }
+    }
+
+    private void onPreparedImpl(@NonNull final MediaPlayer player) {
         player.setOnCompletionListener(this);
-        player.setOnErrorListener(this);
         final Intent intent = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
         intent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, getAudioSessionId());
         intent.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, context.getPackageName());
         intent.putExtra(AudioEffect.EXTRA_CONTENT_TYPE, AudioEffect.CONTENT_TYPE_MUSIC);
         context.sendBroadcast(intent);
-        return true;
     }
 
     /**
-     * Set the MediaPlayer to start when this MediaPlayer finishes playback.
+     * Set the MediaPlayer to start when this MediaPlayer finishes playback. It is prepared asynchronously and only
+     * set once it is prepared, {@link PlaybackCallbacks#onNextTrackPrepared(long)} is called then.
      *
      * @param path The path of the file, or the http/rtsp URL of the stream
      *             you want to play
      */
     @Override
-    public void setNextDataSource(@Nullable final String path) {
+    public synchronized void setNextDataSource(@Nullable final String path) {
         if (context == null) {
             return;
         }
+        if (!mIsInitialized) {
+            // there is nothing to follow yet, the next track is set once the current one is prepared
+            releaseNextMediaPlayer();
+            return;
+        }
         try {
             mCurrentMediaPlayer.setNextMediaPlayer(null);
         } catch (IllegalArgumentException e) {
@@ -108,10 +154,7 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
             Log.e(TAG, "Media player not initialized!");
             return;
         }
-        if (mNextMediaPlayer != null) {
-            mNextMediaPlayer.release();
-            mNextMediaPlayer = null;
-        }
+        releaseNextMediaPlayer();
         if (path == null) {
             return;
         }
@@ -119,25 +162,45 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
             mNextMediaPlayer = new MediaPlayer();
             mNextMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
             mNextMediaPlayer.setAudioSessionId(getAudioSessionId());
-            if (setDataSourceImpl(mNextMediaPlayer, path)) {
-                try {
-                    mCurrentMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
-                } catch (@NonNull IllegalArgumentException | IllegalStateException e) {
-                    Log.e(TAG, "setNextDataSource: setNextMediaPlayer()", e);
-                    if (mNextMediaPlayer != null) {
-                        mNextMediaPlayer.release();
-                        mNextMediaPlayer = null;
-                    }
-                }
-            } else {
-                if (mNextMediaPlayer != null) {
-                    mNextMediaPlayer.release();
-                    mNextMediaPlayer = null;
+            final long start = SystemClock.elapsedRealtime();
+            if (!prepareAsync(mNextMediaPlayer, path, new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mp) {
+                    onNextPrepared(mp, SystemClock.elapsedRealtime() - start);
                 }
+            })) {
+                releaseNextMediaPlayer();
             }
         }
     }
 
+    private synchronized void onNextPrepared(@NonNull final MediaPlayer player, final long prepareMillis) {
+        if (player != mNextMediaPlayer) {
+            // released or replaced before the prepared event was delivered
+            return;
+        }
+        onPreparedImpl(player);
+        try {
+            mCurrentMediaPlayer.setNextMediaPlayer(player);
+        } catch (@NonNull IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "onNextPrepared: setNextMediaPlayer()", e);
+            releaseNextMediaPlayer();
+            return;
+        }
+        mIsNextPrepared = true;
+        if (callbacks != null) {
+            callbacks.onNextTrackPrepared(prepareMillis);
+        }
+    }
+
+    private void releaseNextMediaPlayer() {
+        mIsNextPrepared = false;
+        if (mNextMediaPlayer != null) {
+            mNextMediaPlayer.release();
+            mNextMediaPlayer = null;
+        }
+    }
+
     /**
      * Sets the callbacks
      *
@@ -156,6 +219,14 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
         return mIsInitialized;
     }
 
+    /**
+     * @return True if the track of the last setDataSource() is still being prepared
+     */
+    @Override
+    public boolean isPreparing() {
+        return mIsPreparing;
+    }
+
     /**
      * Starts or resumes playback.
      */
@@ -173,9 +244,12 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      * Resets the MediaPlayer to its uninitialized state.
      */
     @Override
-    public void stop() {
+    public synchronized void stop() {
         mCurrentMediaPlayer.reset();
         mIsInitialized = false;
+        mIsPreparing = false;
+        mPrepareRequest++;
+        mPendingSeek = -1;
     }
 
     /**
@@ -235,6 +309,9 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public int position() {
+        if (mIsPreparing) {
+            return Math.max(mPendingSeek, 0);
+        }
         if (!mIsInitialized) {
             return -1;
         }
@@ -248,11 +325,16 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
     /**
      * Gets the current playback position.
      *
-     * @param whereto The offset in milliseconds from the start to seek to
+     * @param whereto The offset in milliseconds from the start to seek to, applied once prepared while the track is
+     *                still being prepared
      * @return The offset in milliseconds from the start to seek to
      */
     @Override
-    public int seek(final int whereto) {
+    public synchronized int seek(final int whereto) {
+        if (mIsPreparing) {
+            mPendingSeek = whereto;
+            return whereto;
+        }
         try {
             mCurrentMediaPlayer.seekTo(whereto);
             return whereto;
@@ -300,7 +382,26 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      * {@inheritDoc}
      */
     @Override
-    public boolean onError(final MediaPlayer mp, final int what, final int extra) {
+    public synchronized boolean onError(final MediaPlayer mp, final int what, final int extra) {
+        if (mp == mNextMediaPlayer) {
+            // the current track still plays, it is just not followed gaplessly
+            releaseNextMediaPlayer();
+            return true;
+        }
+        if (mp != mCurrentMediaPlayer) {
+            // a replaced player
+            return true;
+        }
+        if (mIsPreparing) {
+            mIsPreparing = false;
+            mCurrentMediaPlayer.release();
+            mCurrentMediaPlayer = new MediaPlayer();
+            mCurrentMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+            if (callbacks != null) {
+                callbacks.onTrackPrepareFailed();
+            }
+            return true;
+        }
         mIsInitialized = false;
         mCurrentMediaPlayer.release();
         mCurrentMediaPlayer = new MediaPlayer();
@@ -315,13 +416,14 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      * {@inheritDoc}
      */
     @Override
-    public void onCompletion(final MediaPlayer mp) {
-        if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null) {
+    public synchronized void onCompletion(final MediaPlayer mp) {
+        if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null && mIsNextPrepared) {
             mIsInitialized = false;
             mCurrentMediaPlayer.release();
             mCurrentMediaPlayer = mNextMediaPlayer;
             mIsInitialized = true;
             mNextMediaPlayer = null;
+            mIsNextPrepared = false;
             if (callbacks != null)
                 callbacks.onTrackWentToNext();
         } else {
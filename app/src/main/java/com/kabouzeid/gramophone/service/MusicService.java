@@ -30,12 +30,14 @@ import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import android.util.Log;
 import android.widget.Toast;
 
 import com.bumptech.glide.BitmapRequestBuilder;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.animation.GlideAnimation;
 import com.bumptech.glide.request.target.SimpleTarget;
+import com.kabouzeid.gramophone.BuildConfig;
 import com.kabouzeid.gramophone.R;
 import com.kabouzeid.gramophone.appwidgets.AppWidgetBig;
 import com.kabouzeid.gramophone.appwidgets.AppWidgetClassic;
@@ -45,8 +47,16 @@ import com.kabouzeid.gramophone.glide.SongGlideRequest;
 import com.kabouzeid.gramophone.helper.PlayingNotificationHelper;
 import com.kabouzeid.gramophone.helper.ShuffleHelper;
 import com.kabouzeid.gramophone.helper.StopWatch;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.LyricsIndexer;
+import com.kabouzeid.gramophone.loader.MusicLibrary;
+import com.kabouzeid.gramophone.loader.SongCache;
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.provider.HistoryStore;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueJournal;
 import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore;
 import com.kabouzeid.gramophone.provider.SongPlayCountStore;
 import com.kabouzeid.gramophone.service.Playback.Playback;
@@ -56,7 +66,9 @@ import com.kabouzeid.gramophone.util.Util;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  * @author Karim Abou Zeid (kabouzeid), Andrew Neal
@@ -102,6 +114,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private static final int DUCK = 7;
     private static final int UNDUCK = 8;
     public static final int RESTORE_QUEUES = 9;
+    private static final int HANDLE_ACTION = 10;
+    private static final int TRACK_PREPARED = 11;
+    private static final int TRACK_PREPARE_FAILED = 12;
+    private static final int NEXT_TRACK_PREPARED = 13;
 
     public static final int SHUFFLE_MODE_NONE = 0;
     public static final int SHUFFLE_MODE_SHUFFLE = 1;
@@ -112,6 +128,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     public static final int SAVE_QUEUES = 0;
 
+    // how many of the upcoming songs are read ahead
+    private static final int READ_AHEAD_SONGS = 3;
+
     private final IBinder musicBind = new MusicBinder();
 
     private AppWidgetBig appWidgetBig = AppWidgetBig.getInstance();
@@ -119,13 +138,27 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private AppWidgetSmall appWidgetSmall = AppWidgetSmall.getInstance();
 
     private Playback playback;
-    private ArrayList<Song> playingQueue = new ArrayList<>();
-    private ArrayList<Song> originalPlayingQueue = new ArrayList<>();
+    // only the song ids, the songs are materialized through the shared song cache when they are needed
+    private SongIdList playingQueue;
+    private SongIdList originalPlayingQueue;
+    // every change to the queues is recorded, so saving them only writes the changes
+    private MusicPlaybackQueueJournal queueJournal;
     private int position = -1;
     private int nextPosition = -1;
     private int shuffleMode;
     private int repeatMode;
     private boolean queuesRestored;
+    // whether the restored queues are still being checked against the library, the next song may have been deleted
+    private volatile boolean checkingRestoredQueues;
+    // incremented for every smart shuffle, only the order of the last one is applied
+    private int smartShuffleRequest;
+    // whether the current song starts playing once it is prepared
+    private boolean playWhenPrepared;
+    private final PrepareLatencyStats prepareLatencyStats = new PrepareLatencyStats();
+    // the files of the current and the next track when they were handed to the player, the queue may have changed
+    // by the time they are prepared
+    private volatile String currentTrackPath;
+    private volatile String nextTrackPath;
     private boolean pausedByTransientLossOfFocus;
     private boolean receiversAndRemoteControlClientRegistered;
     private PlayingNotificationHelper playingNotificationHelper;
@@ -143,6 +176,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private QueueSaveHandler queueSaveHandler;
     private HandlerThread musicPlayerHandlerThread;
     private HandlerThread queueSaveHandlerThread;
+    private HandlerThread readAheadHandlerThread;
+    private ReadAheadCache readAheadCache;
+    private HandlerThread mediaStoreSyncHandlerThread;
+    private Handler mediaStoreSyncHandler;
     private SongPlayCountHelper songPlayCountHelper = new SongPlayCountHelper();
     private ThrottledSeekHandler throttledSeekHandler;
     private final BroadcastReceiver becomingNoisyReceiver = new BroadcastReceiver() {
@@ -159,8 +196,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     private Handler uiThreadHandler;
 
-    private static String getTrackUri(@NonNull Song song) {
-        return MusicUtil.getSongFileUri(song.id).toString();
+    private static String getTrackUri(int songId) {
+        return MusicUtil.getSongFileUri(songId).toString();
     }
 
     @Override
@@ -169,6 +206,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
         playingNotificationHelper = new PlayingNotificationHelper(this);
 
+        playingQueue = new SongIdList(SongCache.getInstance(this));
+        originalPlayingQueue = new SongIdList(SongCache.getInstance(this));
+        queueJournal = MusicPlaybackQueueStore.getInstance(this).getJournal();
+
         final PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getClass().getName());
         wakeLock.setReferenceCounted(false);
@@ -185,13 +226,23 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         queueSaveHandlerThread.start();
         queueSaveHandler = new QueueSaveHandler(this, queueSaveHandlerThread.getLooper());
 
+        // reading ahead blocks on slow storage, it must neither delay saving the queues nor the playback handler events
+        readAheadHandlerThread = new HandlerThread("ReadAheadHandler", Process.THREAD_PRIORITY_BACKGROUND);
+        readAheadHandlerThread.start();
+        readAheadCache = new ReadAheadCache(readAheadHandlerThread.getLooper());
+
         uiThreadHandler = new Handler();
 
         registerReceiversAndRemoteControlClient();
 
         registerReceiver(widgetIntentReceiver, new IntentFilter(APP_WIDGET_UPDATE));
 
-        mediaStoreObserver = new MediaStoreObserver(playerHandler);
+        // syncing the library queries the MediaStore, it must not block the playback handler events
+        mediaStoreSyncHandlerThread = new HandlerThread("MediaStoreSyncHandler", Process.THREAD_PRIORITY_BACKGROUND);
+        mediaStoreSyncHandlerThread.start();
+
+        mediaStoreSyncHandler = new Handler(mediaStoreSyncHandlerThread.getLooper());
+        mediaStoreObserver = new MediaStoreObserver(mediaStoreSyncHandler);
         throttledSeekHandler = new ThrottledSeekHandler(playerHandler);
         getContentResolver().registerContentObserver(
                 MediaStore.Audio.Media.INTERNAL_CONTENT_URI, true, mediaStoreObserver);
@@ -238,41 +289,50 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
         if (intent != null) {
             if (intent.getAction() != null) {
-                restoreQueuesAndPositionIfNecessary();
                 String action = intent.getAction();
-                switch (action) {
-                    case ACTION_TOGGLE_PAUSE:
-                        if (isPlaying()) {
-                            pause();
-                        } else {
-                            play();
-                        }
-                        break;
-                    case ACTION_PAUSE:
-                        pause();
-                        break;
-                    case ACTION_PLAY:
-                        play();
-                        break;
-                    case ACTION_REWIND:
-                        back(true);
-                        break;
-                    case ACTION_SKIP:
-                        playNextSong(true);
-                        break;
-                    case ACTION_STOP:
-                        stop();
-                        break;
-                    case ACTION_QUIT:
-                        return quit();
+                if (ACTION_QUIT.equals(action)) {
+                    return quit();
                 }
+                // after the restore of the current song on the playback handler, the main thread doesn't wait for it
+                playerHandler.obtainMessage(HANDLE_ACTION, action).sendToTarget();
             }
         }
         return START_STICKY;
     }
 
+    private void handleAction(@NonNull String action) {
+        switch (action) {
+            case ACTION_TOGGLE_PAUSE:
+                if (isPlaying() || playWhenPrepared) {
+                    pause();
+                } else {
+                    play();
+                }
+                break;
+            case ACTION_PAUSE:
+                pause();
+                break;
+            case ACTION_PLAY:
+                play();
+                break;
+            case ACTION_REWIND:
+                back(true);
+                break;
+            case ACTION_SKIP:
+                playNextSong(true);
+                break;
+            case ACTION_STOP:
+                stop();
+                break;
+        }
+    }
+
     @Override
     public void onDestroy() {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Prepare latencies:\n" + prepareLatencyStats);
+            Log.d(TAG, "Read ahead: " + readAheadCache);
+        }
         unregisterReceiver(widgetIntentReceiver);
         quit();
         releaseResources();
@@ -333,24 +393,29 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private void saveQueuesImpl() {
-        MusicPlaybackQueueStore.getInstance(this).saveQueues(playingQueue, originalPlayingQueue);
+        MusicPlaybackQueueStore.getInstance(this).save();
     }
 
     private void savePosition() {
-        PreferenceManager.getDefaultSharedPreferences(this).edit().putInt(SAVED_POSITION, getPosition()).apply();
+        queueJournal.setPosition(getPosition());
+        saveQueues();
     }
 
     private void savePositionInTrack() {
-        PreferenceManager.getDefaultSharedPreferences(this).edit().putInt(SAVED_POSITION_IN_TRACK, getSongProgressMillis()).apply();
+        queueJournal.setPositionInTrack(getSongProgressMillis());
+        saveQueues();
     }
 
     public void saveState() {
-        saveQueues();
         savePosition();
         savePositionInTrack();
     }
 
     private void saveQueues() {
+        if (queueJournal.needsSnapshot(playingQueue.size())) {
+            // copies, the queues keep changing while the snapshot is written
+            queueJournal.snapshot(new SongIdList(playingQueue), new SongIdList(originalPlayingQueue), getPosition(), getSongProgressMillis());
+        }
         queueSaveHandler.removeMessages(SAVE_QUEUES);
         queueSaveHandler.sendEmptyMessage(SAVE_QUEUES);
     }
@@ -365,31 +430,79 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         playerHandler.sendEmptyMessage(RESTORE_QUEUES);
     }
 
+    /**
+     * Restores in two steps. The queues are only song ids, so they are read at once, but only the current song is
+     * opened and looked up, which is all a play press and the notification need. Checking the queues against the
+     * library needs the whole library, that runs on the media store sync thread and prepares the next song when it
+     * is done.
+     */
     private synchronized void restoreQueuesAndPositionIfNecessary() {
         if (!queuesRestored && playingQueue.isEmpty()) {
-            ArrayList<Song> restoredQueue = MusicPlaybackQueueStore.getInstance(this).getSavedPlayingQueue();
-            ArrayList<Song> restoredOriginalQueue = MusicPlaybackQueueStore.getInstance(this).getSavedOriginalPlayingQueue();
-            int restoredPosition = PreferenceManager.getDefaultSharedPreferences(this).getInt(SAVED_POSITION, -1);
-            int restoredPositionInTrack = PreferenceManager.getDefaultSharedPreferences(this).getInt(SAVED_POSITION_IN_TRACK, -1);
-
-            if (restoredQueue.size() > 0 && restoredQueue.size() == restoredOriginalQueue.size() && restoredPosition != -1) {
-                this.originalPlayingQueue = restoredOriginalQueue;
-                this.playingQueue = restoredQueue;
-
-                position = restoredPosition;
+            // the positions are only in the preferences if the queues were saved by an older version
+            int fallbackPosition = PreferenceManager.getDefaultSharedPreferences(this).getInt(SAVED_POSITION, -1);
+            int fallbackPositionInTrack = PreferenceManager.getDefaultSharedPreferences(this).getInt(SAVED_POSITION_IN_TRACK, -1);
+            MusicPlaybackQueueStore.SavedQueues savedQueues = MusicPlaybackQueueStore.getInstance(this).getSavedQueues(
+                    SongCache.getInstance(this), fallbackPosition, fallbackPositionInTrack);
+            int restoredPositionInTrack = savedQueues.positionInTrack;
+
+            if (savedQueues.playingQueue.size() > 0 && savedQueues.playingQueue.size() == savedQueues.originalPlayingQueue.size()
+                    && savedQueues.position >= 0 && savedQueues.position < savedQueues.playingQueue.size()) {
+                this.originalPlayingQueue = savedQueues.originalPlayingQueue;
+                this.playingQueue = savedQueues.playingQueue;
+
+                position = savedQueues.position;
+                checkingRestoredQueues = true;
+                // queried on its own, the song cache only finds the songs once the library is loaded
+                final int currentSongId = playingQueue.getId(position);
+                final Song currentSong = SongLoader.getSong(this, currentSongId);
+                if (currentSong.id == currentSongId) {
+                    SongCache.getInstance(this).put(currentSong);
+                }
                 openCurrent();
-                prepareNext();
 
+                // applied once the song is prepared, dropped if it is past the end because the file was changed
                 if (restoredPositionInTrack > 0) seek(restoredPositionInTrack);
 
                 notHandledMetaChangedForCurrentTrack = true;
                 sendChangeInternal(META_CHANGED);
-                sendChangeInternal(QUEUE_CHANGED);
+                removeMissingSongsLater(playingQueue.toIdArray(), originalPlayingQueue.toIdArray());
+            } else {
+                // the journal must not continue queues that weren't restored
+                queueJournal.snapshot(new SongIdList(playingQueue), new SongIdList(originalPlayingQueue), -1, 0);
             }
         }
         queuesRestored = true;
     }
 
+    /**
+     * Removes the queued songs that left the library since the queues were saved, then prepares the next song.
+     */
+    private void removeMissingSongsLater(@NonNull final int[] playingQueueIds, @NonNull final int[] originalPlayingQueueIds) {
+        mediaStoreSyncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int[] missingIds = MusicPlaybackQueueStore.getMissingSongIds(
+                        MusicLibrary.getInstance(MusicService.this).getSongTable(), playingQueueIds, originalPlayingQueueIds);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (playback == null) {
+                            // destroyed while the library was queried
+                            return;
+                        }
+                        checkingRestoredQueues = false;
+                        if (missingIds.length > 0) {
+                            removeSongIds(missingIds);
+                        } else {
+                            sendChangeInternal(QUEUE_CHANGED);
+                        }
+                        prepareNext();
+                    }
+                });
+            }
+        });
+    }
+
     private int quit() {
         unregisterReceiversAndRemoteControlClient();
         pause();
@@ -411,18 +524,26 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         } else {
             musicPlayerHandlerThread.quit();
         }
-        queueSaveHandler.removeCallbacksAndMessages(null);
+        // the pending save holds the last changes to the queues, quitting safely still writes it
         if (Build.VERSION.SDK_INT >= 18) {
             queueSaveHandlerThread.quitSafely();
         } else {
             queueSaveHandlerThread.quit();
         }
+        // a read ahead that is still running is useless now
+        readAheadHandlerThread.quit();
+        if (Build.VERSION.SDK_INT >= 18) {
+            mediaStoreSyncHandlerThread.quitSafely();
+        } else {
+            mediaStoreSyncHandlerThread.quit();
+        }
         playback.release();
         playback = null;
     }
 
     public void stop() {
         pausedByTransientLossOfFocus = false;
+        playWhenPrepared = false;
         savePositionInTrack();
         playback.stop();
         notifyChange(PLAY_STATE_CHANGED);
@@ -441,21 +562,43 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         playSongAt(getNextPosition(force));
     }
 
+    /**
+     * The next song is prepared once the current one is, see {@link #onTrackPreparedImpl(int)}.
+     *
+     * @return whether the song is being prepared
+     */
     private boolean openTrackAndPrepareNextAt(int position) {
         synchronized (this) {
             this.position = position;
-            boolean prepared = openCurrent();
-            if (prepared) prepareNextImpl();
+            boolean preparing = openCurrent();
+            readAheadCache.notifyOpened(getCurrentSong().data);
             notifyChange(META_CHANGED);
             notHandledMetaChangedForCurrentTrack = false;
-            return prepared;
+            return preparing;
+        }
+    }
+
+    private void onTrackPreparedImpl(int prepareMillis) {
+        if (playWhenPrepared) {
+            playWhenPrepared = false;
+            play();
+        }
+        prepareNextImpl();
+        prepareLatencyStats.record(currentTrackPath, prepareMillis);
+    }
+
+    private void onTrackPrepareFailedImpl() {
+        if (playWhenPrepared) {
+            playWhenPrepared = false;
+            Toast.makeText(this, getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
         }
     }
 
     private boolean openCurrent() {
         synchronized (this) {
             try {
-                return playback.setDataSource(getTrackUri(getCurrentSong()));
+                currentTrackPath = getCurrentSong().data;
+                return playback.setDataSource(getTrackUri(getSongIdAt(getPosition())));
             } catch (Exception e) {
                 return false;
             }
@@ -468,11 +611,17 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private boolean prepareNextImpl() {
+        if (checkingRestoredQueues) {
+            // prepared once the queues were checked, see removeMissingSongsLater()
+            return false;
+        }
         synchronized (this) {
             try {
                 int nextPosition = getNextPosition(false);
-                playback.setNextDataSource(getTrackUri(getSongAt(nextPosition)));
+                nextTrackPath = getSongAt(nextPosition).data;
+                playback.setNextDataSource(getTrackUri(getSongIdAt(nextPosition)));
                 this.nextPosition = nextPosition;
+                readAheadUpcomingSongs();
                 return true;
             } catch (Exception e) {
                 return false;
@@ -480,6 +629,24 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     }
 
+    /**
+     * Reads the beginning of the next songs, so neither skipping to them nor their track boundaries wait for slow
+     * storage. Without gapless playback the next song isn't prepared before it plays, with it the ones after aren't.
+     */
+    private void readAheadUpcomingSongs() {
+        final int size = playingQueue.size();
+        final ArrayList<Song> songs = new ArrayList<>(READ_AHEAD_SONGS);
+        for (int i = 1; i <= READ_AHEAD_SONGS && i < size; i++) {
+            int position = getPosition() + i;
+            if (position >= size) {
+                if (getRepeatMode() != REPEAT_MODE_ALL) break;
+                position -= size;
+            }
+            songs.add(getSongAt(position));
+        }
+        readAheadCache.request(songs);
+    }
+
     private void closeAudioEffectSession() {
         final Intent audioEffectsIntent = new Intent(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
         audioEffectsIntent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, playback.getAudioSessionId());
@@ -578,6 +745,17 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     }
 
+    /**
+     * Like {@link #getSongAt(int)}, but doesn't materialize the song.
+     */
+    private int getSongIdAt(int position) {
+        if (position >= 0 && position < playingQueue.size()) {
+            return playingQueue.getId(position);
+        } else {
+            return Song.EMPTY_SONG.id;
+        }
+    }
+
     public int getNextPosition(boolean force) {
         int position = getPosition() + 1;
         switch (getRepeatMode()) {
@@ -609,7 +787,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         return getPosition() == getPlayingQueue().size() - 1;
     }
 
-    public ArrayList<Song> getPlayingQueue() {
+    public List<Song> getPlayingQueue() {
         return playingQueue;
     }
 
@@ -632,33 +810,63 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     }
 
-    public void openQueue(@Nullable final ArrayList<Song> playingQueue, final int startPosition, final boolean startPlaying) {
+    public void openQueue(@Nullable final List<Song> playingQueue, final int startPosition, final boolean startPlaying) {
+        openQueue(playingQueue, startPosition, startPlaying, false);
+    }
+
+    /**
+     * Like {@link #openQueue(List, int, boolean)}, but turns shuffling on first, so the new queue is shuffled once.
+     */
+    public void openAndShuffleQueue(@Nullable final List<Song> playingQueue, final int startPosition, final boolean startPlaying) {
+        openQueue(playingQueue, startPosition, startPlaying, true);
+    }
+
+    private void openQueue(@Nullable final List<Song> playingQueue, final int startPosition, final boolean startPlaying, final boolean shuffle) {
         if (playingQueue != null && !playingQueue.isEmpty() && startPosition >= 0 && startPosition < playingQueue.size()) {
+            if (shuffle && shuffleMode != SHUFFLE_MODE_SHUFFLE) {
+                // the new queue is shuffled below, the old one doesn't need to be
+                shuffleMode = SHUFFLE_MODE_SHUFFLE;
+                PreferenceManager.getDefaultSharedPreferences(this).edit()
+                        .putInt(SAVED_SHUFFLE_MODE, shuffleMode)
+                        .apply();
+                handleAndSendChangeInternal(SHUFFLE_MODE_CHANGED);
+            }
+
             // it is important to copy the playing queue here first as we might add/remove songs later
-            originalPlayingQueue = new ArrayList<>(playingQueue);
-            this.playingQueue = new ArrayList<>(originalPlayingQueue);
+            originalPlayingQueue = new SongIdList(SongCache.getInstance(this), playingQueue);
+            this.playingQueue = new SongIdList(originalPlayingQueue);
+            // e.g. a folder or the widget opened the queue before the library is loaded, the songs around the
+            // start song must be shown right away
+            SongCache.getInstance(this).putAround(playingQueue, startPosition);
 
             int position = startPosition;
             if (shuffleMode == SHUFFLE_MODE_SHUFFLE) {
                 ShuffleHelper.makeShuffleList(this.playingQueue, startPosition);
                 position = 0;
             }
+            // a new queue is cheaper to save as a whole than as a change
+            queueJournal.snapshot(new SongIdList(this.playingQueue), new SongIdList(originalPlayingQueue), position, 0);
             if (startPlaying) {
                 playSongAt(position);
             } else {
                 setPosition(position);
             }
             notifyChange(QUEUE_CHANGED);
+            if (shuffleMode == SHUFFLE_MODE_SHUFFLE && PreferenceUtil.getInstance(this).smartShuffle()) {
+                smartShuffleLater(position);
+            }
         }
     }
 
     public void addSong(int position, Song song) {
         playingQueue.add(position, song);
         originalPlayingQueue.add(position, song);
+        queueJournal.add(position, new int[]{song.id}, getPosition());
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSong(Song song) {
+        queueJournal.add(playingQueue.size(), new int[]{song.id}, getPosition());
         playingQueue.add(song);
         originalPlayingQueue.add(song);
         notifyChange(QUEUE_CHANGED);
@@ -667,40 +875,78 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public void addSongs(int position, List<Song> songs) {
         playingQueue.addAll(position, songs);
         originalPlayingQueue.addAll(position, songs);
+        queueJournal.add(position, getIds(songs), getPosition());
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSongs(List<Song> songs) {
+        queueJournal.add(playingQueue.size(), getIds(songs), getPosition());
         playingQueue.addAll(songs);
         originalPlayingQueue.addAll(songs);
         notifyChange(QUEUE_CHANGED);
     }
 
+    @NonNull
+    private static int[] getIds(@NonNull List<Song> songs) {
+        final int[] ids = new int[songs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = songs.get(i).id;
+        }
+        return ids;
+    }
+
     public void removeSong(int position) {
+        final int originalPosition;
         if (getShuffleMode() == SHUFFLE_MODE_NONE) {
-            playingQueue.remove(position);
-            originalPlayingQueue.remove(position);
+            playingQueue.removeId(position);
+            originalPlayingQueue.removeId(position);
+            originalPosition = position;
         } else {
-            originalPlayingQueue.remove(playingQueue.remove(position));
+            originalPosition = originalPlayingQueue.indexOfId(playingQueue.removeId(position));
+            if (originalPosition >= 0) {
+                originalPlayingQueue.removeId(originalPosition);
+            }
         }
 
         rePosition(position);
+        queueJournal.remove(position, originalPosition, getPosition());
 
         notifyChange(QUEUE_CHANGED);
     }
 
     public void removeSong(@NonNull Song song) {
-        for (int i = 0; i < playingQueue.size(); i++) {
-            if (playingQueue.get(i).id == song.id) {
-                playingQueue.remove(i);
-                rePosition(i);
-            }
+        int position;
+        while ((position = playingQueue.indexOfId(song.id)) >= 0) {
+            playingQueue.removeId(position);
+            rePosition(position);
         }
-        for (int i = 0; i < originalPlayingQueue.size(); i++) {
-            if (originalPlayingQueue.get(i).id == song.id) {
-                originalPlayingQueue.remove(i);
-            }
+        while ((position = originalPlayingQueue.indexOfId(song.id)) >= 0) {
+            originalPlayingQueue.removeId(position);
+        }
+        queueJournal.removeIds(new int[]{song.id}, getPosition());
+        notifyChange(QUEUE_CHANGED);
+    }
+
+    public void removeSongs(@NonNull List<Song> songs) {
+        removeSongIds(getIds(songs));
+    }
+
+    private void removeSongIds(@NonNull int[] ids) {
+        final IntIntHashMap songIds = new IntIntHashMap(ids.length);
+        for (int songId : ids) {
+            songIds.put(songId, 0);
+        }
+        final int currentPosition = getPosition();
+        final boolean currentSongRemoved = currentPosition >= 0 && currentPosition < playingQueue.size()
+                && songIds.containsKey(playingQueue.getId(currentPosition));
+        final int newPosition = playingQueue.removeAllIds(songIds, currentPosition);
+        originalPlayingQueue.removeAllIds(songIds, 0);
+        if (currentSongRemoved) {
+            setPosition(Math.min(newPosition, playingQueue.size() - 1));
+        } else if (currentPosition >= 0) {
+            position = newPosition;
         }
+        queueJournal.removeIds(ids, getPosition());
         notifyChange(QUEUE_CHANGED);
     }
 
@@ -720,11 +966,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public void moveSong(int from, int to) {
         if (from == to) return;
         final int currentPosition = getPosition();
-        Song songToMove = playingQueue.remove(from);
-        playingQueue.add(to, songToMove);
+        playingQueue.move(from, to);
         if (getShuffleMode() == SHUFFLE_MODE_NONE) {
-            Song tmpSong = originalPlayingQueue.remove(from);
-            originalPlayingQueue.add(to, tmpSong);
+            originalPlayingQueue.move(from, to);
         }
         if (from > currentPosition && to <= currentPosition) {
             position = currentPosition + 1;
@@ -733,12 +977,14 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         } else if (from == currentPosition) {
             position = to;
         }
+        queueJournal.move(from, to, getShuffleMode() == SHUFFLE_MODE_NONE, getPosition());
         notifyChange(QUEUE_CHANGED);
     }
 
     public void clearQueue() {
         playingQueue.clear();
         originalPlayingQueue.clear();
+        queueJournal.clear(-1);
 
         setPosition(-1);
         notifyChange(QUEUE_CHANGED);
@@ -757,15 +1003,15 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private void playSongAtImpl(int position) {
-        if (openTrackAndPrepareNextAt(position)) {
-            play();
-        } else {
-            Toast.makeText(this, getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
+        playWhenPrepared = true;
+        if (!openTrackAndPrepareNextAt(position)) {
+            onTrackPrepareFailedImpl();
         }
     }
 
     public void pause() {
         pausedByTransientLossOfFocus = false;
+        playWhenPrepared = false;
         if (playback.isPlaying()) {
             playback.pause();
             notifyChange(PLAY_STATE_CHANGED);
@@ -776,7 +1022,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         synchronized (this) {
             if (requestFocus()) {
                 if (!playback.isPlaying()) {
-                    if (!playback.isInitialized()) {
+                    if (playback.isPreparing()) {
+                        playWhenPrepared = true;
+                    } else if (!playback.isInitialized()) {
                         playSongAt(getPosition());
                     } else {
                         registerReceiversAndRemoteControlClient();
@@ -890,26 +1138,100 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         switch (shuffleMode) {
             case SHUFFLE_MODE_SHUFFLE:
                 this.shuffleMode = shuffleMode;
-                ShuffleHelper.makeShuffleList(this.getPlayingQueue(), getPosition());
-                position = 0;
+                // shuffled plainly right away, so the queue and the journal match the mode, the smart order replaces
+                // it once it is built
+                shuffleNow();
+                if (PreferenceUtil.getInstance(this).smartShuffle()) {
+                    smartShuffleLater(getPosition());
+                }
                 break;
             case SHUFFLE_MODE_NONE:
                 this.shuffleMode = shuffleMode;
-                int currentSongId = getCurrentSong().id;
-                playingQueue = new ArrayList<>(originalPlayingQueue);
-                int newPosition = 0;
-                for (Song song : getPlayingQueue()) {
-                    if (song.id == currentSongId) {
-                        newPosition = getPlayingQueue().indexOf(song);
-                    }
+                if (playingQueue.isShuffledLazily()
+                        && Arrays.equals(playingQueue.toUnshuffledIdArray(), originalPlayingQueue.toIdArray())) {
+                    // not changed since the shuffle, the ids are still in the original order underneath, e.g. not
+                    // after a smart shuffle was shuffled again, replaying the journal copies the original queue
+                    position = Math.max(0, playingQueue.unshuffle(getPosition()));
+                } else {
+                    int currentSongId = getCurrentSong().id;
+                    playingQueue = new SongIdList(originalPlayingQueue);
+                    position = Math.max(0, playingQueue.indexOfId(currentSongId));
                 }
-                position = newPosition;
+                queueJournal.unshuffle(position);
                 break;
         }
         handleAndSendChangeInternal(SHUFFLE_MODE_CHANGED);
         notifyChange(QUEUE_CHANGED);
     }
 
+    private void shuffleNow() {
+        final int current = getPosition();
+        // the seed is all the journal needs to shuffle the same way again
+        final long seed = new Random().nextLong();
+        if (!playingQueue.isEmpty()) {
+            playingQueue.shuffle(current, seed);
+        }
+        position = 0;
+        queueJournal.shuffle(current, seed, position);
+    }
+
+    /**
+     * Builds the smart shuffle order on the media store sync thread, looking up the artists and albums may have to
+     * load the library. The queue is already shuffled plainly, the order replaces that shuffle on the main thread,
+     * unless the queue was changed, shuffled again, unshuffled or replaced in the meantime.
+     *
+     * @param current the position of the song that comes first
+     */
+    private void smartShuffleLater(final int current) {
+        final int request = ++smartShuffleRequest;
+        final SongIdList queue = playingQueue;
+        final int[] ids = queue.toIdArray();
+        if (ids.length == 0) return;
+        mediaStoreSyncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int[] order = ShuffleHelper.getSmartShuffleOrder(ids, current,
+                        MusicLibrary.getInstance(MusicService.this).getSongTableForLookups(), new Random());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (playback == null || request != smartShuffleRequest || shuffleMode != SHUFFLE_MODE_SHUFFLE
+                                || queue != playingQueue || !Arrays.equals(ids, playingQueue.toIdArray())) {
+                            // the plain shuffle stays
+                            return;
+                        }
+                        applySmartShuffle(ids, order);
+                        prepareNext();
+                        notifyChange(QUEUE_CHANGED);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param ids   the ids of the playing queue
+     * @param order the positions of the ids in shuffled order
+     */
+    private void applySmartShuffle(@NonNull int[] ids, @NonNull int[] order) {
+        final int currentPosition = getPosition();
+        final int[] shuffledIds = new int[ids.length];
+        int newPosition = 0;
+        for (int i = 0; i < order.length; i++) {
+            shuffledIds[i] = ids[order[i]];
+            if (order[i] == currentPosition) {
+                // e.g. skipped to another song while the order was built
+                newPosition = i;
+            }
+        }
+        playingQueue.clear();
+        playingQueue.addIds(0, shuffledIds);
+        position = newPosition;
+        // the order depends on the artists and albums in the library, which may have changed by the time the
+        // journal is replayed, so the queues are saved as a whole
+        queueJournal.snapshot(new SongIdList(playingQueue), new SongIdList(originalPlayingQueue), position, getSongProgressMillis());
+    }
+
     private void notifyChange(@NonNull final String what) {
         handleAndSendChangeInternal(what);
         sendPublicIntent(what);
@@ -1029,6 +1351,21 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         playerHandler.sendEmptyMessage(TRACK_ENDED);
     }
 
+    @Override
+    public void onTrackPrepared(long prepareMillis) {
+        playerHandler.obtainMessage(TRACK_PREPARED, (int) prepareMillis, 0).sendToTarget();
+    }
+
+    @Override
+    public void onTrackPrepareFailed() {
+        playerHandler.sendEmptyMessage(TRACK_PREPARE_FAILED);
+    }
+
+    @Override
+    public void onNextTrackPrepared(long prepareMillis) {
+        playerHandler.obtainMessage(NEXT_TRACK_PREPARED, (int) prepareMillis, 0).sendToTarget();
+    }
+
     private static final class PlaybackHandler extends Handler {
         @NonNull
         private final WeakReference<MusicService> mService;
@@ -1105,6 +1442,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                     break;
 
                 case SET_POSITION:
+                    // stops playing, like opening a song always did before it was prepared asynchronously
+                    service.playWhenPrepared = false;
                     service.openTrackAndPrepareNextAt(msg.arg1);
                     service.notifyChange(PLAY_STATE_CHANGED);
                     break;
@@ -1113,10 +1452,27 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                     service.prepareNextImpl();
                     break;
 
+                case TRACK_PREPARED:
+                    service.onTrackPreparedImpl(msg.arg1);
+                    break;
+
+                case TRACK_PREPARE_FAILED:
+                    service.onTrackPrepareFailedImpl();
+                    break;
+
+                case NEXT_TRACK_PREPARED:
+                    service.prepareLatencyStats.record(service.nextTrackPath, msg.arg1);
+                    break;
+
                 case RESTORE_QUEUES:
                     service.restoreQueuesAndPositionIfNecessary();
                     break;
 
+                case HANDLE_ACTION:
+                    service.restoreQueuesAndPositionIfNecessary();
+                    service.handleAction((String) msg.obj);
+                    break;
+
                 case FOCUS_CHANGE:
                     switch (msg.arg1) {
                         case AudioManager.AUDIOFOCUS_GAIN:
@@ -1204,6 +1560,21 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         public void run() {
             // actually call refresh when the delayed callback fires
             // do not send a sticky broadcast here
+            final MusicLibrary library = MusicLibrary.getInstance(MusicService.this);
+            LibraryChangeSet changes = library.sync();
+            if (changes != null && changes.isEmpty()) {
+                // e.g. a change of a non music file, nothing to refresh
+                return;
+            }
+            // the changed queued songs are materialized again from the changed library
+            if (changes != null) {
+                SongCache.getInstance(MusicService.this).remove(changes.getSongIds());
+            } else {
+                // reloaded here, the song cache only looks up songs that are already loaded
+                library.getSongTable();
+                SongCache.getInstance(MusicService.this).clear();
+            }
+            LyricsIndexer.getInstance(MusicService.this).requestUpdate();
             handleAndSendChangeInternal(MEDIA_STORE_CHANGED);
         }
     }
@@ -15,6 +15,8 @@ public interface Playback {
 
     boolean isInitialized();
 
+    boolean isPreparing();
+
     boolean start();
 
     void stop();
@@ -41,5 +43,17 @@ public interface Playback {
         void onTrackWentToNext();
 
         void onTrackEnded();
+
+        /**
+         * @param prepareMillis how long it took from setDataSource() until the track could be played
+         */
+        void onTrackPrepared(long prepareMillis);
+
+        void onTrackPrepareFailed();
+
+        /**
+         * @param prepareMillis how long it took from setNextDataSource() until the track could follow the current one
+         */
+        void onNextTrackPrepared(long prepareMillis);
     }
 }
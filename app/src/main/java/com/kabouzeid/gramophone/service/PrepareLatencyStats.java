@@ -0,0 +1,127 @@
+package com.kabouzeid.gramophone.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Histograms of how long preparing a track took, per codec and storage type of its file. A slow prepare doesn't
+ * block the playback handler anymore, but it still delays the start of the track, these show which files cause it.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class PrepareLatencyStats {
+    public static final String STORAGE_INTERNAL = "internal";
+    public static final String STORAGE_REMOVABLE = "removable";
+    public static final String STORAGE_OTHER = "other";
+
+    // bucket i counts the prepares that took less than 2^i ms, the last one all slower ones
+    public static final int BUCKET_COUNT = 16;
+
+    // by "codec/storage type", sorted so the dump is stable
+    private final TreeMap<String, long[]> histograms = new TreeMap<>();
+
+    /**
+     * @param path          the path of the prepared file
+     * @param prepareMillis how long preparing it took
+     */
+    public synchronized void record(@Nullable final String path, final long prepareMillis) {
+        final String key = getCodec(path) + "/" + getStorageType(path);
+        long[] histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new long[BUCKET_COUNT];
+            histograms.put(key, histogram);
+        }
+        histogram[getBucket(prepareMillis)]++;
+    }
+
+    /**
+     * @return a copy of the histogram, or null if no such file was prepared yet
+     */
+    @Nullable
+    public synchronized long[] getHistogram(@NonNull final String codec, @NonNull final String storageType) {
+        final long[] histogram = histograms.get(codec + "/" + storageType);
+        return histogram == null ? null : histogram.clone();
+    }
+
+    /**
+     * @return the lowercase file extension, e.g. "flac", or "unknown"
+     */
+    @NonNull
+    public static String getCodec(@Nullable final String path) {
+        if (path == null) {
+            return "unknown";
+        }
+        final int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/') || dot == path.length() - 1) {
+            return "unknown";
+        }
+        return path.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return {@link #STORAGE_INTERNAL} for the emulated storage, {@link #STORAGE_REMOVABLE} for SD cards and USB
+     * drives, {@link #STORAGE_OTHER} for everything else, e.g. network mounts
+     */
+    @NonNull
+    public static String getStorageType(@Nullable final String path) {
+        if (path == null) {
+            return STORAGE_OTHER;
+        }
+        if (path.startsWith("/storage/emulated/") || path.startsWith("/sdcard/") || path.startsWith("/mnt/sdcard/")
+                || path.startsWith("/data/")) {
+            return STORAGE_INTERNAL;
+        }
+        if (path.startsWith("/storage/") || path.startsWith("/mnt/media_rw/") || path.startsWith("/mnt/usb")) {
+            return STORAGE_REMOVABLE;
+        }
+        return STORAGE_OTHER;
+    }
+
+    static int getBucket(final long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        // the number of bits of millis is the first power of two it is less than
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    /**
+     * @return one line per codec and storage type with the count and the median, 90th percentile and maximum as the
+     * upper bounds of their buckets
+     */
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : histograms.entrySet()) {
+            final long[] histogram = entry.getValue();
+            long count = 0;
+            for (long bucketCount : histogram) {
+                count += bucketCount;
+            }
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(entry.getKey()).append(": ").append(count)
+                    .append(" prepares, p50 < ").append(getUpperBound(histogram, count / 2))
+                    .append(", p90 < ").append(getUpperBound(histogram, count * 9 / 10))
+                    .append(", max < ").append(getUpperBound(histogram, count - 1));
+        }
+        return builder.toString();
+    }
+
+    @NonNull
+    private static String getUpperBound(@NonNull final long[] histogram, final long rank) {
+        long seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen > rank) {
+                return bucket == BUCKET_COUNT - 1 ? "inf" : (1L << bucket) + " ms";
+            }
+        }
+        return "inf";
+    }
+}
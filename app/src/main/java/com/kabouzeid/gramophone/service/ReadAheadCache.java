@@ -0,0 +1,211 @@
+package com.kabouzeid.gramophone.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the beginning of the upcoming songs ahead of time, so preparing them doesn't wait for slow storage like SD
+ * cards or USB drives. The bytes are not kept here, reading them is enough for the kernel to keep them in its page
+ * cache, which the player reads from no matter how it opens the file.
+ * <p/>
+ * How much of a song is read adapts to the throughput measured for its storage type, so reading ahead from a slow
+ * storage doesn't keep it busy for long.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class ReadAheadCache {
+    public static final String TAG = ReadAheadCache.class.getSimpleName();
+
+    // how much of a song is read, if the storage is fast enough
+    private static final long READ_AHEAD_MILLIS_OF_AUDIO = 30000;
+    // reading a single song must not take longer
+    private static final long MAX_READ_MILLIS = 2000;
+    private static final long MIN_BYTES_PER_SONG = 256 * 1024;
+    private static final long MAX_BYTES_PER_SONG = 8 * 1024 * 1024;
+    // of all songs read ahead, the page cache must not be flooded
+    private static final long MAX_TOTAL_BYTES = 32 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // until the throughput of a storage type was measured, about a slow SD card
+    private static final double DEFAULT_BYTES_PER_MILLI = 4 * 1024;
+    // weight of the last read in the moving average of the throughput
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+    @NonNull
+    private final Handler handler;
+    // only used on the handler's thread
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    // incremented by every request, a read for an older one stops
+    private volatile int request;
+
+    // the paths that were read ahead with the number of bytes read, least recently used first
+    private final LinkedHashMap<String, Long> readPaths = new LinkedHashMap<>(16, 0.75f, true);
+    private long readBytes;
+    // by storage type
+    private final HashMap<String, Double> bytesPerMilli = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    /**
+     * @param looper the looper of the thread that reads, reading from slow storage blocks it
+     */
+    public ReadAheadCache(@NonNull final Looper looper) {
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Reads the beginning of the songs in the given order. Replaces the songs of the previous call, the song that is
+     * being read is not read to the end if it is not one of them.
+     */
+    public void request(@NonNull final List<Song> songs) {
+        final int request = ++this.request;
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Song song : songs) {
+                    if (request != ReadAheadCache.this.request) {
+                        return;
+                    }
+                    readAhead(song.data, song.duration, request);
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts a hit if the beginning of the song was read ahead, a miss otherwise.
+     *
+     * @param path the path of the song the player opens
+     */
+    public synchronized void notifyOpened(@Nullable final String path) {
+        if (path != null && readPaths.containsKey(path)) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the measured throughput of the storage type in bytes per millisecond, or a guess if nothing was read
+     * from it yet
+     */
+    public synchronized double getBytesPerMilli(@NonNull final String storageType) {
+        final Double measured = bytesPerMilli.get(storageType);
+        return measured == null ? DEFAULT_BYTES_PER_MILLI : measured;
+    }
+
+    private void readAhead(@Nullable final String path, final long durationMillis, final int request) {
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (readPaths.containsKey(path)) {
+                return;
+            }
+        }
+        final File file = new File(path);
+        final long length = file.length();
+        if (length <= 0) {
+            return;
+        }
+        final String storageType = PrepareLatencyStats.getStorageType(path);
+        final long budget = getBudget(length, durationMillis, getBytesPerMilli(storageType));
+
+        long read = 0;
+        boolean complete = false;
+        final long start = SystemClock.elapsedRealtime();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            while (request == this.request) {
+                final int count = in.read(buffer, 0, (int) Math.min(buffer.length, budget - read));
+                if (count <= 0) {
+                    complete = true;
+                    break;
+                }
+                read += count;
+                if (read >= budget) {
+                    complete = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // e.g. not readable with the storage permissions of the app, the player opens it through the MediaStore
+            Log.d(TAG, "Could not read ahead " + path, e);
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        final long millis = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            // only reads of at least a chunk say something about the storage, and not a cancelled one
+            if (complete && read >= CHUNK_SIZE) {
+                final double measured = (double) read / Math.max(1, millis);
+                final Double average = bytesPerMilli.get(storageType);
+                bytesPerMilli.put(storageType, average == null ? measured
+                        : average + THROUGHPUT_SMOOTHING * (measured - average));
+            }
+            if (complete) {
+                readPaths.put(path, read);
+                readBytes += read;
+                // the least recently read songs are the first the kernel drops, too
+                final Iterator<Map.Entry<String, Long>> iterator = readPaths.entrySet().iterator();
+                while (readBytes > MAX_TOTAL_BYTES && iterator.hasNext()) {
+                    readBytes -= iterator.next().getValue();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many bytes of a song to read: the first seconds of it at its average bitrate, but not more than
+     * the storage can deliver in {@link #MAX_READ_MILLIS}
+     */
+    static long getBudget(final long length, final long durationMillis, final double bytesPerMilli) {
+        long bytes = durationMillis > 0 ? length * READ_AHEAD_MILLIS_OF_AUDIO / durationMillis : MAX_BYTES_PER_SONG;
+        bytes = Math.min(bytes, (long) (bytesPerMilli * MAX_READ_MILLIS));
+        return Math.min(length, Math.max(MIN_BYTES_PER_SONG, Math.min(MAX_BYTES_PER_SONG, bytes)));
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(hits).append(" hits, ").append(misses).append(" misses, ")
+                .append(readPaths.size()).append(" songs (").append(readBytes / 1024).append(" KB) read ahead");
+        for (Map.Entry<String, Double> entry : bytesPerMilli.entrySet()) {
+            builder.append(String.format(Locale.ENGLISH, ", %s %.1f MB/s", entry.getKey(), entry.getValue() * 1000 / (1024 * 1024)));
+        }
+        return builder.toString();
+    }
+}
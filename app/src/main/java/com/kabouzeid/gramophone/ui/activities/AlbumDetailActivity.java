@@ -35,6 +35,8 @@ import com.kabouzeid.gramophone.interfaces.CabHolder;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
 import com.kabouzeid.gramophone.interfaces.PaletteColorHolder;
 import com.kabouzeid.gramophone.loader.AlbumLoader;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.MusicLibrary;
 import com.kabouzeid.gramophone.misc.SimpleObservableScrollViewCallbacks;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Album;
@@ -59,6 +61,9 @@ public class AlbumDetailActivity extends AbsSlidingMusicPanelActivity implements
 
     public static final String EXTRA_ALBUM_ID = "extra_album_id";
 
+    // the generation of the music library when the loader was last (re)started
+    private int libraryGeneration;
+
     private Album album;
 
     @BindView(R.id.list)
@@ -93,6 +98,7 @@ public class AlbumDetailActivity extends AbsSlidingMusicPanelActivity implements
         setUpToolBar();
         setUpViews();
 
+        libraryGeneration = MusicLibrary.getInstance(this).getGeneration();
         getSupportLoaderManager().initLoader(LOADER_ID, getIntent().getExtras(), this);
     }
 
@@ -311,7 +317,13 @@ public class AlbumDetailActivity extends AbsSlidingMusicPanelActivity implements
     @Override
     public void onMediaStoreChanged() {
         super.onMediaStoreChanged();
-        reload();
+        MusicLibrary library = MusicLibrary.getInstance(this);
+        int generation = library.getGeneration();
+        LibraryChangeSet changes = library.getChangesSince(libraryGeneration);
+        libraryGeneration = generation;
+        if (changes == null || changes.affectsAlbum(getIntent().getIntExtra(EXTRA_ALBUM_ID, -1))) {
+            reload();
+        }
     }
 
     @Override
@@ -46,6 +46,8 @@ import com.kabouzeid.gramophone.interfaces.PaletteColorHolder;
 import com.kabouzeid.gramophone.lastfm.rest.LastFMRestClient;
 import com.kabouzeid.gramophone.lastfm.rest.model.LastFmArtist;
 import com.kabouzeid.gramophone.loader.ArtistLoader;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.MusicLibrary;
 import com.kabouzeid.gramophone.misc.SimpleObservableScrollViewCallbacks;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Artist;
@@ -71,6 +73,9 @@ public class ArtistDetailActivity extends AbsSlidingMusicPanelActivity implement
 
     public static final String EXTRA_ARTIST_ID = "extra_artist_id";
 
+    // the generation of the music library when the loader was last (re)started
+    private int libraryGeneration;
+
     @BindView(R.id.image)
     ImageView artistImage;
     @BindView(R.id.list_background)
@@ -115,6 +120,7 @@ public class ArtistDetailActivity extends AbsSlidingMusicPanelActivity implement
         setUpViews();
         setUpToolbar();
 
+        libraryGeneration = MusicLibrary.getInstance(this).getGeneration();
         getSupportLoaderManager().initLoader(LOADER_ID, getIntent().getExtras(), this);
     }
 
@@ -384,7 +390,13 @@ public class ArtistDetailActivity extends AbsSlidingMusicPanelActivity implement
     @Override
     public void onMediaStoreChanged() {
         super.onMediaStoreChanged();
-        reload();
+        MusicLibrary library = MusicLibrary.getInstance(this);
+        int generation = library.getGeneration();
+        LibraryChangeSet changes = library.getChangesSince(libraryGeneration);
+        libraryGeneration = generation;
+        if (changes == null || changes.affectsArtist(getIntent().getIntExtra(EXTRA_ARTIST_ID, -1))) {
+            reload();
+        }
     }
 
     @Override
@@ -1,10 +1,7 @@
 package com.kabouzeid.gramophone.ui.activities;
 
-import android.content.Context;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
-import androidx.loader.app.LoaderManager;
-import androidx.loader.content.Loader;
 import androidx.core.view.MenuItemCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -20,25 +17,22 @@ import android.widget.TextView;
 import com.kabouzeid.appthemehelper.ThemeStore;
 import com.kabouzeid.gramophone.R;
 import com.kabouzeid.gramophone.adapter.SearchAdapter;
-import com.kabouzeid.gramophone.interfaces.LoaderIds;
-import com.kabouzeid.gramophone.loader.AlbumLoader;
-import com.kabouzeid.gramophone.loader.ArtistLoader;
-import com.kabouzeid.gramophone.loader.SongLoader;
-import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
+import com.kabouzeid.gramophone.loader.SearchSession;
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.ui.activities.base.AbsMusicServiceActivity;
 import com.kabouzeid.gramophone.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 
-public class SearchActivity extends AbsMusicServiceActivity implements SearchView.OnQueryTextListener, LoaderManager.LoaderCallbacks<List<Object>> {
+public class SearchActivity extends AbsMusicServiceActivity implements SearchView.OnQueryTextListener, SearchSession.Callback {
     public static final String TAG = SearchActivity.class.getSimpleName();
     public static final String QUERY = "query";
-    private static final int LOADER_ID = LoaderIds.SEARCH_ACTIVITY;
 
     @BindView(R.id.recycler_view)
     RecyclerView recyclerView;
@@ -50,7 +44,13 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
     SearchView searchView;
 
     private SearchAdapter adapter;
+    private SearchSession searchSession;
     private String query;
+    // the results of the current query found so far
+    private ArrayList<Song> songs = new ArrayList<>();
+    private ArrayList<Artist> artists = new ArrayList<>();
+    private ArrayList<Album> albums = new ArrayList<>();
+    private ArrayList<Song> lyricsSongs = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -88,7 +88,16 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
             query = savedInstanceState.getString(QUERY);
         }
 
-        getSupportLoaderManager().initLoader(LOADER_ID, null, this);
+        searchSession = new SearchSession(this, this);
+        if (!TextUtils.isEmpty(query)) {
+            searchSession.search(query);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        searchSession.release();
+        super.onDestroy();
     }
 
     @Override
@@ -153,13 +162,25 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
 
     private void search(@NonNull String query) {
         this.query = query;
-        getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        if (TextUtils.isEmpty(query)) {
+            // cancels the running search and clears the results right away
+            searchSession.search("");
+            songs = new ArrayList<>();
+            artists = new ArrayList<>();
+            albums = new ArrayList<>();
+            lyricsSongs = new ArrayList<>();
+            adapter.swapDataSet(Collections.emptyList());
+        } else {
+            searchSession.search(query);
+        }
     }
 
     @Override
     public void onMediaStoreChanged() {
         super.onMediaStoreChanged();
-        getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        if (!TextUtils.isEmpty(query)) {
+            searchSession.refresh();
+        }
     }
 
     @Override
@@ -182,51 +203,41 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
     }
 
     @Override
-    public Loader<List<Object>> onCreateLoader(int id, Bundle args) {
-        return new AsyncSearchResultLoader(this, query);
+    public void onSongsFound(@NonNull String query, @NonNull ArrayList<Song> songs) {
+        if (query.isEmpty()) return;
+        this.songs = songs;
+        // the other sections still show the results of the previous query until they are found again
+        showResults();
     }
 
     @Override
-    public void onLoadFinished(Loader<List<Object>> loader, List<Object> data) {
-        adapter.swapDataSet(data);
+    public void onAlbumsAndArtistsFound(@NonNull String query, @NonNull ArrayList<Album> albums, @NonNull ArrayList<Artist> artists) {
+        if (query.isEmpty()) return;
+        this.albums = albums;
+        this.artists = artists;
+        showResults();
     }
 
     @Override
-    public void onLoaderReset(Loader<List<Object>> loader) {
-        adapter.swapDataSet(Collections.emptyList());
+    public void onLyricsFound(@NonNull String query, @NonNull ArrayList<Song> songs) {
+        if (query.isEmpty()) return;
+        this.lyricsSongs = songs;
+        showResults();
     }
 
-    private static class AsyncSearchResultLoader extends WrappedAsyncTaskLoader<List<Object>> {
-        private final String query;
-
-        public AsyncSearchResultLoader(Context context, String query) {
-            super(context);
-            this.query = query;
-        }
+    private void showResults() {
+        ArrayList<Object> results = new ArrayList<>();
+        addSection(results, R.string.songs, songs);
+        addSection(results, R.string.artists, artists);
+        addSection(results, R.string.albums, albums);
+        addSection(results, R.string.lyrics, lyricsSongs);
+        adapter.swapDataSet(results);
+    }
 
-        @Override
-        public List<Object> loadInBackground() {
-            List<Object> results = new ArrayList<>();
-            if (!TextUtils.isEmpty(query)) {
-                List songs = SongLoader.getSongs(getContext(), query);
-                if (!songs.isEmpty()) {
-                    results.add(getContext().getResources().getString(R.string.songs));
-                    results.addAll(songs);
-                }
-
-                List artists = ArtistLoader.getArtists(getContext(), query);
-                if (!artists.isEmpty()) {
-                    results.add(getContext().getResources().getString(R.string.artists));
-                    results.addAll(artists);
-                }
-
-                List albums = AlbumLoader.getAlbums(getContext(), query);
-                if (!albums.isEmpty()) {
-                    results.add(getContext().getResources().getString(R.string.albums));
-                    results.addAll(albums);
-                }
-            }
-            return results;
+    private void addSection(@NonNull ArrayList<Object> results, int titleRes, @NonNull ArrayList<?> items) {
+        if (!items.isEmpty()) {
+            results.add(getResources().getString(titleRes));
+            results.addAll(items);
         }
     }
 }
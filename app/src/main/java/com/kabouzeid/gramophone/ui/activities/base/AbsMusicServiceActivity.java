@@ -15,6 +15,7 @@ import androidx.annotation.Nullable;
 import com.kabouzeid.gramophone.R;
 import com.kabouzeid.gramophone.helper.MusicPlayerRemote;
 import com.kabouzeid.gramophone.interfaces.MusicServiceEventListener;
+import com.kabouzeid.gramophone.loader.MusicLibrary;
 import com.kabouzeid.gramophone.service.MusicService;
 
 import java.lang.ref.WeakReference;
@@ -206,6 +207,7 @@ public abstract class AbsMusicServiceActivity extends AbsBaseActivity implements
     @Override
     protected void onHasPermissionsChanged(boolean hasPermissions) {
         super.onHasPermissionsChanged(hasPermissions);
+        MusicLibrary.getInstance(this).invalidate();
         Intent intent = new Intent(MusicService.MEDIA_STORE_CHANGED);
         intent.putExtra("from_permissions_changed", true); // just in case we need to know this at some point
         sendBroadcast(intent);
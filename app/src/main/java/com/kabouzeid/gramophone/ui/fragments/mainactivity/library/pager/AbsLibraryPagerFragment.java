@@ -3,6 +3,8 @@ package com.kabouzeid.gramophone.ui.fragments.mainactivity.library.pager;
 import android.os.Bundle;
 import androidx.loader.app.LoaderManager;
 
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.MusicLibrary;
 import com.kabouzeid.gramophone.ui.fragments.AbsMusicServiceFragment;
 import com.kabouzeid.gramophone.ui.fragments.mainactivity.library.LibraryFragment;
 
@@ -10,6 +12,8 @@ import com.kabouzeid.gramophone.ui.fragments.mainactivity.library.LibraryFragmen
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class AbsLibraryPagerFragment extends AbsMusicServiceFragment {
+    // the generation of the music library the last check was done against
+    private int libraryGeneration;
 
     /* http://stackoverflow.com/a/2888433 */
     @Override
@@ -25,5 +29,18 @@ public class AbsLibraryPagerFragment extends AbsMusicServiceFragment {
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         setHasOptionsMenu(true);
+        libraryGeneration = MusicLibrary.getInstance(getActivity()).getGeneration();
+    }
+
+    /**
+     * @return whether the music library changed since the last call or since the fragment was created,
+     * i.e. whether data derived from it has to be reloaded
+     */
+    protected boolean checkLibraryChanged() {
+        MusicLibrary library = MusicLibrary.getInstance(getActivity());
+        int generation = library.getGeneration();
+        LibraryChangeSet changes = library.getChangesSince(libraryGeneration);
+        libraryGeneration = generation;
+        return changes == null || !changes.isEmpty();
     }
 }
@@ -11,7 +11,7 @@ import com.kabouzeid.gramophone.R;
 import com.kabouzeid.gramophone.adapter.album.AlbumAdapter;
 import com.kabouzeid.gramophone.loader.AlbumLoader;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
-import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
+import com.kabouzeid.gramophone.misc.SnapshotAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
@@ -98,7 +98,9 @@ public class AlbumsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFra
 
     @Override
     public void onMediaStoreChanged() {
-        getLoaderManager().restartLoader(LOADER_ID, null, this);
+        if (checkLibraryChanged()) {
+            getLoaderManager().restartLoader(LOADER_ID, null, this);
+        }
     }
 
     @Override
@@ -116,13 +118,18 @@ public class AlbumsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFra
         getAdapter().swapDataSet(new ArrayList<Album>());
     }
 
-    private static class AsyncAlbumLoader extends WrappedAsyncTaskLoader<ArrayList<Album>> {
+    private static class AsyncAlbumLoader extends SnapshotAsyncTaskLoader<ArrayList<Album>> {
         public AsyncAlbumLoader(Context context) {
             super(context);
         }
 
         @Override
-        public ArrayList<Album> loadInBackground() {
+        protected ArrayList<Album> loadFromSnapshot() {
+            return AlbumLoader.getAllAlbumsFromSnapshot(getContext());
+        }
+
+        @Override
+        protected ArrayList<Album> loadFromSource() {
             return AlbumLoader.getAllAlbums(getContext());
         }
     }
@@ -11,7 +11,7 @@ import com.kabouzeid.gramophone.R;
 import com.kabouzeid.gramophone.adapter.artist.ArtistAdapter;
 import com.kabouzeid.gramophone.loader.ArtistLoader;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
-import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
+import com.kabouzeid.gramophone.misc.SnapshotAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Artist;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
@@ -59,7 +59,9 @@ public class ArtistsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFr
 
     @Override
     public void onMediaStoreChanged() {
-        getLoaderManager().restartLoader(LOADER_ID, null, this);
+        if (checkLibraryChanged()) {
+            getLoaderManager().restartLoader(LOADER_ID, null, this);
+        }
     }
 
     @Override
@@ -121,13 +123,18 @@ public class ArtistsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFr
         getAdapter().swapDataSet(new ArrayList<Artist>());
     }
 
-    private static class AsyncArtistLoader extends WrappedAsyncTaskLoader<ArrayList<Artist>> {
+    private static class AsyncArtistLoader extends SnapshotAsyncTaskLoader<ArrayList<Artist>> {
         public AsyncArtistLoader(Context context) {
             super(context);
         }
 
         @Override
-        public ArrayList<Artist> loadInBackground() {
+        protected ArrayList<Artist> loadFromSnapshot() {
+            return ArtistLoader.getAllArtistsFromSnapshot(getContext());
+        }
+
+        @Override
+        protected ArrayList<Artist> loadFromSource() {
             return ArtistLoader.getAllArtists(getContext());
         }
     }
@@ -20,7 +20,6 @@ import android.widget.Toast;
 import com.kabouzeid.gramophone.R;
 import com.kabouzeid.gramophone.helper.MusicPlayerRemote;
 import com.kabouzeid.gramophone.loader.PlaylistLoader;
-import com.kabouzeid.gramophone.loader.SongLoader;
 import com.kabouzeid.gramophone.model.Artist;
 import com.kabouzeid.gramophone.model.Playlist;
 import com.kabouzeid.gramophone.model.Song;
@@ -167,15 +166,8 @@ public class MusicUtil {
                     MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection.toString(),
                     null, null);
             if (cursor != null) {
-                // Step 1: Remove selected tracks from the current playlist, as well
-                // as from the album art cache
-                cursor.moveToFirst();
-                while (!cursor.isAfterLast()) {
-                    final int id = cursor.getInt(0);
-                    final Song song = SongLoader.getSong(context, id);
-                    MusicPlayerRemote.removeFromQueue(song);
-                    cursor.moveToNext();
-                }
+                // Step 1: Remove selected tracks from the current playlist in one pass
+                MusicPlayerRemote.removeFromQueue(songs);
 
                 // Step 2: Remove selected tracks from the database
                 context.getContentResolver().delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
@@ -47,6 +47,7 @@ public final class PreferenceUtil {
 
     public static final String AUDIO_DUCKING = "audio_ducking";
     public static final String GAPLESS_PLAYBACK = "gapless_playback";
+    public static final String SMART_SHUFFLE = "smart_shuffle";
 
     public static final String LAST_ADDED_CUTOFF_TIMESTAMP = "last_added_cutoff_timestamp";
 
@@ -152,6 +153,10 @@ public final class PreferenceUtil {
         return mPreferences.getBoolean(GAPLESS_PLAYBACK, false);
     }
 
+    public final boolean smartShuffle() {
+        return mPreferences.getBoolean(SMART_SHUFFLE, false);
+    }
+
     public final boolean audioDucking() {
         return mPreferences.getBoolean(AUDIO_DUCKING, true);
     }
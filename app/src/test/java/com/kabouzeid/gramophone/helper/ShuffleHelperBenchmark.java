@@ -0,0 +1,45 @@
+package com.kabouzeid.gramophone.helper;
+
+import com.kabouzeid.gramophone.misc.LazyPermutation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Measures how well the smart shuffle of the {@link ShuffleHelper} spreads artists and albums compared to a plain
+ * shuffle, and how long it takes on a large queue.
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*ShuffleHelperBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class ShuffleHelperBenchmark {
+    private static final int QUEUE_SIZE = 100000;
+
+    @Test
+    public void benchmarkSmartShuffle() {
+        ShuffleHelperTest.Library library = new ShuffleHelperTest.Library(QUEUE_SIZE, 7);
+        long shuffleNanos = Long.MAX_VALUE;
+        long smartNanos = Long.MAX_VALUE;
+        int[] shuffled = null;
+        int[] smart = null;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            shuffled = ShuffleHelperTest.identity(QUEUE_SIZE);
+            LazyPermutation.shuffle(shuffled, 0, run);
+            shuffleNanos = Math.min(shuffleNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            smart = ShuffleHelper.getSmartShuffleOrder(library.artistIds, library.albumIds, 0, new Random(run));
+            smartNanos = Math.min(smartNanos, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("%d songs: shuffle %6.2f ms, smart shuffle %6.2f ms", QUEUE_SIZE, shuffleNanos / 1e6, smartNanos / 1e6));
+        System.out.println(String.format("  same artist back to back: shuffle %5d, smart %5d; artist gaps under half the even spacing: shuffle %4.1f%%, smart %4.1f%%",
+                ShuffleHelper.countAdjacentRepeats(library.artistsIn(shuffled)), ShuffleHelper.countAdjacentRepeats(library.artistsIn(smart)),
+                100 * ShuffleHelper.getClumpedFraction(library.artistsIn(shuffled)), 100 * ShuffleHelper.getClumpedFraction(library.artistsIn(smart))));
+        System.out.println(String.format("  same album back to back:  shuffle %5d, smart %5d; album gaps under half the even spacing:  shuffle %4.1f%%, smart %4.1f%%",
+                ShuffleHelper.countAdjacentRepeats(library.albumsIn(shuffled)), ShuffleHelper.countAdjacentRepeats(library.albumsIn(smart)),
+                100 * ShuffleHelper.getClumpedFraction(library.albumsIn(shuffled)), 100 * ShuffleHelper.getClumpedFraction(library.albumsIn(smart))));
+    }
+}
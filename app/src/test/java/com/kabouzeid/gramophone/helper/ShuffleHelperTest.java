@@ -0,0 +1,123 @@
+package com.kabouzeid.gramophone.helper;
+
+import com.kabouzeid.gramophone.loader.SongTable;
+import com.kabouzeid.gramophone.misc.LazyPermutation;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the smart shuffle of the {@link ShuffleHelper} is a shuffle that spreads artists and albums better
+ * than a plain shuffle.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class ShuffleHelperTest {
+    /**
+     * A few artists with many songs and many with a few, each with a few albums.
+     */
+    static class Library {
+        final int[] artistIds;
+        final int[] albumIds;
+
+        Library(int size, long seed) {
+            Random random = new Random(seed);
+            int artistCount = Math.max(1, size / 50);
+            artistIds = new int[size];
+            albumIds = new int[size];
+            for (int i = 0; i < size; i++) {
+                double r = random.nextDouble();
+                artistIds[i] = (int) (artistCount * r * r * r);
+                albumIds[i] = artistIds[i] * 100 + random.nextInt(1 + artistIds[i] % 8);
+            }
+        }
+
+        int[] artistsIn(int[] order) {
+            return select(artistIds, order);
+        }
+
+        int[] albumsIn(int[] order) {
+            return select(albumIds, order);
+        }
+    }
+
+    @Test
+    public void smartShuffleIsAShuffleWithTheCurrentSongFirst() {
+        Random random = new Random(1);
+        for (int size : new int[]{0, 1, 2, 7, 1000}) {
+            Library library = new Library(size, random.nextLong());
+            for (int first : new int[]{-1, 0, size / 2, size - 1}) {
+                if (first >= size) continue;
+                int[] order = ShuffleHelper.getSmartShuffleOrder(library.artistIds, library.albumIds, first, new Random(size + first));
+                if (first >= 0) assertEquals(first, order[0]);
+                int[] sorted = order.clone();
+                Arrays.sort(sorted);
+                assertArrayEquals(identity(size), sorted);
+                // the same seed shuffles the same way
+                assertArrayEquals(order, ShuffleHelper.getSmartShuffleOrder(library.artistIds, library.albumIds, first, new Random(size + first)));
+            }
+        }
+    }
+
+    @Test
+    public void smartShuffleSpreadsArtistsAndAlbums() {
+        Library library = new Library(10000, 3);
+        int[] shuffled = identity(library.artistIds.length);
+        LazyPermutation.shuffle(shuffled, -1, 4);
+        int[] smart = ShuffleHelper.getSmartShuffleOrder(library.artistIds, library.albumIds, -1, new Random(4));
+
+        assertTrue(ShuffleHelper.getClumpedFraction(library.artistsIn(shuffled)) > 0.3);
+        assertTrue(ShuffleHelper.getClumpedFraction(library.artistsIn(smart)) < 0.05);
+        assertTrue(ShuffleHelper.getClumpedFraction(library.albumsIn(smart)) < 0.05);
+        assertTrue(ShuffleHelper.countAdjacentRepeats(library.artistsIn(smart)) < ShuffleHelper.countAdjacentRepeats(library.artistsIn(shuffled)) / 4);
+
+        assertEquals(0, ShuffleHelper.getClumpedFraction(new int[]{1, 2, 1, 2, 1, 2}), 0);
+        assertEquals(1, ShuffleHelper.getClumpedFraction(new int[]{1, 1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), 0);
+    }
+
+    @Test
+    public void smartShuffleLooksUpTheLibrary() {
+        SongTable songs = new SongTable.Builder(6)
+                .add(new Song(1, "A", 1, 0, 200000, "/a", 0, 10, "X", 1, "P"), 0)
+                .add(new Song(2, "B", 2, 0, 200000, "/b", 0, 10, "X", 1, "P"), 0)
+                .add(new Song(3, "C", 3, 0, 200000, "/c", 0, 10, "X", 1, "P"), 0)
+                .add(new Song(4, "D", 1, 0, 200000, "/d", 0, 20, "Y", 2, "Q"), 0)
+                .add(new Song(5, "E", 2, 0, 200000, "/e", 0, 20, "Y", 2, "Q"), 0)
+                .build();
+        // song 6 is not in the library anymore
+        int[] queue = {1, 2, 3, 4, 5, 6};
+        int[] order = ShuffleHelper.getSmartShuffleOrder(queue, 3, songs, new Random(6));
+        int[] ids = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            ids[i] = queue[order[i]];
+        }
+        assertEquals(4, ids[0]);
+        // the other song of the current artist is half the queue behind it, songs of the other artist are closer
+        assertTrue(ids[1] != 5);
+        Arrays.sort(ids);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 6}, ids);
+    }
+
+    private static int[] select(int[] values, int[] order) {
+        int[] selected = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            selected[i] = values[order[i]];
+        }
+        return selected;
+    }
+
+    static int[] identity(int size) {
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+        return positions;
+    }
+}
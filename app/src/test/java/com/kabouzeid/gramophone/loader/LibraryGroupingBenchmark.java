@@ -0,0 +1,51 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Measures {@link AlbumLoader#splitIntoAlbums(ArrayList)} and {@link ArtistLoader#splitIntoArtists(ArrayList)}
+ * on synthetic libraries. Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*LibraryGroupingBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LibraryGroupingBenchmark {
+    private static final int RUNS = 5;
+
+    @Test
+    public void benchmarkGrouping() {
+        // the quadratic implementation is only measured on the smallest library, it takes minutes on the others
+        benchmark(10000, true);
+        benchmark(100000, false);
+        benchmark(500000, false);
+    }
+
+    private static void benchmark(int songCount, boolean compareWithLegacy) {
+        ArrayList<Song> songs = LibraryGroupingTest.makeLibrary(songCount, songCount);
+        long albumNanos = Long.MAX_VALUE;
+        long artistNanos = Long.MAX_VALUE;
+        long legacyNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            ArrayList<Album> albums = AlbumLoader.splitIntoAlbums(songs);
+            long split = System.nanoTime();
+            ArtistLoader.splitIntoArtists(albums);
+            long end = System.nanoTime();
+            albumNanos = Math.min(albumNanos, split - start);
+            artistNanos = Math.min(artistNanos, end - split);
+
+            if (compareWithLegacy) {
+                start = System.nanoTime();
+                LibraryGroupingTest.legacySplitIntoArtists(LibraryGroupingTest.legacySplitIntoAlbums(songs));
+                legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+            }
+        }
+        System.out.println(String.format("%7d songs: albums %6.2f ms, artists %6.2f ms%s",
+                songCount, albumNanos / 1e6, artistNanos / 1e6,
+                compareWithLegacy ? String.format(", linear scan %8.2f ms", legacyNanos / 1e6) : ""));
+    }
+}
@@ -0,0 +1,137 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link AlbumLoader#splitIntoAlbums(ArrayList)} and {@link ArtistLoader#splitIntoArtists(ArrayList)}
+ * group like the linear scans they replaced.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LibraryGroupingTest {
+    private static final int SONGS_PER_ALBUM = 12;
+    private static final int ALBUMS_PER_ARTIST = 3;
+
+    /**
+     * Builds a library sorted like the albums tab: songs of an album are contiguous, albums in random order.
+     */
+    static ArrayList<Song> makeLibrary(int songCount, long seed) {
+        return makeLibrary(songCount, seed, false);
+    }
+
+    /**
+     * @param interleaved whether the songs of the albums are mixed, like in the songs tab, instead of contiguous
+     */
+    static ArrayList<Song> makeLibrary(int songCount, long seed, boolean interleaved) {
+        Random random = new Random(seed);
+        int albumCount = Math.max(1, songCount / SONGS_PER_ALBUM);
+        int artistCount = Math.max(1, albumCount / ALBUMS_PER_ARTIST);
+        ArrayList<Song> songs = new ArrayList<>(songCount);
+        for (int i = 0; i < songCount; i++) {
+            int albumId = random.nextInt(albumCount);
+            int artistId = albumId % artistCount;
+            songs.add(new Song(i, "Title " + i, i % SONGS_PER_ALBUM + 1, 1970 + albumId % 50, 180000 + i % 60000,
+                    "/sdcard/Music/" + artistId + "/" + albumId + "/" + i + ".mp3", 1400000000L + i,
+                    albumId, "Album " + albumId, artistId, "Artist " + artistId));
+        }
+        if (!interleaved) {
+            final int[] albumOrder = new int[albumCount];
+            for (int i = 0; i < albumCount; i++) {
+                albumOrder[i] = i;
+            }
+            for (int i = albumCount - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int album = albumOrder[i];
+                albumOrder[i] = albumOrder[j];
+                albumOrder[j] = album;
+            }
+            final int[] albumRank = new int[albumCount];
+            for (int i = 0; i < albumCount; i++) {
+                albumRank[albumOrder[i]] = i;
+            }
+            // stable, the songs of an album keep their order
+            Collections.sort(songs, new Comparator<Song>() {
+                @Override
+                public int compare(Song a, Song b) {
+                    return albumRank[a.albumId] - albumRank[b.albumId];
+                }
+            });
+        }
+        return songs;
+    }
+
+    @Test
+    public void groupingKeepsFirstAppearanceOrder() {
+        assertGroupedLikeLegacy(makeLibrary(2000, 1));
+    }
+
+    @Test
+    public void groupingKeepsFirstAppearanceOrderOfInterleavedAlbums() {
+        // e.g. the songs tab sorted by title, an album shows up again after other albums
+        assertGroupedLikeLegacy(makeLibrary(2000, 2, true));
+    }
+
+    private static void assertGroupedLikeLegacy(ArrayList<Song> songs) {
+        ArrayList<Album> albums = AlbumLoader.splitIntoAlbums(songs);
+        ArrayList<Album> legacyAlbums = legacySplitIntoAlbums(songs);
+        assertEquals(legacyAlbums, albums);
+
+        ArrayList<Artist> artists = ArtistLoader.splitIntoArtists(albums);
+        assertEquals(legacySplitIntoArtists(legacyAlbums), artists);
+
+        int songCount = 0;
+        for (Artist artist : artists) {
+            songCount += artist.getSongCount();
+        }
+        assertEquals(songs.size(), songCount);
+    }
+
+    static ArrayList<Album> legacySplitIntoAlbums(ArrayList<Song> songs) {
+        ArrayList<Album> albums = new ArrayList<>();
+        for (Song song : songs) {
+            Album found = null;
+            for (Album album : albums) {
+                if (album.songs.get(0).albumId == song.albumId) {
+                    found = album;
+                    break;
+                }
+            }
+            if (found == null) {
+                found = new Album();
+                albums.add(found);
+            }
+            found.songs.add(song);
+        }
+        return albums;
+    }
+
+    static ArrayList<Artist> legacySplitIntoArtists(ArrayList<Album> albums) {
+        ArrayList<Artist> artists = new ArrayList<>();
+        for (Album album : albums) {
+            Artist found = null;
+            for (Artist artist : artists) {
+                if (artist.getId() == album.getArtistId()) {
+                    found = artist;
+                    break;
+                }
+            }
+            if (found == null) {
+                found = new Artist();
+                artists.add(found);
+            }
+            found.albums.add(album);
+        }
+        return artists;
+    }
+}
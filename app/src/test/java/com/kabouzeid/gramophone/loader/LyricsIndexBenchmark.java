@@ -0,0 +1,72 @@
+package com.kabouzeid.gramophone.loader;
+
+import org.junit.Test;
+
+/**
+ * Measures the phrase queries of {@link LyricsIndex} and a scan of the lyrics on synthetic lyrics.
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*LyricsIndexBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LyricsIndexBenchmark {
+    private static final int RUNS = 5;
+
+    @Test
+    public void benchmarkSearch() {
+        benchmark(1000);
+        benchmark(10000);
+    }
+
+    private static void benchmark(int songCount) {
+        String[] lyrics = LyricsIndexTest.makeLyrics(songCount, songCount);
+        long start = System.nanoTime();
+        LyricsIndex.Builder builder = LyricsIndex.EMPTY.buildUpon();
+        for (int id = 0; id < songCount; id++) {
+            builder.put(id, 0, lyrics[id]);
+        }
+        LyricsIndex index = builder.build();
+        long buildNanos = System.nanoTime() - start;
+
+        long rawBytes = 0;
+        for (String text : lyrics) {
+            if (text != null) rawBytes += text.length();
+        }
+        long indexBytes = 0;
+        for (byte[] compressed : index.texts) {
+            indexBytes += compressed.length;
+        }
+        for (int i = 0; i < index.tokens.length; i++) {
+            indexBytes += index.tokens[i].length() + index.postings[i].length;
+        }
+
+        long indexNanos = Long.MAX_VALUE;
+        long scanNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            start = System.nanoTime();
+            for (String query : LyricsIndexTest.QUERIES) {
+                index.search(query, 50);
+            }
+            long split = System.nanoTime();
+            for (String query : LyricsIndexTest.QUERIES) {
+                scan(lyrics, query);
+            }
+            long end = System.nanoTime();
+            indexNanos = Math.min(indexNanos, split - start);
+            scanNanos = Math.min(scanNanos, end - split);
+        }
+        System.out.println(String.format("%6d songs: build %8.2f ms, %5.1f MB of lyrics in %5.1f MB, index %7.3f ms/query, scan %8.3f ms/query",
+                songCount, buildNanos / 1e6, rawBytes / 1e6, indexBytes / 1e6, indexNanos / 1e6 / LyricsIndexTest.QUERIES.length, scanNanos / 1e6 / LyricsIndexTest.QUERIES.length));
+    }
+
+    /**
+     * Searching the lyrics without an index, like reading them from the tags would, minus the file access.
+     */
+    private static int scan(String[] lyrics, String query) {
+        String lowerCase = query.toLowerCase();
+        int matches = 0;
+        for (String text : lyrics) {
+            if (text != null && text.toLowerCase().contains(lowerCase)) matches++;
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,119 @@
+package com.kabouzeid.gramophone.loader;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the phrase queries and updates of {@link LyricsIndex} on synthetic lyrics.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class LyricsIndexTest {
+    private static final int WORDS_PER_SONG = 250;
+    static final String[] QUERIES = {"love", "the night", "you and me", "dancing in the da", "qqq"};
+
+    @Test
+    public void findsPhrases() {
+        LyricsIndex index = LyricsIndex.EMPTY.buildUpon()
+                .put(1, 10, "Is this the real life?\nIs this just fantasy?")
+                .put(2, 10, "I see a little silhouetto of a man")
+                .put(3, 10, null)
+                .put(4, 10, "This is the life, real and true")
+                .build();
+        assertEquals(4, index.size());
+        assertArrayEquals(new int[]{1}, index.search("the real life", 10));
+        assertArrayEquals(new int[]{1}, index.search("THE REAL LI", 10));
+        assertArrayEquals(new int[]{1, 4}, index.search("real", 10));
+        assertArrayEquals(new int[]{1, 4}, index.search("lif", 10));
+        assertArrayEquals(new int[]{1}, index.search("just fantasy", 10));
+        assertArrayEquals(new int[0], index.search("fantasy just", 10));
+        assertArrayEquals(new int[]{1}, index.search("real", 1));
+        assertEquals("i see a little silhouetto of a man", index.getText(2));
+        assertNull(index.getText(3));
+        assertTrue(index.isIndexed(3, 10));
+        assertFalse(index.isIndexed(3, 11));
+        assertFalse(index.isIndexed(5, 10));
+    }
+
+    @Test
+    public void updateMatchesRebuild() {
+        String[] lyrics = makeLyrics(500, 1);
+        LyricsIndex.Builder builder = LyricsIndex.EMPTY.buildUpon();
+        for (int id = 0; id < lyrics.length; id++) {
+            builder.put(id, 0, lyrics[id]);
+        }
+        LyricsIndex index = builder.build();
+
+        // remove every 7th song, change every 5th one and add some
+        String[] changed = makeLyrics(lyrics.length + 100, 2);
+        LyricsIndex.Builder update = index.buildUpon();
+        LyricsIndex.Builder rebuild = LyricsIndex.EMPTY.buildUpon();
+        for (int id = 0; id < changed.length; id++) {
+            if (id % 7 == 0) {
+                update.remove(id);
+            } else if (id % 5 == 0 || id >= lyrics.length) {
+                update.put(id, 1, changed[id]);
+                rebuild.put(id, 1, changed[id]);
+            } else {
+                rebuild.put(id, 0, lyrics[id]);
+            }
+        }
+        LyricsIndex updated = update.build();
+        LyricsIndex rebuilt = rebuild.build();
+        assertArrayEquals(rebuilt.songIds, updated.songIds);
+        assertArrayEquals(rebuilt.tokens, updated.tokens);
+        for (int i = 0; i < rebuilt.tokens.length; i++) {
+            assertArrayEquals(rebuilt.tokens[i], LyricsIndex.decode(rebuilt.postings[i]), LyricsIndex.decode(updated.postings[i]));
+        }
+        for (String query : QUERIES) {
+            assertArrayEquals(query, rebuilt.search(query, 100), updated.search(query, 100));
+        }
+    }
+
+    @Test
+    public void postingsRoundTrip() {
+        int[] ids = {0, 1, 127, 128, 16384, 2097152, Integer.MAX_VALUE};
+        assertArrayEquals(ids, LyricsIndex.decode(LyricsIndex.encode(ids, ids.length)));
+    }
+
+    static String[] makeLyrics(int songCount, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[2000];
+        String[] common = {"love", "the", "night", "you", "and", "me", "dancing", "in", "dark", "baby", "oh", "heart"};
+        System.arraycopy(common, 0, words, 0, common.length);
+        for (int i = common.length; i < words.length; i++) {
+            char[] chars = new char[2 + random.nextInt(8)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(chars);
+        }
+        String[] lyrics = new String[songCount];
+        for (int song = 0; song < songCount; song++) {
+            if (random.nextInt(4) == 0) {
+                // many files have no embedded lyrics
+                lyrics[song] = null;
+                continue;
+            }
+            StringBuilder text = new StringBuilder();
+            // a chorus repeated a few times, like real lyrics
+            String[] chorus = new String[8];
+            for (int i = 0; i < chorus.length; i++) {
+                chorus[i] = words[(int) (Math.abs(random.nextGaussian()) * words.length / 6) % words.length];
+            }
+            for (int i = 0; i < WORDS_PER_SONG; i++) {
+                String word = (i / 40) % 2 == 1 ? chorus[i % chorus.length] : words[(int) (Math.abs(random.nextGaussian()) * words.length / 6) % words.length];
+                text.append(word).append(i % 8 == 7 ? '\n' : ' ');
+            }
+            lyrics[song] = text.toString();
+        }
+        return lyrics;
+    }
+}
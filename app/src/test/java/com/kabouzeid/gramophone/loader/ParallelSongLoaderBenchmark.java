@@ -0,0 +1,37 @@
+package com.kabouzeid.gramophone.loader;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link ParallelSongLoader#load(ParallelSongLoader.Source)} with the sequential path on synthetic
+ * libraries. Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*ParallelSongLoaderBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class ParallelSongLoaderBenchmark {
+    private static final int RUNS = 5;
+
+    @Test
+    public void benchmarkLoading() {
+        benchmark(10000);
+        benchmark(100000);
+        benchmark(500000);
+    }
+
+    private static void benchmark(int songCount) {
+        ParallelSongLoaderTest.FakeSource source = new ParallelSongLoaderTest.FakeSource(songCount);
+        long sequentialNanos = Long.MAX_VALUE;
+        long parallelNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            ParallelSongLoader.loadSequential(source);
+            long split = System.nanoTime();
+            ParallelSongLoader.load(source);
+            long end = System.nanoTime();
+            sequentialNanos = Math.min(sequentialNanos, split - start);
+            parallelNanos = Math.min(parallelNanos, end - split);
+        }
+        System.out.println(String.format("%7d songs: sequential %8.2f ms, parallel %8.2f ms on %d threads",
+                songCount, sequentialNanos / 1e6, parallelNanos / 1e6, ParallelSongLoader.EXECUTOR_THREADS));
+    }
+}
@@ -0,0 +1,347 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ParallelSongLoader#load(ParallelSongLoader.Source)} loads synthetic libraries like the
+ * sequential path.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class ParallelSongLoaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SONGS_PER_ALBUM = 12;
+    private static final int ALBUMS_PER_ARTIST = 3;
+
+    @Test
+    public void parallelLoadMatchesSequentialLoad() {
+        for (int songCount : new int[]{0, 1, 499, 2000, 3333}) {
+            FakeSource source = new FakeSource(songCount);
+            SongTable sequential = ParallelSongLoader.loadSequential(source);
+            for (int ranges = 1; ranges <= 8; ranges++) {
+                SongTable parallel = ParallelSongLoader.load(source, ranges);
+                assertEquals(songCount, parallel.size());
+                assertTrue(parallel.contentEquals(sequential));
+            }
+        }
+    }
+
+    @Test
+    public void unreadableSourceYieldsNull() {
+        FakeSource source = new FakeSource(1000);
+        source.readable = false;
+        assertNull(ParallelSongLoader.load(source));
+        assertNull(ParallelSongLoader.loadSequential(source));
+    }
+
+    /**
+     * Serves a synthetic library with gaps in the ids. The strings are kept as UTF-8 and decoded on every
+     * access, like a cursor window does.
+     */
+    static class FakeSource implements ParallelSongLoader.Source {
+        final int[] ids;
+        final long[] numbers;
+        final byte[][] strings;
+        boolean readable = true;
+
+        FakeSource(int songCount) {
+            int albumCount = Math.max(1, songCount / SONGS_PER_ALBUM);
+            int artistCount = Math.max(1, albumCount / ALBUMS_PER_ARTIST);
+            ids = new int[songCount];
+            numbers = new long[songCount * FakeCursor.COLUMN_COUNT];
+            strings = new byte[songCount * FakeCursor.COLUMN_COUNT][];
+            for (int i = 0; i < songCount; i++) {
+                int id = 3 * i + i % 2 + 1;
+                int albumId = i / SONGS_PER_ALBUM;
+                int artistId = albumId % artistCount;
+                ids[i] = id;
+                int offset = i * FakeCursor.COLUMN_COUNT;
+                numbers[offset] = id;
+                strings[offset + 1] = ("Title " + id).getBytes(UTF_8);
+                numbers[offset + 2] = i % SONGS_PER_ALBUM + 1;
+                numbers[offset + 3] = 1970 + albumId % 50;
+                numbers[offset + 4] = 180000 + i % 60000;
+                strings[offset + 5] = ("/storage/emulated/0/Music/Artist " + artistId + "/Album " + albumId + "/" + id + " Title " + id + ".mp3").getBytes(UTF_8);
+                numbers[offset + 6] = 1400000000L + i;
+                numbers[offset + 7] = albumId;
+                strings[offset + 8] = ("Album " + albumId).getBytes(UTF_8);
+                numbers[offset + 9] = artistId;
+                strings[offset + 10] = ("Artist " + artistId).getBytes(UTF_8);
+                numbers[offset + 11] = 1300000000L + i;
+            }
+        }
+
+        @Override
+        public Cursor querySongs(String selection, String[] selectionValues) {
+            if (!readable) return null;
+            // understands the id ranges of the parallel loader: "_id>=?", "_id<?" and both combined
+            int from = Integer.MIN_VALUE;
+            int to = Integer.MAX_VALUE;
+            int value = 0;
+            if (selection != null && selection.contains(">=?")) {
+                from = Integer.parseInt(selectionValues[value++]);
+            }
+            if (selection != null && selection.contains("<?")) {
+                to = Integer.parseInt(selectionValues[value]);
+            }
+            int start = lowerBound(from);
+            int end = to == Integer.MAX_VALUE ? ids.length : lowerBound(to);
+            return new FakeCursor(this, start, end, FakeCursor.COLUMN_COUNT);
+        }
+
+        @Override
+        public Cursor queryIds() {
+            if (!readable) return null;
+            return new FakeCursor(this, 0, ids.length, 1);
+        }
+
+        private int lowerBound(int id) {
+            int index = Arrays.binarySearch(ids, id);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    private static class FakeCursor implements Cursor {
+        static final int COLUMN_COUNT = 12;
+
+        private final FakeSource source;
+        private final int start;
+        private final int count;
+        private final int columnCount;
+        private int position = -1;
+        private boolean closed;
+
+        FakeCursor(FakeSource source, int start, int end, int columnCount) {
+            this.source = source;
+            this.start = start;
+            this.count = end - start;
+            this.columnCount = columnCount;
+        }
+
+        private int offset(int column) {
+            if (position < 0 || position >= count || column >= columnCount) {
+                throw new IllegalStateException("Position " + position + ", column " + column);
+            }
+            return (start + position) * COLUMN_COUNT + column;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(position + offset);
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            this.position = Math.max(-1, Math.min(count, position));
+            return this.position >= 0 && this.position < count;
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(count - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(position + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(position - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return count > 0 && position == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return count > 0 && position == count - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return count == 0 || position == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return count == 0 || position == count;
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            return -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            throw new IllegalArgumentException(columnName);
+        }
+
+        @Override
+        public String getColumnName(int columnIndex) {
+            return null;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return new String[columnCount];
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnCount;
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            byte[] string = source.strings[offset(columnIndex)];
+            return string == null ? null : string.clone();
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            int offset = offset(columnIndex);
+            byte[] string = source.strings[offset];
+            return string == null ? String.valueOf(source.numbers[offset]) : new String(string, UTF_8);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            String string = getString(columnIndex);
+            buffer.data = string.toCharArray();
+            buffer.sizeCopied = string.length();
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            return (short) getLong(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return (int) getLong(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return source.numbers[offset(columnIndex)];
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return getLong(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return getLong(columnIndex);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            return source.strings[offset(columnIndex)] == null ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return false;
+        }
+
+        @Override
+        public void deactivate() {
+        }
+
+        @Override
+        public boolean requery() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void registerContentObserver(ContentObserver observer) {
+        }
+
+        @Override
+        public void unregisterContentObserver(ContentObserver observer) {
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+        }
+
+        @Override
+        public void setNotificationUri(ContentResolver cr, Uri uri) {
+        }
+
+        @Override
+        public Uri getNotificationUri() {
+            return null;
+        }
+
+        @Override
+        public boolean getWantsAllOnMoveCalls() {
+            return false;
+        }
+
+        @Override
+        public void setExtras(Bundle extras) {
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return Bundle.EMPTY;
+        }
+
+        @Override
+        public Bundle respond(Bundle extras) {
+            return Bundle.EMPTY;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.kabouzeid.gramophone.loader;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures {@link SearchIndex} and a linear scan on synthetic libraries.
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*SearchIndexBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SearchIndexBenchmark {
+    private static final int RUNS = 5;
+    // typos of words of the synthetic libraries
+    private static final String[] TYPOS = {"lvoe", "nihgt", "dejá", "lvoe yuo", "teh nihgt"};
+
+    @Test
+    public void benchmarkSearch() {
+        benchmark(10000);
+        benchmark(100000);
+    }
+
+    private static void benchmark(int songCount) {
+        SongTable songs = SearchIndexTest.makeLibrary(songCount, songCount);
+        long start = System.nanoTime();
+        SearchIndex index = SearchIndex.build(songs);
+        long buildNanos = System.nanoTime() - start;
+
+        long indexNanos = Long.MAX_VALUE;
+        long scanNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            start = System.nanoTime();
+            for (String query : SearchIndexTest.QUERIES) {
+                index.search(query);
+            }
+            long split = System.nanoTime();
+            for (String query : SearchIndexTest.QUERIES) {
+                likeScan(songs, query);
+            }
+            long end = System.nanoTime();
+            indexNanos = Math.min(indexNanos, split - start);
+            scanNanos = Math.min(scanNanos, end - split);
+        }
+        long typoNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            start = System.nanoTime();
+            for (String query : TYPOS) {
+                index.search(query);
+            }
+            typoNanos = Math.min(typoNanos, System.nanoTime() - start);
+        }
+
+        PlayStatistics statistics = SearchIndexTest.makeStatistics(songs, new Random(songCount));
+        long sortNanos = Long.MAX_VALUE;
+        long topNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            SearchIndex.Matches[] matches = new SearchIndex.Matches[SearchIndexTest.QUERIES.length];
+            for (int i = 0; i < SearchIndexTest.QUERIES.length; i++) {
+                matches[i] = index.match(SearchIndexTest.QUERIES[i], null);
+            }
+            start = System.nanoTime();
+            for (SearchIndex.Matches match : matches) {
+                index.rankSongs(match, statistics, Integer.MAX_VALUE);
+            }
+            long split = System.nanoTime();
+            for (SearchIndex.Matches match : matches) {
+                index.rankSongs(match, statistics, 200);
+            }
+            long end = System.nanoTime();
+            sortNanos = Math.min(sortNanos, split - start);
+            topNanos = Math.min(topNanos, end - split);
+        }
+
+        long fullNanos = Long.MAX_VALUE;
+        long narrowingNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            start = System.nanoTime();
+            for (String query : SearchIndexTest.TYPED) {
+                index.rank(index.match(query, null));
+            }
+            long split = System.nanoTime();
+            SearchIndex.Matches previous = null;
+            for (String query : SearchIndexTest.TYPED) {
+                previous = index.match(query, previous);
+                index.rank(previous);
+            }
+            long end = System.nanoTime();
+            fullNanos = Math.min(fullNanos, split - start);
+            narrowingNanos = Math.min(narrowingNanos, end - split);
+        }
+
+        System.out.println(String.format("%7d songs: build %7.2f ms, %d tokens, index %7.3f ms/query, LIKE scan %7.3f ms/query",
+                songCount, buildNanos / 1e6, index.getTokenCount(), indexNanos / 1e6 / SearchIndexTest.QUERIES.length, scanNanos / 1e6 / SearchIndexTest.QUERIES.length));
+        System.out.println(String.format("%7d songs: typos %7.3f ms/query", songCount, typoNanos / 1e6 / TYPOS.length));
+        System.out.println(String.format("%7d songs: ranking songs, all %7.3f ms/query, top 200 %7.3f ms/query",
+                songCount, sortNanos / 1e6 / SearchIndexTest.QUERIES.length, topNanos / 1e6 / SearchIndexTest.QUERIES.length));
+        System.out.println(String.format("%7d songs: typing, full search %7.3f ms/keystroke, narrowing %7.3f ms/keystroke",
+                songCount, fullNanos / 1e6 / SearchIndexTest.TYPED.length, narrowingNanos / 1e6 / SearchIndexTest.TYPED.length));
+    }
+
+    /**
+     * What the three LIKE '%query%' queries did, without the MediaStore round trip.
+     */
+    private static int likeScan(SongTable songs, String query) {
+        String lowerCase = query.toLowerCase(Locale.ROOT);
+        int matches = 0;
+        for (int row = 0; row < songs.size(); row++) {
+            if (contains(songs.getTitle(row), lowerCase)) matches++;
+            if (contains(songs.getAlbumName(row), lowerCase)) matches++;
+            if (contains(songs.getArtistName(row), lowerCase)) matches++;
+        }
+        return matches;
+    }
+
+    private static boolean contains(String string, String lowerCaseQuery) {
+        return string != null && string.toLowerCase(Locale.ROOT).contains(lowerCaseQuery);
+    }
+}
@@ -0,0 +1,355 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.misc.BoundedLongHeap;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link SearchIndex} against a linear scan on synthetic libraries.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SearchIndexTest {
+    private static final int SONGS_PER_ALBUM = 12;
+    private static final int ALBUMS_PER_ARTIST = 3;
+    static final String[] QUERIES = {"a", "lo", "love", "love you", "the ni", "Déjà", "zzz", "night 7", "ro-ma"};
+    // typed character by character, including a correction
+    static final String[] TYPED = {"l", "lo", "lov", "love", "love ", "love y", "love yo", "love you", "love yo", "love y", "love t", "love th", "love the"};
+
+    static SongTable makeLibrary(int songCount, long seed) {
+        Random random = new Random(seed);
+        String[] words = makeWords(random, 3000);
+        int albumCount = Math.max(1, songCount / SONGS_PER_ALBUM);
+        int artistCount = Math.max(1, albumCount / ALBUMS_PER_ARTIST);
+        SongTable.Builder builder = new SongTable.Builder(songCount);
+        for (int i = 0; i < songCount; i++) {
+            int albumId = random.nextInt(albumCount);
+            int artistId = albumId % artistCount;
+            builder.add(new Song(i, makeName(random, words, 1 + random.nextInt(5)), i % SONGS_PER_ALBUM + 1, 1970 + albumId % 50, 180000,
+                    "/sdcard/Music/" + artistId + "/" + albumId + "/" + i + ".mp3", 1400000000L + i,
+                    albumId, makeName(new Random(albumId), words, 1 + albumId % 3), artistId, makeName(new Random(-artistId - 1), words, 1 + artistId % 2)), i);
+        }
+        return builder.build();
+    }
+
+    private static String[] makeWords(Random random, int count) {
+        String[] words = new String[count];
+        words[0] = "love";
+        words[1] = "you";
+        words[2] = "the";
+        words[3] = "night";
+        words[4] = "Déjà";
+        words[5] = "Roma";
+        for (int i = 6; i < count; i++) {
+            char[] chars = new char[2 + random.nextInt(8)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(chars);
+        }
+        return words;
+    }
+
+    private static String makeName(Random random, String[] words, int wordCount) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) name.append(random.nextInt(4) == 0 ? " - " : " ");
+            // skewed towards the first words, like real titles
+            name.append(words[(int) (Math.abs(random.nextGaussian()) * words.length / 4) % words.length]);
+        }
+        if (random.nextInt(10) == 0) name.append(" (").append(random.nextInt(10)).append(")");
+        return name.toString();
+    }
+
+    @Test
+    public void searchMatchesLinearScan() {
+        SongTable songs = makeLibrary(2000, 1);
+        SearchIndex index = SearchIndex.build(songs);
+        for (String query : QUERIES) {
+            SearchIndex.Result result = index.search(query);
+            assertMatches(songs, songs.titles, query, result.titles);
+            assertMatches(songs, songs.albumNames, query, result.albumNames);
+            assertMatches(songs, songs.artistNames, query, result.artistNames);
+        }
+        assertEquals(0, index.search(" ,. ").titles.length);
+    }
+
+    @Test
+    public void exactMatchesComeFirst() {
+        SongTable songs = new SongTable.Builder(4)
+                .add(new Song(1, "Love Me Do", 1, 0, 0, "/a", 0, 1, "A", 1, "X"), 0)
+                .add(new Song(2, "Glove", 1, 0, 0, "/b", 0, 1, "A", 1, "X"), 0)
+                .add(new Song(3, "Crazy Love", 1, 0, 0, "/c", 0, 1, "A", 1, "X"), 0)
+                .add(new Song(4, "Love", 1, 0, 0, "/d", 0, 1, "A", 1, "X"), 0)
+                .build();
+        SearchIndex index = SearchIndex.build(songs);
+        int[] titles = index.search("love").titles;
+        assertEquals(3, titles.length);
+        assertEquals("Love", songs.strings[titles[0]]);
+        assertEquals("Love Me Do", songs.strings[titles[1]]);
+        assertEquals("Crazy Love", songs.strings[titles[2]]);
+    }
+
+    @Test
+    public void playStatisticsOrderEquallyGoodMatches() {
+        SongTable songs = new SongTable.Builder(6)
+                .add(new Song(1, "Love Me Do", 1, 0, 0, "/a", 0, 1, "Love A", 1, "X"), 0)
+                .add(new Song(2, "Love Song", 1, 0, 0, "/b", 0, 2, "Love B", 2, "Y"), 0)
+                .add(new Song(3, "Crazy Love", 1, 0, 0, "/c", 0, 1, "Love A", 1, "X"), 0)
+                .add(new Song(4, "Love", 1, 0, 0, "/d", 0, 2, "Love B", 2, "Y"), 0)
+                .add(new Song(5, "Love", 1, 0, 0, "/e", 0, 3, "Love Hits", 3, "Z"), 0)
+                .add(new Song(6, "Lovely", 1, 0, 0, "/f", 0, 3, "Love Hits", 3, "Z"), 0)
+                .build();
+        SearchIndex index = SearchIndex.build(songs);
+        SearchIndex.Matches matches = index.match("love", null);
+
+        assertArrayEquals(new int[]{4, 5, 6, 2, 1, 3}, songIds(songs, index.rankSongs(matches, PlayStatistics.EMPTY, 10)));
+        // the played songs come first among equally good matches, but never before a better match
+        PlayStatistics statistics = PlayStatistics.create(new int[]{5, 2, 3}, new float[]{0.2f, 0.5f, 0.9f});
+        assertArrayEquals(new int[]{5, 4, 2, 6, 1, 3}, songIds(songs, index.rankSongs(matches, statistics, 10)));
+        assertArrayEquals(new int[]{5, 4, 2}, songIds(songs, index.rankSongs(matches, statistics, 3)));
+        // an album is boosted by its most played song
+        assertFirst(songs, "Love A", index.rank(matches, SearchIndex.FIELD_ALBUM, PlayStatistics.EMPTY, 10));
+        assertFirst(songs, "Love B", index.rank(matches, SearchIndex.FIELD_ALBUM, PlayStatistics.create(new int[]{4}, new float[]{0.1f}), 10));
+        assertEquals(1, index.rank(matches, SearchIndex.FIELD_ALBUM, statistics, 1).length);
+    }
+
+    @Test
+    public void topKMatchesFullRanking() {
+        Random random = new Random(5);
+        for (int run = 0; run < 100; run++) {
+            long[] values = new long[random.nextInt(500)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt(100) == 0 ? Long.MAX_VALUE : random.nextLong() >>> 1;
+            }
+            int k = random.nextInt(50);
+            BoundedLongHeap heap = new BoundedLongHeap(k);
+            for (long value : values) {
+                heap.offer(value);
+            }
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(Arrays.copyOf(sorted, Math.min(k, sorted.length)), heap.toSortedArray());
+        }
+
+        SongTable songs = makeLibrary(3000, 5);
+        SearchIndex index = SearchIndex.build(songs);
+        PlayStatistics statistics = makeStatistics(songs, random);
+        for (String query : QUERIES) {
+            SearchIndex.Matches matches = index.match(query, null);
+            int[] all = index.rankSongs(matches, statistics, Integer.MAX_VALUE);
+            assertArrayEquals(query, Arrays.copyOf(all, Math.min(20, all.length)), index.rankSongs(matches, statistics, 20));
+            int[] allArtists = index.rank(matches, SearchIndex.FIELD_ARTIST, statistics, Integer.MAX_VALUE);
+            assertMatches(songs, songs.artistNames, query, allArtists);
+            assertArrayEquals(query, Arrays.copyOf(allArtists, Math.min(20, allArtists.length)), index.rank(matches, SearchIndex.FIELD_ARTIST, statistics, 20));
+        }
+    }
+
+    @Test
+    public void ignoresCaseDiacriticsAndPunctuation() {
+        SongTable songs = new SongTable.Builder(6)
+                .add(new Song(1, "Halo", 1, 0, 0, "/a", 0, 1, "I Am... Sasha Fierce", 1, "Beyoncé"), 0)
+                .add(new Song(2, "Thunderstruck", 1, 0, 0, "/b", 0, 2, "The Razors Edge", 2, "AC/DC"), 0)
+                .add(new Song(3, "Ace of Spades", 1, 0, 0, "/c", 0, 3, "Ace of Spades", 3, "Motörhead"), 0)
+                .add(new Song(4, "Don't Stop Me Now", 1, 0, 0, "/d", 0, 4, "Jazz", 4, "Queen"), 0)
+                .add(new Song(5, "Hoppípolla", 1, 0, 0, "/e", 0, 5, "Takk...", 5, "Sigur Rós"), 0)
+                .add(new Song(6, "Große Freiheit", 1, 0, 0, "/f", 0, 6, "Ｆｕｌｌ Width", 6, "Straßenjungs"), 0)
+                .build();
+        SearchIndex index = SearchIndex.build(songs);
+        assertFirst(songs, "Beyoncé", index.search("beyonce").artistNames);
+        assertFirst(songs, "Beyoncé", index.search("BEYONCÉ").artistNames);
+        assertFirst(songs, "AC/DC", index.search("acdc").artistNames);
+        assertFirst(songs, "AC/DC", index.search("ac dc").artistNames);
+        assertFirst(songs, "AC/DC", index.search("AC-DC").artistNames);
+        assertFirst(songs, "Motörhead", index.search("motorhead").artistNames);
+        assertFirst(songs, "Don't Stop Me Now", index.search("dont stop").titles);
+        assertFirst(songs, "Hoppípolla", index.search("hoppipolla").titles);
+        assertFirst(songs, "Sigur Rós", index.search("sigur ros").artistNames);
+        assertFirst(songs, "Große Freiheit", index.search("grosse").titles);
+        assertFirst(songs, "Straßenjungs", index.search("strassen").artistNames);
+        assertFirst(songs, "Ｆｕｌｌ Width", index.search("full width").albumNames);
+
+        assertEquals(1, index.findEqual(SearchIndex.FIELD_ARTIST, "beyonce").length);
+        assertEquals(1, index.findEqual(SearchIndex.FIELD_ARTIST, "Ac/Dc").length);
+        assertEquals(0, index.findEqual(SearchIndex.FIELD_ARTIST, "beyon").length);
+        assertEquals(0, index.findEqual(SearchIndex.FIELD_TITLE, "beyonce").length);
+        assertEquals("i am sasha fierce", SearchIndex.normalize("I Am... Sasha Fierce"));
+    }
+
+    @Test
+    public void toleratesTypos() {
+        SongTable songs = new SongTable.Builder(3)
+                .add(new Song(1, "Halo", 1, 0, 0, "/a", 0, 1, "I Am... Sasha Fierce", 1, "Beyoncé"), 0)
+                .add(new Song(2, "Bohemian Rhapsody", 1, 0, 0, "/b", 0, 2, "A Night at the Opera", 2, "Queen"), 0)
+                .add(new Song(3, "Love Me Do", 1, 0, 0, "/c", 0, 3, "Please Please Me", 3, "The Beatles"), 0)
+                .build();
+        SearchIndex index = SearchIndex.build(songs);
+        assertFirst(songs, "Beyoncé", index.search("beyonse").artistNames);
+        assertFirst(songs, "Beyoncé", index.search("beynoce").artistNames);
+        assertFirst(songs, "Bohemian Rhapsody", index.search("bohemain rapsody").titles);
+        assertFirst(songs, "Love Me Do", index.search("lvoe me").titles);
+        assertFirst(songs, "The Beatles", index.search("beatels").artistNames);
+        // too short to guess
+        assertEquals(0, index.search("lvo").titles.length);
+        assertEquals(0, index.search("xyzzy").titles.length);
+
+        // narrowing must not keep the fuzzy matches of a prefix
+        SearchIndex.Matches previous = null;
+        for (String query : new String[]{"b", "be", "bea", "beat", "beate", "beatel", "beatels"}) {
+            previous = index.match(query, previous);
+            assertArrayEquals(query, index.search(query).artistNames, index.rank(previous).artistNames);
+        }
+
+        assertEquals(0, SearchIndex.prefixDistance("love", "lovely", 1));
+        assertEquals(1, SearchIndex.prefixDistance("lvoe", "love", 1));
+        assertEquals(1, SearchIndex.prefixDistance("beyonse", "beyonce", 1));
+        assertEquals(1, SearchIndex.prefixDistance("bohemain", "bohemian", 2));
+        assertEquals(2, SearchIndex.prefixDistance("bohmain", "bohemian", 2));
+        assertTrue(SearchIndex.prefixDistance("halo", "beyonce", 1) > 1);
+    }
+
+    @Test
+    public void updateMatchesRebuild() {
+        SongTable songs = makeLibrary(2000, 2);
+        SearchIndex index = SearchIndex.build(songs);
+
+        // like a sync: keep most rows, drop some and add new ones on top of the same string pool
+        SongTable newSongs = makeLibrary(2400, 3);
+        SongTable.Builder builder = new SongTable.Builder(songs, 2400);
+        for (int row = 0; row < songs.size(); row++) {
+            if (row % 7 != 0) builder.add(songs, row);
+        }
+        for (int row = 0; row < newSongs.size(); row++) {
+            Song song = newSongs.getSong(row);
+            builder.add(new Song(song.id + 10000, song.title, song.trackNumber, song.year, song.duration, song.data, song.dateModified,
+                    song.albumId, song.albumName, song.artistId, song.artistName), 0);
+        }
+        SongTable synced = builder.build();
+
+        SearchIndex updated = index.update(synced);
+        SearchIndex rebuilt = SearchIndex.build(synced);
+        // the updated index still knows the tokens of the dropped songs, but must not return them
+        for (String query : QUERIES) {
+            SearchIndex.Result expected = rebuilt.search(query);
+            SearchIndex.Result actual = updated.search(query);
+            assertArrayEquals(query, expected.titles, actual.titles);
+            assertArrayEquals(query, expected.albumNames, actual.albumNames);
+            assertArrayEquals(query, expected.artistNames, actual.artistNames);
+        }
+    }
+
+    @Test
+    public void narrowingMatchesFullSearch() {
+        SongTable songs = makeLibrary(3000, 4);
+        SearchIndex index = SearchIndex.build(songs);
+        SearchIndex.Matches previous = null;
+        for (String query : TYPED) {
+            previous = index.match(query, previous);
+            SearchIndex.Result expected = index.search(query);
+            SearchIndex.Result actual = index.rank(previous);
+            assertArrayEquals(query, expected.titles, actual.titles);
+            assertArrayEquals(query, expected.albumNames, actual.albumNames);
+            assertArrayEquals(query, expected.artistNames, actual.artistNames);
+        }
+    }
+
+    /**
+     * Boosts about one in fifty songs, like the play history of a large library.
+     */
+    static PlayStatistics makeStatistics(SongTable songs, Random random) {
+        int count = songs.size() / 50;
+        int[] songIds = new int[count];
+        float[] boosts = new float[count];
+        for (int i = 0; i < count; i++) {
+            songIds[i] = songs.ids[random.nextInt(songs.size())];
+            boosts[i] = random.nextFloat() * 0.95f;
+        }
+        // drop duplicates
+        int[] unique = new int[count];
+        int uniqueCount = 0;
+        float[] uniqueBoosts = new float[count];
+        for (int i = 0; i < count; i++) {
+            boolean duplicate = false;
+            for (int j = 0; j < uniqueCount && !duplicate; j++) {
+                duplicate = unique[j] == songIds[i];
+            }
+            if (!duplicate) {
+                unique[uniqueCount] = songIds[i];
+                uniqueBoosts[uniqueCount++] = boosts[i];
+            }
+        }
+        return PlayStatistics.create(Arrays.copyOf(unique, uniqueCount), Arrays.copyOf(uniqueBoosts, uniqueCount));
+    }
+
+    private static int[] songIds(SongTable songs, int[] rows) {
+        int[] ids = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            ids[i] = songs.ids[rows[i]];
+        }
+        return ids;
+    }
+
+    private static void assertFirst(SongTable songs, String expected, int[] result) {
+        assertTrue(expected, result.length > 0);
+        assertEquals(expected, songs.strings[result[0]]);
+    }
+
+    private static void assertMatches(SongTable songs, int[] column, String query, int[] result) {
+        ArrayList<String> queryTokens = SearchIndex.tokenize(query);
+        boolean[] used = new boolean[songs.strings.length];
+        for (int row = 0; row < songs.size(); row++) {
+            if (column[row] != SongTable.NULL_STRING) used[column[row]] = true;
+        }
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int string = 0; string < used.length; string++) {
+            if (used[string] && matches(indexTokens(songs.strings[string]), queryTokens)) {
+                expected.add(string);
+            }
+        }
+        int[] sortedResult = result.clone();
+        Arrays.sort(sortedResult);
+        assertEquals(query, expected.size(), sortedResult.length);
+        for (int i = 0; i < sortedResult.length; i++) {
+            assertEquals(query, (int) expected.get(i), sortedResult[i]);
+        }
+    }
+
+    /**
+     * The tokens of the string plus its words joined without punctuation, e.g. "ac", "dc" and "acdc" for "AC/DC".
+     */
+    private static ArrayList<String> indexTokens(String string) {
+        ArrayList<String> tokens = SearchIndex.tokenize(string);
+        for (String word : string.split("\\s+")) {
+            StringBuilder joined = new StringBuilder();
+            for (String token : SearchIndex.tokenize(word)) {
+                joined.append(token);
+            }
+            tokens.add(joined.toString());
+        }
+        return tokens;
+    }
+
+    private static boolean matches(ArrayList<String> tokens, ArrayList<String> queryTokens) {
+        if (queryTokens.isEmpty()) return false;
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.misc.LazyPermutation;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the memory of a large playing queue and the cost of editing and shuffling it, as a {@link SongIdList}
+ * and as an {@link ArrayList}.
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*SongIdListBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SongIdListBenchmark {
+    private static final int QUEUE_SIZE = 80000;
+
+    @Test
+    public void benchmarkShuffleToggle() {
+        SongCache cache = new SongCache(new SongIdListTest.CountingSource(SongTable.EMPTY), 16);
+        int[] ids = SongIdListTest.identity(QUEUE_SIZE);
+        SongIdList originalQueue = new SongIdList(cache);
+        originalQueue.addIds(0, ids);
+        final int toggles = 100;
+
+        // before: shuffle a copy of the whole queue, and find the current song in the original queue when unshuffling
+        long eagerNanos = Long.MAX_VALUE;
+        long lazyNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            SongIdList queue = new SongIdList(originalQueue);
+            int position = 1234;
+            long start = System.nanoTime();
+            for (int i = 0; i < toggles; i++) {
+                int[] shuffled = queue.toIdArray();
+                LazyPermutation.shuffle(shuffled, position, i);
+                queue.clear();
+                queue.addIds(0, shuffled);
+                // a few songs get played
+                position = 10;
+                int currentSongId = queue.getId(position);
+                queue = new SongIdList(originalQueue);
+                position = queue.indexOfId(currentSongId);
+            }
+            eagerNanos = Math.min(eagerNanos, (System.nanoTime() - start) / toggles);
+
+            queue = new SongIdList(originalQueue);
+            position = 1234;
+            start = System.nanoTime();
+            for (int i = 0; i < toggles; i++) {
+                queue.shuffle(position, i);
+                position = 10;
+                for (int j = 0; j <= position + 1; j++) {
+                    queue.getId(j);
+                }
+                position = queue.unshuffle(position);
+            }
+            lazyNanos = Math.min(lazyNanos, (System.nanoTime() - start) / toggles);
+            assertArrayEquals(ids, queue.toIdArray());
+        }
+        System.out.println(String.format("%d songs, toggle shuffle on and off: eager %6.3f ms, lazy %6.4f ms",
+                QUEUE_SIZE, eagerNanos / 1e6, lazyNanos / 1e6));
+    }
+
+    @Test
+    public void benchmarkMemory() {
+        SongTable songs = SearchIndexTest.makeLibrary(QUEUE_SIZE, 3);
+        SongCache cache = new SongCache(new SongIdListTest.CountingSource(songs), SongCache.DEFAULT_CAPACITY);
+
+        // "play all": the songs are materialized for the queue and kept alive by it
+        long before = usedMemory();
+        ArrayList<Song> queue = new ArrayList<>(songs.size());
+        for (int row = 0; row < songs.size(); row++) {
+            queue.add(songs.getSong(row));
+        }
+        ArrayList<Song> originalQueue = new ArrayList<>(queue);
+        long arrayListBytes = usedMemory() - before;
+
+        before = usedMemory();
+        SongIdList idQueue = new SongIdList(cache, new PagedSongList(songs, SongIdListTest.identity(songs.size()), PagedSongList.DEFAULT_PAGE_BUDGET));
+        SongIdList originalIdQueue = new SongIdList(idQueue);
+        for (int i = 0; i < 20; i++) {
+            // the current song and the visible ones
+            idQueue.get(i);
+        }
+        long idListBytes = usedMemory() - before;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            SongIdList shuffled = new SongIdList(idQueue);
+            shuffled.shuffle(i, i);
+            // the whole order, like the eager shuffle
+            shuffled.toIdArray();
+        }
+        long idShuffleNanos = (System.nanoTime() - start) / 100;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            ArrayList<Song> shuffled = new ArrayList<>(queue);
+            Collections.shuffle(shuffled, new Random(i));
+        }
+        long arrayListShuffleNanos = (System.nanoTime() - start) / 100;
+
+        System.out.println(String.format("%d songs, both queues: ArrayList %6.2f MB, ids %6.2f MB; copy and shuffle: ArrayList %6.2f ms, ids %6.2f ms",
+                QUEUE_SIZE, arrayListBytes / 1e6, idListBytes / 1e6, arrayListShuffleNanos / 1e6, idShuffleNanos / 1e6));
+        // keeps the measured lists reachable
+        assertEquals(queue.size() + originalQueue.size(), idQueue.size() + originalIdQueue.size());
+    }
+
+    @Test
+    public void benchmarkQueueEdits() {
+        SongTable songs = SearchIndexTest.makeLibrary(QUEUE_SIZE, 4);
+        SongCache cache = new SongCache(new SongIdListTest.CountingSource(songs), SongCache.DEFAULT_CAPACITY);
+        ArrayList<Song> songList = new ArrayList<>(songs.size());
+        for (int row = 0; row < songs.size(); row++) {
+            songList.add(songs.getSong(row));
+        }
+        final int edits = 2000;
+
+        long arrayListNanos = Long.MAX_VALUE;
+        long idListNanos = Long.MAX_VALUE;
+        long arrayListRemoveNanos = Long.MAX_VALUE;
+        long idListRemoveNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            // what the queue screen does: play next, drag and drop, swipe away, and "remove from queue" by song
+            ArrayList<Song> queue = new ArrayList<>(songList);
+            Random random = new Random(run);
+            long start = System.nanoTime();
+            for (int i = 0; i < edits; i++) {
+                queue.add(random.nextInt(queue.size()), songList.get(random.nextInt(songList.size())));
+                int from = random.nextInt(queue.size());
+                queue.add(random.nextInt(queue.size()), queue.remove(from));
+                queue.remove(random.nextInt(queue.size()));
+                int position = queue.indexOf(songList.get(random.nextInt(songList.size())));
+                if (position >= 0) queue.remove(position);
+            }
+            arrayListNanos = Math.min(arrayListNanos, System.nanoTime() - start);
+
+            SongIdList idQueue = new SongIdList(cache, songList);
+            random = new Random(run);
+            start = System.nanoTime();
+            for (int i = 0; i < edits; i++) {
+                idQueue.add(random.nextInt(idQueue.size()), songList.get(random.nextInt(songList.size())));
+                int from = random.nextInt(idQueue.size());
+                idQueue.move(from, random.nextInt(idQueue.size()));
+                idQueue.removeId(random.nextInt(idQueue.size()));
+                int position = idQueue.indexOfId(songList.get(random.nextInt(songList.size())).id);
+                if (position >= 0) idQueue.removeId(position);
+            }
+            idListNanos = Math.min(idListNanos, System.nanoTime() - start);
+            assertEquals(queue.size(), idQueue.size());
+
+            // deleting a thousand songs from the device
+            IntIntHashMap deletedIds = new IntIntHashMap();
+            for (int i = 0; i < 1000; i++) {
+                deletedIds.put(songList.get(random.nextInt(songList.size())).id, 0);
+            }
+            start = System.nanoTime();
+            for (int i = queue.size() - 1; i >= 0; i--) {
+                if (deletedIds.containsKey(queue.get(i).id)) queue.remove(i);
+            }
+            arrayListRemoveNanos = Math.min(arrayListRemoveNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            idQueue.removeAllIds(deletedIds, 0);
+            idListRemoveNanos = Math.min(idListRemoveNanos, System.nanoTime() - start);
+            assertEquals(queue.size(), idQueue.size());
+        }
+        System.out.println(String.format("%d songs, %d x (insert, move, remove, remove by id): ArrayList %7.2f ms, ids %6.2f ms; remove 1000 songs: ArrayList %6.2f ms, ids %6.2f ms",
+                QUEUE_SIZE, edits, arrayListNanos / 1e6, idListNanos / 1e6, arrayListRemoveNanos / 1e6, idListRemoveNanos / 1e6));
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,314 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.misc.LazyPermutation;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link SongIdList} against an {@link ArrayList}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class SongIdListTest {
+    private static final int QUEUE_SIZE = 5000;
+
+    /**
+     * Materializes songs from a table like the library does and counts how often it is asked.
+     */
+    static class CountingSource implements SongCache.Source {
+        final SongTable songs;
+        int lookups;
+
+        CountingSource(SongTable songs) {
+            this.songs = songs;
+        }
+
+        @Override
+        public Song getSong(int songId) {
+            lookups++;
+            int row = songs.indexOfId(songId);
+            return row < 0 ? null : songs.getSong(row);
+        }
+    }
+
+    @Test
+    public void mutationsMatchArrayList() {
+        SongTable songs = SearchIndexTest.makeLibrary(1000, 1);
+        SongCache cache = new SongCache(new CountingSource(songs), 64);
+        Random random = new Random(1);
+        SongIdList list = new SongIdList(cache);
+        ArrayList<Song> expected = new ArrayList<>();
+        for (int step = 0; step < 5000; step++) {
+            Song song = songs.getSong(random.nextInt(songs.size()));
+            switch (random.nextInt(8)) {
+                case 0:
+                    list.add(song);
+                    expected.add(song);
+                    break;
+                case 1:
+                    int index = random.nextInt(expected.size() + 1);
+                    list.add(index, song);
+                    expected.add(index, song);
+                    break;
+                case 2:
+                    List<Song> added = Arrays.asList(song, songs.getSong(random.nextInt(songs.size())));
+                    int at = random.nextInt(expected.size() + 1);
+                    list.addAll(at, added);
+                    expected.addAll(at, added);
+                    break;
+                case 3:
+                    if (!expected.isEmpty()) {
+                        int removed = random.nextInt(expected.size());
+                        assertEquals(expected.remove(removed).id, list.removeId(removed));
+                    }
+                    break;
+                case 4:
+                    if (!expected.isEmpty()) {
+                        int moved = random.nextInt(expected.size());
+                        int to = random.nextInt(expected.size());
+                        list.move(moved, to);
+                        expected.add(to, expected.remove(moved));
+                    }
+                    break;
+                case 5:
+                    assertEquals(expected.indexOf(song), list.indexOf(song));
+                    assertEquals(expected.lastIndexOf(song), list.lastIndexOf(song));
+                    assertEquals(Collections.frequency(expected, song), list.countOfId(song.id));
+                    break;
+                case 6:
+                    if (!expected.isEmpty() && random.nextInt(10) == 0) {
+                        int position = random.nextInt(expected.size());
+                        IntIntHashMap removedIds = new IntIntHashMap();
+                        for (int i = 0; i < 3; i++) {
+                            removedIds.put(expected.get(random.nextInt(expected.size())).id, 0);
+                        }
+                        int newPosition = 0;
+                        for (int i = 0; i < position; i++) {
+                            if (!removedIds.containsKey(expected.get(i).id)) newPosition++;
+                        }
+                        for (int i = expected.size() - 1; i >= 0; i--) {
+                            if (removedIds.containsKey(expected.get(i).id)) expected.remove(i);
+                        }
+                        assertEquals(newPosition, list.removeAllIds(removedIds, position));
+                    }
+                    break;
+                case 7:
+                    if (!expected.isEmpty()) {
+                        int changed = random.nextInt(expected.size());
+                        assertEquals(expected.set(changed, song), list.set(changed, song));
+                    }
+                    break;
+            }
+            assertEquals(expected.size(), list.size());
+        }
+        assertEquals(expected, list);
+        assertEquals(expected, new SongIdList(list));
+        assertEquals(expected, new SongIdList(cache, expected));
+        list.addAll(0, list);
+        expected.addAll(0, new ArrayList<>(expected));
+        assertEquals(expected, list);
+        assertTrue(cache.size() <= 64);
+    }
+
+    @Test
+    public void idOperationsDontMaterializeSongs() {
+        SongTable songs = SearchIndexTest.makeLibrary(QUEUE_SIZE, 2);
+        CountingSource source = new CountingSource(songs);
+        SongCache cache = new SongCache(source, SongCache.DEFAULT_CAPACITY);
+        SongIdList queue = new SongIdList(cache, new PagedSongList(songs, identity(songs.size()), PagedSongList.DEFAULT_PAGE_BUDGET));
+        SongIdList copy = new SongIdList(queue);
+        copy.shuffle(500, 2);
+        assertEquals(songs.ids[500], copy.getId(0));
+        int[] sortedIds = copy.toIdArray();
+        Arrays.sort(sortedIds);
+        assertArrayEquals(queue.toIdArray(), sortedIds);
+        assertEquals(QUEUE_SIZE - 1, queue.indexOfId(songs.ids[QUEUE_SIZE - 1]));
+        queue.removeId(7);
+        assertEquals(0, source.lookups);
+
+        // the songs around the current one are materialized once, then come from the cache
+        for (int run = 0; run < 3; run++) {
+            for (int i = 1000; i < 1010; i++) {
+                assertEquals(songs.ids[i + 1], queue.get(i).id);
+            }
+        }
+        assertEquals(10, source.lookups);
+
+        // a song that left the library keeps its id
+        SongIdList missing = new SongIdList(new SongCache(new CountingSource(SongTable.EMPTY), 4));
+        missing.addAll(Arrays.asList(songs.getSong(0), songs.getSong(1)));
+        assertEquals(songs.ids[1], missing.get(1).id);
+
+        // a song that isn't loaded yet is not cached, it is found once the library is loaded
+        CountingSource loading = new CountingSource(SongTable.EMPTY);
+        SongCache loadingCache = new SongCache(loading, 4);
+        assertEquals("", loadingCache.get(songs.ids[0]).title);
+        assertEquals(0, loadingCache.size());
+        SongCache loadedCache = new SongCache(new CountingSource(songs), 4);
+        assertEquals(songs.getSong(0).title, loadedCache.get(songs.ids[0]).title);
+        assertEquals(1, loadedCache.size());
+    }
+
+    @Test
+    public void addedSongsAreShownBeforeTheLibraryIsLoaded() {
+        SongTable songs = SearchIndexTest.makeLibrary(1000, 3);
+        ArrayList<Song> opened = new ArrayList<>();
+        for (int i = 0; i < songs.size(); i++) {
+            opened.add(songs.getSong(i));
+        }
+        CountingSource loading = new CountingSource(SongTable.EMPTY);
+        SongCache cache = new SongCache(loading, 16);
+        SongIdList queue = new SongIdList(cache, opened);
+        // the first songs to play are kept, at most half the cache
+        assertEquals(songs.getSong(0).title, queue.get(0).title);
+        assertEquals(songs.getSong(7).data, queue.get(7).data);
+        assertEquals(8, cache.size());
+
+        // like opening the queue at a song in the middle
+        cache.putAround(opened, 500);
+        for (int i = 496; i < 504; i++) {
+            assertEquals(songs.getSong(i).title, queue.get(i).title);
+        }
+        cache.putAround(opened, 999);
+        assertEquals(songs.getSong(992).title, queue.get(992).title);
+        assertEquals(0, loading.lookups);
+        assertEquals("", queue.get(300).title);
+        assertTrue(cache.size() <= 16);
+    }
+
+    @Test
+    public void lazyShuffleMatchesEagerShuffle() {
+        SongCache cache = new SongCache(new CountingSource(SongTable.EMPTY), 16);
+        Random random = new Random(5);
+        for (int size : new int[]{1, 2, 3, 17, 1000}) {
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                // duplicates on purpose
+                ids[i] = random.nextInt(size * 2);
+            }
+            for (int current : new int[]{-1, 0, size / 2, size - 1}) {
+                long seed = random.nextLong();
+                int[] expected = ids.clone();
+                LazyPermutation.shuffle(expected, current, seed);
+                if (current >= 0) assertEquals(ids[current], expected[0]);
+
+                SongIdList list = new SongIdList(cache);
+                list.addIds(0, ids);
+                list.shuffle(current, seed);
+                assertTrue(list.isShuffledLazily());
+                // read backwards, the whole permutation gets generated by the first read
+                for (int i = size - 1; i >= 0; i--) {
+                    assertEquals(expected[i], list.getId(i));
+                }
+                assertArrayEquals(expected, list.toIdArray());
+                assertArrayEquals(expected, new SongIdList(list).toIdArray());
+                assertArrayEquals(ids, list.toUnshuffledIdArray());
+
+                // the same seed gives the same order after a restart
+                SongIdList restored = new SongIdList(cache);
+                restored.addIds(0, ids);
+                restored.shuffle(current, seed);
+                assertEquals(expected[size - 1], restored.getId(size - 1));
+
+                // back to the original order, and the current song is found without a lookup by id
+                int position = random.nextInt(size);
+                int unshuffledPosition = list.unshuffle(position);
+                assertEquals(expected[position], ids[unshuffledPosition]);
+                assertArrayEquals(ids, list.toIdArray());
+
+                // a change applies the shuffle first
+                list.shuffle(current, seed);
+                list.addIds(0, new int[]{-1});
+                assertFalse(list.isShuffledLazily());
+                int[] changed = new int[size + 1];
+                changed[0] = -1;
+                System.arraycopy(expected, 0, changed, 1, size);
+                assertArrayEquals(changed, list.toIdArray());
+            }
+        }
+
+        // shuffling a shuffled list starts over from the original order, so it can still be undone
+        SongIdList list = new SongIdList(cache);
+        list.addIds(0, new int[]{10, 11, 12, 13, 14, 15});
+        list.shuffle(2, 1);
+        int current = list.getId(4);
+        list.shuffle(4, 2);
+        assertEquals(current, list.getId(0));
+        int position = list.unshuffle(0);
+        assertArrayEquals(new int[]{10, 11, 12, 13, 14, 15}, list.toIdArray());
+        assertEquals(current, list.getId(position));
+
+        // iterating doesn't fail when a lookup applies the shuffle on the way
+        list.shuffle(-1, 3);
+        int count = 0;
+        for (Song ignored : list) {
+            list.indexOfId(12);
+            count++;
+        }
+        assertEquals(6, count);
+    }
+
+    @Test
+    public void concurrentReadsOfALazyShuffleAgree() throws InterruptedException {
+        SongCache cache = new SongCache(new CountingSource(SongTable.EMPTY), 16);
+        int[] ids = identity(5000);
+        final int[] expected = ids.clone();
+        LazyPermutation.shuffle(expected, 10, 7);
+        for (int run = 0; run < 20; run++) {
+            final SongIdList list = new SongIdList(cache);
+            list.addIds(0, ids);
+            list.shuffle(10, 7);
+            // like the UI, the playback handler and the read ahead reading the queue while it generates the shuffle
+            final int[][] read = new int[4][expected.length];
+            Thread[] threads = new Thread[read.length];
+            for (int t = 0; t < threads.length; t++) {
+                final int[] reads = read[t];
+                final int step = t + 1;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < reads.length; i += step) {
+                            reads[i] = list.getId(i);
+                        }
+                        if (step % 2 == 0) {
+                            list.indexOfId(reads[0]);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (int t = 0; t < read.length; t++) {
+                for (int i = 0; i < expected.length; i += t + 1) {
+                    assertEquals(expected[i], read[t][i]);
+                }
+            }
+            assertArrayEquals(expected, list.toIdArray());
+        }
+    }
+
+    static int[] identity(int size) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,64 @@
+package com.kabouzeid.gramophone.provider;
+
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.SavedQueues;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures what a save of the {@link MusicPlaybackQueueJournal} writes and how long a restore takes.
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*MusicPlaybackQueueJournalBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class MusicPlaybackQueueJournalBenchmark {
+    private static final int QUEUE_SIZE = 10000;
+
+    @Test
+    public void benchmarkSave() throws IOException {
+        MusicPlaybackQueueJournalTest.Queues queues = new MusicPlaybackQueueJournalTest.Queues(MusicPlaybackQueueJournalTest.newCache());
+        int[] ids = new int[QUEUE_SIZE];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        queues.playingQueue.addIds(0, ids);
+        queues.originalPlayingQueue.addIds(0, ids);
+        queues.position = 0;
+        queues.journal.snapshot(new SongIdList(queues.playingQueue), new SongIdList(queues.originalPlayingQueue), 0, 0);
+        queues.save();
+
+        // "add to queue" and a song change, saved each time
+        Random random = new Random(2);
+        final int saves = 1000;
+        long before = queues.file.length();
+        long start = System.nanoTime();
+        for (int i = 0; i < saves; i++) {
+            final int[] added = {random.nextInt(QUEUE_SIZE)};
+            queues.playingQueue.addIds(queues.playingQueue.size(), added);
+            queues.originalPlayingQueue.addIds(queues.originalPlayingQueue.size(), added);
+            queues.journal.add(queues.playingQueue.size() - 1, added, queues.position);
+            queues.position++;
+            queues.journal.setPosition(queues.position);
+            queues.snapshotIfNeeded();
+            queues.save();
+        }
+        long saveNanos = (System.nanoTime() - start) / saves;
+        long bytesPerSave = (queues.file.length() - before) / saves;
+
+        start = System.nanoTime();
+        SavedQueues restored = queues.restore();
+        long replayNanos = System.nanoTime() - start;
+        assertEquals(queues.position, restored.position);
+        assertArrayEquals(queues.playingQueue.toIdArray(), restored.playingQueue.toIdArray());
+
+        // each song was one row of 11 columns in both tables before
+        System.out.println(String.format("%d songs: %d bytes and %.3f ms per save (rewrite: %d rows), restore with %d bytes of journal %.2f ms",
+                QUEUE_SIZE, bytesPerSave, saveNanos / 1e6, 2 * queues.playingQueue.size(), queues.file.length(), replayNanos / 1e6));
+    }
+}
@@ -0,0 +1,259 @@
+package com.kabouzeid.gramophone.provider;
+
+import com.kabouzeid.gramophone.loader.SongCache;
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.misc.IntIntHashMap;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.SavedQueues;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that replaying the {@link MusicPlaybackQueueJournal} restores the queues the changes were recorded for.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class MusicPlaybackQueueJournalTest {
+    // the songs ids are below this
+    private static final int SONG_COUNT = 10000;
+
+    private final SongCache cache = newCache();
+
+    /**
+     * Changes the queues like the service does and records the changes.
+     */
+    static class Queues {
+        final SongCache cache;
+        final File file;
+        final MusicPlaybackQueueJournal journal;
+        final SongIdList playingQueue;
+        final SongIdList originalPlayingQueue;
+        boolean shuffled;
+        int position;
+        int positionInTrack;
+        // the last snapshot
+        SongIdList snapshotQueue;
+        SongIdList snapshotOriginalQueue;
+        int snapshotPosition = -1;
+        int snapshotPositionInTrack;
+        long generation;
+
+        Queues(SongCache cache) throws IOException {
+            this.cache = cache;
+            playingQueue = new SongIdList(cache);
+            originalPlayingQueue = new SongIdList(cache);
+            snapshotQueue = new SongIdList(cache);
+            snapshotOriginalQueue = new SongIdList(cache);
+            file = File.createTempFile("playing_queue", ".journal");
+            file.deleteOnExit();
+            journal = new MusicPlaybackQueueJournal(file);
+            journal.replay(emptyQueues(cache), generation);
+        }
+
+        void change(Random random) {
+            final int size = playingQueue.size();
+            switch (random.nextInt(9)) {
+                case 0:
+                case 1:
+                    final int index = random.nextInt(size + 1);
+                    final int[] ids = new int[1 + random.nextInt(3)];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = random.nextInt(SONG_COUNT);
+                    }
+                    playingQueue.addIds(index, ids);
+                    originalPlayingQueue.addIds(index, ids);
+                    journal.add(index, ids, position);
+                    break;
+                case 2:
+                    if (size == 0) break;
+                    final int removed = random.nextInt(size);
+                    final int originalIndex = shuffled
+                            ? originalPlayingQueue.indexOfId(playingQueue.getId(removed))
+                            : removed;
+                    playingQueue.removeId(removed);
+                    if (originalIndex >= 0) originalPlayingQueue.removeId(originalIndex);
+                    position = Math.min(position, playingQueue.size() - 1);
+                    journal.remove(removed, originalIndex, position);
+                    break;
+                case 3:
+                    if (size == 0) break;
+                    final int songId = playingQueue.getId(random.nextInt(size));
+                    final IntIntHashMap songIds = new IntIntHashMap();
+                    songIds.put(songId, 0);
+                    final int newPosition = playingQueue.removeAllIds(songIds, position);
+                    originalPlayingQueue.removeAllIds(songIds, 0);
+                    position = position < 0 ? -1 : Math.min(newPosition, playingQueue.size() - 1);
+                    journal.removeIds(new int[]{songId}, position);
+                    break;
+                case 4:
+                    if (size == 0) break;
+                    final int from = random.nextInt(size);
+                    final int to = random.nextInt(size);
+                    playingQueue.move(from, to);
+                    if (!shuffled) originalPlayingQueue.move(from, to);
+                    journal.move(from, to, !shuffled, position);
+                    break;
+                case 5:
+                    if (size == 0) break;
+                    if (shuffled) {
+                        // like the service, replaying copies the original queue instead
+                        if (playingQueue.isShuffledLazily()
+                                && Arrays.equals(playingQueue.toUnshuffledIdArray(), originalPlayingQueue.toIdArray())) {
+                            playingQueue.unshuffle(position);
+                        } else {
+                            playingQueue.clear();
+                            playingQueue.addIds(0, originalPlayingQueue.toIdArray());
+                        }
+                        journal.unshuffle(position);
+                    } else {
+                        final long seed = random.nextLong();
+                        final int current = position;
+                        playingQueue.shuffle(current, seed);
+                        position = 0;
+                        journal.shuffle(current, seed, position);
+                    }
+                    shuffled = !shuffled;
+                    break;
+                case 6:
+                    position = size == 0 ? -1 : random.nextInt(size);
+                    journal.setPosition(position);
+                    positionInTrack = random.nextInt(300000);
+                    journal.setPositionInTrack(positionInTrack);
+                    break;
+                case 7:
+                    if (random.nextInt(20) == 0) {
+                        playingQueue.clear();
+                        originalPlayingQueue.clear();
+                        position = -1;
+                        journal.clear(position);
+                    }
+                    break;
+                case 8:
+                    save();
+                    break;
+            }
+        }
+
+        /**
+         * What the store does on the saving thread.
+         */
+        void save() {
+            do {
+                final SavedQueues snapshot = journal.takeSnapshot();
+                if (snapshot != null) {
+                    snapshotQueue = snapshot.playingQueue;
+                    snapshotOriginalQueue = snapshot.originalPlayingQueue;
+                    snapshotPosition = snapshot.position;
+                    snapshotPositionInTrack = snapshot.positionInTrack;
+                    journal.start(++generation);
+                }
+            } while (!journal.flush());
+        }
+
+        void snapshotIfNeeded() {
+            if (journal.needsSnapshot(playingQueue.size())) {
+                journal.snapshot(new SongIdList(playingQueue), new SongIdList(originalPlayingQueue), position, positionInTrack);
+            }
+        }
+
+        /**
+         * Restores the queues like a restarted app would.
+         */
+        SavedQueues restore() {
+            SongIdList restoredQueue = new SongIdList(snapshotQueue);
+            SongIdList restoredOriginalQueue = new SongIdList(snapshotOriginalQueue);
+            return new MusicPlaybackQueueJournal(file).replay(
+                    new SavedQueues(restoredQueue, restoredOriginalQueue, snapshotPosition, snapshotPositionInTrack), generation);
+        }
+    }
+
+    @Test
+    public void replayRestoresQueuesAndPosition() throws IOException {
+        Queues queues = new Queues(cache);
+        Random random = new Random(1);
+        for (int step = 0; step < 3000; step++) {
+            queues.change(random);
+            queues.snapshotIfNeeded();
+            if (step % 300 == 299) {
+                queues.save();
+                assertRestored(queues);
+            }
+        }
+        queues.save();
+        assertRestored(queues);
+    }
+
+    @Test
+    public void tornRecordEndsLog() throws IOException {
+        Queues queues = new Queues(cache);
+        queues.journal.add(0, new int[]{1, 2, 3}, 0);
+        queues.playingQueue.addIds(0, new int[]{1, 2, 3});
+        queues.originalPlayingQueue.addIds(0, new int[]{1, 2, 3});
+        queues.save();
+        queues.journal.move(0, 2, true, 2);
+        queues.save();
+
+        // a crash in the middle of writing the move
+        RandomAccessFile randomAccessFile = new RandomAccessFile(queues.file, "rw");
+        randomAccessFile.setLength(queues.file.length() - 3);
+        randomAccessFile.close();
+
+        MusicPlaybackQueueJournal journal = new MusicPlaybackQueueJournal(queues.file);
+        SavedQueues restored = journal.replay(emptyQueues(cache), queues.generation);
+        assertEquals(0, restored.position);
+        assertArrayEquals(new int[]{1, 2, 3}, restored.playingQueue.toIdArray());
+
+        // the next record replaces the torn one
+        journal.removeIds(new int[]{2}, 1);
+        assertNull(journal.takeSnapshot());
+        journal.flush();
+        restored = new MusicPlaybackQueueJournal(queues.file).replay(emptyQueues(cache), queues.generation);
+        assertEquals(1, restored.position);
+        assertArrayEquals(new int[]{1, 3}, restored.playingQueue.toIdArray());
+        assertArrayEquals(new int[]{1, 3}, restored.originalPlayingQueue.toIdArray());
+    }
+
+    @Test
+    public void olderLogIsIgnored() throws IOException {
+        Queues queues = new Queues(cache);
+        queues.journal.add(0, new int[]{1, 2, 3}, 0);
+        queues.save();
+        // the snapshot of the next generation was written, but the app died before it started the new log
+        SavedQueues snapshot = new SavedQueues(new SongIdList(cache), new SongIdList(cache), 5, 1000);
+        SavedQueues restored = new MusicPlaybackQueueJournal(queues.file).replay(snapshot, queues.generation + 1);
+        assertEquals(5, restored.position);
+        assertEquals(1000, restored.positionInTrack);
+        assertEquals(0, restored.playingQueue.size());
+    }
+
+    static SongCache newCache() {
+        return new SongCache(new SongCache.Source() {
+            @Override
+            public Song getSong(int songId) {
+                return null;
+            }
+        }, 16);
+    }
+
+    private static SavedQueues emptyQueues(SongCache cache) {
+        return new SavedQueues(new SongIdList(cache), new SongIdList(cache), -1, 0);
+    }
+
+    private void assertRestored(Queues queues) {
+        SavedQueues restored = queues.restore();
+        assertEquals(queues.position, restored.position);
+        assertEquals(queues.positionInTrack, restored.positionInTrack);
+        assertArrayEquals(queues.playingQueue.toIdArray(), restored.playingQueue.toIdArray());
+        assertArrayEquals(queues.originalPlayingQueue.toIdArray(), restored.originalPlayingQueue.toIdArray());
+    }
+}
@@ -0,0 +1,61 @@
+package com.kabouzeid.gramophone.provider;
+
+import com.kabouzeid.gramophone.loader.SongCache;
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.SavedQueues;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Measures the size of the snapshot of the {@link MusicPlaybackQueueStore} and how long a restore takes.
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*MusicPlaybackQueueStoreBenchmark'}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class MusicPlaybackQueueStoreBenchmark {
+    private static final int QUEUE_SIZE = 80000;
+
+    private final SongCache cache = MusicPlaybackQueueJournalTest.newCache();
+
+    @Test
+    public void benchmarkRestore() throws IOException {
+        int[] ids = new int[QUEUE_SIZE];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        SongIdList playingQueue = queue(ids);
+        playingQueue.shuffle(0, 3);
+        File file = MusicPlaybackQueueStoreTest.tempFile(".snapshot");
+        File journalFile = MusicPlaybackQueueStoreTest.tempFile(".journal");
+        MusicPlaybackQueueStore store = new MusicPlaybackQueueStore(null, file, journalFile);
+        store.getSavedQueues(cache, -1, 0);
+        store.getJournal().snapshot(playingQueue, queue(ids), 0, 0);
+        long start = System.nanoTime();
+        store.save();
+        long saveNanos = System.nanoTime() - start;
+
+        long restoreNanos = Long.MAX_VALUE;
+        SavedQueues restored = null;
+        for (int run = 0; run < 5; run++) {
+            start = System.nanoTime();
+            restored = new MusicPlaybackQueueStore(null, file, journalFile).getSavedQueues(cache, -1, 0);
+            restoreNanos = Math.min(restoreNanos, System.nanoTime() - start);
+        }
+        assertArrayEquals(playingQueue.toIdArray(), restored.playingQueue.toIdArray());
+
+        // each song was one row of 11 columns in both tables before, then read back as a Song
+        System.out.println(String.format("%d songs shuffled: snapshot %d bytes (%.1f per song), save %.2f ms, restore %.2f ms",
+                QUEUE_SIZE, file.length(), (double) file.length() / QUEUE_SIZE, saveNanos / 1e6, restoreNanos / 1e6));
+    }
+
+    private SongIdList queue(int[] ids) {
+        SongIdList queue = new SongIdList(cache);
+        queue.addIds(0, ids);
+        return queue;
+    }
+}
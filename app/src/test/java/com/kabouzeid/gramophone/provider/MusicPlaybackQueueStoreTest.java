@@ -0,0 +1,182 @@
+package com.kabouzeid.gramophone.provider;
+
+import com.kabouzeid.gramophone.loader.SongCache;
+import com.kabouzeid.gramophone.loader.SongIdList;
+import com.kabouzeid.gramophone.loader.SongTable;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.SavedQueues;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the queues survive the snapshot and the journal of the {@link MusicPlaybackQueueStore}.
+ *
+ * @author Karim Abou Zeid (kabouzeid)
+ */
+public class MusicPlaybackQueueStoreTest {
+    private final SongCache cache = MusicPlaybackQueueJournalTest.newCache();
+
+    @Test
+    public void snapshotRoundTrip() {
+        Random random = new Random(1);
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++) {
+            // duplicates on purpose, a song can be queued more than once
+            ids[i] = random.nextInt(300);
+        }
+        SongIdList originalQueue = queue(ids);
+
+        // not shuffled
+        assertRoundTrip(new SavedQueues(queue(ids), originalQueue, 3, 1234));
+        // shuffled, only the seed of the shuffle is stored
+        SongIdList shuffledQueue = queue(ids);
+        shuffledQueue.shuffle(500, 2);
+        assertRoundTrip(new SavedQueues(shuffledQueue, originalQueue, 0, 0));
+        assertEquals(ids.length + 13, MusicPlaybackQueueStore.encode(new SavedQueues(shuffledQueue, originalQueue, 0, 0), 1).length);
+        // changed after the shuffle, the playing queue is stored as a permutation of the original one
+        shuffledQueue.move(0, 999);
+        assertRoundTrip(new SavedQueues(shuffledQueue, originalQueue, 999, 0));
+        // songs added while shuffled are only in the playing queue
+        SongIdList playingQueue = queue(ids);
+        playingQueue.addIds(10, new int[]{5000, 5001});
+        assertRoundTrip(new SavedQueues(playingQueue, originalQueue, 12, 0));
+        // nothing queued
+        assertRoundTrip(new SavedQueues(queue(new int[0]), queue(new int[0]), -1, 0));
+    }
+
+    @Test
+    public void damagedSnapshotIsDiscarded() {
+        int[] ints = MusicPlaybackQueueStore.encode(new SavedQueues(queue(new int[]{1, 2, 3}), queue(new int[]{1, 2, 3}), 1, 0), 7);
+        assertEquals(3, MusicPlaybackQueueStore.decode(IntBuffer.wrap(ints), cache).playingQueue.size());
+        ints[8] = 4;
+        assertNull(MusicPlaybackQueueStore.decode(IntBuffer.wrap(ints), cache));
+        assertNull(MusicPlaybackQueueStore.decode(IntBuffer.wrap(ints, 0, 5), cache));
+    }
+
+    @Test
+    public void restoreContinuesWithTheJournal() throws IOException {
+        File file = tempFile(".snapshot");
+        File journalFile = tempFile(".journal");
+        MusicPlaybackQueueStore store = new MusicPlaybackQueueStore(null, file, journalFile);
+        store.getSavedQueues(cache, -1, 0);
+        store.getJournal().snapshot(queue(new int[]{1, 2, 3, 4, 5}), queue(new int[]{1, 2, 3, 4, 5}), 3, 170000);
+        store.save();
+        store.getJournal().removeIds(new int[]{4}, 3);
+        store.getJournal().setPositionInTrack(0);
+        store.save();
+
+        store = new MusicPlaybackQueueStore(null, file, journalFile);
+        SavedQueues restored = store.getSavedQueues(cache, -1, 0);
+        assertArrayEquals(new int[]{1, 2, 3, 5}, restored.playingQueue.toIdArray());
+        assertArrayEquals(new int[]{1, 2, 3, 5}, restored.originalPlayingQueue.toIdArray());
+        assertEquals(3, restored.position);
+        assertEquals(0, restored.positionInTrack);
+
+        // the restored store appends to the same journal
+        store.getJournal().setPosition(2);
+        store.save();
+        restored = new MusicPlaybackQueueStore(null, file, journalFile).getSavedQueues(cache, -1, 0);
+        assertEquals(2, restored.position);
+        assertArrayEquals(new int[]{1, 2, 3, 5}, restored.playingQueue.toIdArray());
+    }
+
+    @Test
+    public void failedSnapshotIsWrittenAgain() throws IOException {
+        File file = tempFile(".snapshot");
+        File journalFile = tempFile(".journal");
+        MusicPlaybackQueueStore store = new MusicPlaybackQueueStore(null, file, journalFile);
+        store.getSavedQueues(cache, -1, 0);
+        store.getJournal().snapshot(queue(new int[]{1, 2, 3}), queue(new int[]{1, 2, 3}), 0, 0);
+        store.save();
+        store.getJournal().setPosition(1);
+        store.save();
+
+        // the temporary file of the next snapshot can't be written
+        File blocker = new File(file.getPath() + ".tmp");
+        assertTrue(blocker.mkdir());
+        File blockerContent = new File(blocker, "content");
+        assertTrue(blockerContent.createNewFile());
+        store.getJournal().snapshot(queue(new int[]{7, 8}), queue(new int[]{8, 7}), 0, 0);
+        store.getJournal().removeIds(new int[]{8}, 0);
+        store.save();
+
+        // the changes recorded against the new queues are not appended to the log of the old ones
+        SavedQueues restored = new MusicPlaybackQueueStore(null, file, journalFile).getSavedQueues(cache, -1, 0);
+        assertArrayEquals(new int[]{1, 2, 3}, restored.playingQueue.toIdArray());
+        assertEquals(1, restored.position);
+        assertTrue(store.getJournal().needsSnapshot(1));
+
+        assertTrue(blockerContent.delete());
+        assertTrue(blocker.delete());
+        store.getJournal().snapshot(queue(new int[]{7}), queue(new int[]{7}), 0, 0);
+        store.save();
+        restored = new MusicPlaybackQueueStore(null, file, journalFile).getSavedQueues(cache, -1, 0);
+        assertArrayEquals(new int[]{7}, restored.playingQueue.toIdArray());
+        assertArrayEquals(new int[]{7}, restored.originalPlayingQueue.toIdArray());
+    }
+
+    @Test
+    public void missingSongIds() {
+        // song 4 was deleted while the app was not running
+        SongTable songs = new SongTable.Builder(4)
+                .add(new Song(1, "A", 1, 0, 200000, "/a", 0, 1, "A", 1, "X"), 0)
+                .add(new Song(2, "B", 2, 0, 200000, "/b", 0, 1, "A", 1, "X"), 0)
+                .add(new Song(3, "C", 3, 0, 200000, "/c", 0, 1, "A", 1, "X"), 0)
+                .add(new Song(5, "E", 5, 0, 200000, "/e", 0, 1, "A", 1, "X"), 0)
+                .build();
+        assertArrayEquals(new int[]{4, 6}, MusicPlaybackQueueStore.getMissingSongIds(songs, new int[]{1, 4, 2, 4, 6, 5}));
+        assertArrayEquals(new int[0], MusicPlaybackQueueStore.getMissingSongIds(songs, new int[]{5, 3}));
+        // the library couldn't be queried
+        assertArrayEquals(new int[0], MusicPlaybackQueueStore.getMissingSongIds(SongTable.EMPTY, new int[]{1, 4}));
+    }
+
+    @Test
+    public void damagedSnapshotFileRestoresEmptyQueues() throws IOException {
+        File file = tempFile(".snapshot");
+        File journalFile = tempFile(".journal");
+        MusicPlaybackQueueStore store = new MusicPlaybackQueueStore(null, file, journalFile);
+        store.getSavedQueues(cache, -1, 0);
+        store.getJournal().snapshot(queue(new int[]{1, 2, 3}), queue(new int[]{1, 2, 3}), 0, 0);
+        store.save();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 2);
+        randomAccessFile.close();
+        SavedQueues restored = new MusicPlaybackQueueStore(null, file, journalFile).getSavedQueues(cache, -1, 0);
+        assertEquals(0, restored.playingQueue.size());
+        assertEquals(-1, restored.position);
+    }
+
+    private SongIdList queue(int[] ids) {
+        SongIdList queue = new SongIdList(cache);
+        queue.addIds(0, ids);
+        return queue;
+    }
+
+    private void assertRoundTrip(SavedQueues queues) {
+        SavedQueues decoded = MusicPlaybackQueueStore.decode(IntBuffer.wrap(MusicPlaybackQueueStore.encode(queues, 1)), cache);
+        assertArrayEquals(queues.playingQueue.toIdArray(), decoded.playingQueue.toIdArray());
+        assertArrayEquals(queues.originalPlayingQueue.toIdArray(), decoded.originalPlayingQueue.toIdArray());
+        assertEquals(queues.position, decoded.position);
+        assertEquals(queues.positionInTrack, decoded.positionInTrack);
+    }
+
+    static File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("playing_queue", suffix);
+        file.deleteOnExit();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return file;
+    }
+}